@@ -0,0 +1,79 @@
+package shopping_network;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Checking a purchase against the purchaser's social network history (see
+ * Network.checkForOutlier). Each call checks a price for the next user in turn.
+ *
+ * With flagged = false, the history is up to date, so the call is the mean, the standard
+ * deviation and the exact comparison. With flagged = true, the user is flagged first (see
+ * Network.flagSN), as after a nearby change of friendships, so the call rebuilds the history.
+ * @author Kevin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CheckForOutlierBenchmark {
+
+	private static final int PRICES = 4096;
+
+	@Param({"1", "2", "3"})
+	public int D;
+
+	@Param({"10", "50", "500"})
+	public int T;
+
+	@Param({"false", "true"})
+	public boolean flagged;
+
+	@Param({"random"})
+	public String shape;
+
+	@Param({"10000"})
+	public int users;
+
+	private Network n;
+	private long[] prices;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		Event.D = D;
+		Event.T = T;
+		n = Graphs.build(shape, users, 20, 13);
+		n.startStreaming();
+		for(int u = 0; u < users; u++){
+			n.buildSNPurchaseHistory(u);
+		}
+		SplittableRandom r = new SplittableRandom(17);
+		prices = new long[PRICES];
+		for(int i = 0; i < PRICES; i++){
+			prices[i] = Graphs.price(r);
+		}
+	}
+
+	@Benchmark
+	public boolean check(){
+		int u = next % users;
+		long price = prices[next % PRICES];
+		next = next + 1 == users*PRICES ? 0 : next + 1;
+		if(flagged){
+			n.flagSN(u);
+		}
+		return n.checkForOutlier(u, price);
+	}
+
+}
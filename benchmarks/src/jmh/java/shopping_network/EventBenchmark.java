@@ -0,0 +1,128 @@
+package shopping_network;
+
+import java.sql.Timestamp;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing a line of the log into an event, and writing the flag for an anomalous purchase.
+ *
+ * The lines are a fixed mix like the sample dataset's: 80% purchases, 19% befriends and
+ * 1% unfriends. parseApply also applies each event to a network in the batch phase, where
+ * no social network is crawled; befriends are later undone by unfriends of the same pair,
+ * so the network does not grow as the benchmark runs.
+ * @author Kevin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBenchmark {
+
+	private static final int LINES = 4096;
+	private static final int USERS = 10000;
+
+	private String[] lines;
+	private int next = 0;
+	private long day = 0;
+	private EventBuffer buffer;
+	private Network n;
+
+	private int flagUser;
+	private long flagTime;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		buffer = new EventBuffer(LINES);
+		n = new Network();
+		n.expandNetwork(USERS - 1);
+		//a user with a checked purchase, so that the flag has a mean and standard deviation
+		SplittableRandom r = new SplittableRandom(41);
+		for(int k = 0; k < 50; k++){
+			Event.applyEvent(n, Event.PURCHASE, k*1000L, 1 + k % 2, Graphs.price(r), false);
+		}
+		n.addFriend(0, 1, false);
+		n.addFriend(1, 0, false);
+		n.addFriend(0, 2, false);
+		n.addFriend(2, 0, false);
+		n.startStreaming();
+		flagUser = 0;
+		flagTime = 50000;
+		Event.applyEvent(n, Event.PURCHASE, flagTime, flagUser, 1000000, true);
+	}
+
+	/**
+	 * Writes a fresh set of lines, each iteration a day later than the last, so that the
+	 * events applied by parseApply never go back in time.
+	 */
+	@Setup(Level.Iteration)
+	public void writeLines(){
+		SplittableRandom r = new SplittableRandom(42 + day);
+		lines = new String[LINES];
+		long start = 86400000L*(1000 + day++);
+		int[] open = new int[2*LINES];//friendships made and not yet undone
+		int openCount = 0;
+		for(int i = 0; i < LINES; i++){
+			String timestamp = new Timestamp(start + i*1000L).toString();
+			timestamp = timestamp.substring(0, timestamp.length() - 2);
+			int kind = r.nextInt(100);
+			if(kind < 80 || (kind == 99 && openCount == 0)){
+				StringBuilder amount = new StringBuilder();
+				Cents.appendTo(amount, Graphs.price(r));
+				lines[i] = "{\"event_type\":\"purchase\", \"timestamp\":\""+timestamp+"\", \"id\": \""+r.nextInt(USERS)
+						+"\", \"amount\": \""+amount+"\"}";
+			} else {
+				boolean unfriend = kind == 99 || LINES - i <= openCount/2;
+				int a, b;
+				if(unfriend){
+					openCount -= 2;
+					a = open[openCount];
+					b = open[openCount + 1];
+				} else {
+					a = r.nextInt(USERS);
+					b = (a + 1 + r.nextInt(USERS - 1)) % USERS;
+					open[openCount++] = a;
+					open[openCount++] = b;
+				}
+				lines[i] = "{\"event_type\":\""+(unfriend ? "unfriend" : "befriend")+"\", \"timestamp\":\""+timestamp
+						+"\", \"id1\": \""+a+"\", \"id2\": \""+b+"\"}";
+			}
+		}
+		next = 0;
+	}
+
+	private String nextLine(){
+		String line = lines[next];
+		next = next + 1 == LINES ? 0 : next + 1;
+		return line;
+	}
+
+	@Benchmark
+	public int parse(){
+		if(buffer.size() == LINES){
+			buffer.clear();
+		}
+		Event.parseEvent(nextLine(), buffer);
+		return buffer.size();
+	}
+
+	@Benchmark
+	public String parseApply(){
+		return Event.parseEvent(n, nextLine(), false);
+	}
+
+	@Benchmark
+	public String writePurchaseFlag(){
+		return Event.writePurchaseFlag(n, flagUser, 1000000, flagTime, 0);
+	}
+
+}
@@ -0,0 +1,98 @@
+package shopping_network;
+
+import java.util.SplittableRandom;
+
+/**
+ * Builds networks for the benchmarks, with the friendships and purchases applied in the
+ * batch phase. Each shape has about the same number of friendships per user (as in the
+ * sample dataset, about 10), so the shapes differ in how quickly a social network grows
+ * with D rather than in its size at D = 1.
+ *
+ * random: every friendship joins two users chosen at random.
+ * clustered: users are in communities of 50, and one friendship in 50 leaves the community.
+ * scaleFree: preferential attachment, so a few users have thousands of friends.
+ * @author Kevin
+ *
+ */
+final class Graphs {
+
+	static final int DEGREE = 10;
+	static final int COMMUNITY = 50;
+
+	private Graphs(){
+	}
+
+	/**
+	 * Builds a network in the batch phase. Event.T must already be set, since it fixes the
+	 * size of the purchase rings.
+	 * @param shape random, clustered or scaleFree
+	 * @param users The number of users
+	 * @param purchasesPerUser The number of purchases made by each user
+	 * @param seed A seed for the random choices
+	 * @return A Network
+	 */
+	static Network build(String shape, int users, int purchasesPerUser, long seed){
+		SplittableRandom r = new SplittableRandom(seed);
+		Network n = new Network();
+		n.expandNetwork(users - 1);
+		long time = 0;
+		int edges = users*DEGREE/2;
+		if(shape.equals("random")){
+			for(int i = 0; i < edges; i++){
+				befriend(n, r.nextInt(users), r.nextInt(users), time);
+			}
+		} else if(shape.equals("clustered")){
+			for(int i = 0; i < edges; i++){
+				int a = r.nextInt(users);
+				int b;
+				if(r.nextInt(COMMUNITY) == 0){
+					b = r.nextInt(users);
+				} else {
+					int start = a - a % COMMUNITY;
+					b = Math.min(users - 1, start + r.nextInt(COMMUNITY));
+				}
+				befriend(n, a, b, time);
+			}
+		} else if(shape.equals("scaleFree")){
+			//each new user befriends DEGREE/2 users, chosen in proportion to their friend counts
+			//by picking a random end of a friendship made so far
+			int m = DEGREE/2;
+			int[] ends = new int[2*m*users];
+			int count = 0;
+			for(int u = 1; u < users; u++){
+				for(int k = 0; k < m; k++){
+					int v = count == 0 ? r.nextInt(u) : ends[r.nextInt(count)];
+					befriend(n, u, v, time);
+					ends[count++] = u;
+					ends[count++] = v;
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown graph shape: "+shape);
+		}
+		//purchases are spread over the users in turn, one second apart
+		for(int k = 0; k < purchasesPerUser; k++){
+			for(int u = 0; u < users; u++){
+				time += 1000;
+				Event.applyEvent(n, Event.PURCHASE, time, u, price(r), false);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Gives a price in cents, mostly between $1 and $100, with a long upper tail.
+	 * @param r A source of random numbers
+	 * @return A price in cents
+	 */
+	static long price(SplittableRandom r){
+		return 100 + (long)(9900*Math.pow(r.nextDouble(), 3)) + (r.nextInt(100) == 0 ? 100000 : 0);
+	}
+
+	private static void befriend(Network n, int a, int b, long time){
+		if(a != b){
+			Event.applyEvent(n, Event.BEFRIEND, time, a, b, false);
+		}
+	}
+
+}
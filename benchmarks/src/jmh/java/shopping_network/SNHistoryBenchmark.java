@@ -0,0 +1,77 @@
+package shopping_network;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building a user's social network purchase history (see Network.buildSNPurchaseHistory):
+ * the crawl to degree D, then the merge of the latest T purchases of the social network.
+ * D sets the size of the social network, and every user has made 20 purchases.
+ *
+ * With window = fresh, only one history is kept (see Network.setSNMemoryLimit), so
+ * each call builds the next user's history from nothing. With window = current, every
+ * history has already been built and nothing has changed since, so each call is the
+ * crawl and the check that finds nothing to rebuild (see Network.partialRebuild).
+ * @author Kevin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SNHistoryBenchmark {
+
+	@Param({"1", "2", "3"})
+	public int D;
+
+	@Param({"10", "50", "500"})
+	public int T;
+
+	@Param({"fresh", "current"})
+	public String window;
+
+	@Param({"random"})
+	public String shape;
+
+	@Param({"10000"})
+	public int users;
+
+	private Network n;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		Event.D = D;
+		Event.T = T;
+		n = Graphs.build(shape, users, 20, 11);
+		if(window.equals("fresh")){
+			n.setSNMemoryLimit(1);
+		} else if(!window.equals("current")){
+			throw new IllegalArgumentException("Unknown window: "+window);
+		}
+		n.startStreaming();
+		long total = 0;
+		for(int u = 0; u < users; u++){
+			total += n.socialNetwork(u, D) - 1;
+			n.buildSNPurchaseHistory(u);
+		}
+		System.out.println("mean social network size: "+(double)total/users);
+	}
+
+	@Benchmark
+	public int build(){
+		int u = next;
+		next = next + 1 == users ? 0 : next + 1;
+		n.buildSNPurchaseHistory(u);
+		return n.snCount[u];
+	}
+
+}
@@ -0,0 +1,71 @@
+package shopping_network;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The crawl for a user's social network (see Network.socialNetwork) at several degrees
+ * and graph shapes (see Graphs). Each call crawls from the next user in turn, so the
+ * time is an average over every user of the network. The mean size of the social
+ * network is printed at the start of each trial.
+ *
+ * crawl is the crawl the event path runs; userView also builds the list of Users that
+ * User.socialNetwork returns.
+ * @author Kevin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SocialNetworkBenchmark {
+
+	@Param({"1", "2", "3"})
+	public int degree;
+
+	@Param({"random", "clustered", "scaleFree"})
+	public String shape;
+
+	@Param({"10000"})
+	public int users;
+
+	private Network n;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		n = Graphs.build(shape, users, 0, 7);
+		n.startStreaming();
+		long total = 0;
+		for(int u = 0; u < users; u++){
+			total += n.socialNetwork(u, degree);
+		}
+		System.out.println("mean social network size: "+(double)total/users);
+	}
+
+	private int nextUser(){
+		int u = next;
+		next = next + 1 == users ? 0 : next + 1;
+		return u;
+	}
+
+	@Benchmark
+	public int crawl(){
+		return n.socialNetwork(nextUser(), degree);
+	}
+
+	@Benchmark
+	public ArrayList<User> userView(){
+		return n.getUser(nextUser()).socialNetwork(degree);
+	}
+
+}
@@ -0,0 +1,75 @@
+package shopping_network;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Scoring purchases against whole windows of T prices (see WindowKernels.scoreWindows),
+ * with the scalar kernels or the vector ones. Each call scores one purchase against
+ * each of the windows, which are laid out one after another in a single array.
+ * @author Kevin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WindowKernelBenchmark {
+
+	@Param({"scalar", "vector"})
+	public String kernels;
+
+	@Param({"10", "50", "500"})
+	public int T;
+
+	@Param({"1000"})
+	public int windows;
+
+	private WindowKernels k;
+	private long[] prices;
+	private int[] offsets;
+	private long[] amounts;
+	private boolean[] flagged;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		if(kernels.equals("scalar")){
+			k = WindowKernels.scalar();
+		} else if(kernels.equals("vector")){
+			k = WindowKernels.get();
+			if(k == WindowKernels.scalar()){
+				throw new IllegalStateException("The Vector API is not available");
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown kernels: "+kernels);
+		}
+		SplittableRandom r = new SplittableRandom(11);
+		prices = new long[windows*T];
+		offsets = new int[windows + 1];
+		amounts = new long[windows];
+		flagged = new boolean[windows];
+		for(int w = 0; w < windows; w++){
+			for(int i = 0; i < T; i++){
+				prices[w*T + i] = Graphs.price(r);
+			}
+			offsets[w + 1] = (w + 1)*T;
+			amounts[w] = Graphs.price(r);
+		}
+	}
+
+	@Benchmark
+	public boolean[] scoreWindows(){
+		k.scoreWindows(prices, offsets, amounts, windows, 3, 1, flagged);
+		return flagged;
+	}
+
+}
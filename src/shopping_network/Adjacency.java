@@ -0,0 +1,106 @@
+package shopping_network;
+
+/**
+ * Stores the friend lists of every user in a Network.
+ * The order of a friend list is up to the storage; nothing depends on it.
+ * 
+ * The crawl in Network.socialNetwork reads a whole friend list at a time through
+ * neighbors, so it runs directly against whichever storage is used.
+ * @author Kevin
+ *
+ */
+public abstract class Adjacency {
+	
+	/**
+	 * Makes room for users with IDs below the given number.
+	 * @param numUsers An integer
+	 */
+	public abstract void expand(int numUsers);
+	
+	/**
+	 * Gives the number of friends of a user.
+	 * @param u A user ID
+	 * @return An integer
+	 */
+	public abstract int degree(int u);
+	
+	/**
+	 * Gives the i-th friend of a user.
+	 * @param u A user ID
+	 * @param i An index below degree(u)
+	 * @return A user ID
+	 */
+	public abstract int neighbor(int u, int i);
+	
+	/**
+	 * Copies all of u's friends into the start of the given buffer.
+	 * @param u A user ID
+	 * @param buffer An array of length at least degree(u)
+	 * @return The number of friends copied, degree(u)
+	 */
+	public int neighbors(int u, int[] buffer){
+		int count = degree(u);
+		for(int i = 0; i < count; i++){
+			buffer[i] = neighbor(u, i);
+		}
+		return count;
+	}
+	
+	/**
+	 * Finds a friend of u whose bit is set in the given bitset. This is used by the
+	 * bottom-up step of a crawl, which stops looking as soon as one friend is found.
+	 * @param u A user ID
+	 * @param bits A bitset over user IDs
+	 * @return The ID of such a friend, or -1 if there is none
+	 */
+	public int firstNeighborIn(int u, long[] bits){
+		int count = degree(u);
+		for(int i = 0; i < count; i++){
+			int v = neighbor(u, i);
+			if((bits[v >>> 6] & (1L << v)) != 0){
+				return v;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Called when the network moves from the batch phase to the stream phase, and
+	 * whenever the storage may reorganize itself. Storage that has nothing to do ignores it.
+	 */
+	public void compact(){
+		
+	}
+	
+	/**
+	 * Adds v to u's friend list. This does not check if they are already friends.
+	 * @param u A user ID
+	 * @param v A user ID
+	 */
+	public abstract void add(int u, int v);
+	
+	/**
+	 * Removes v from u's friend list, if present.
+	 * @param u A user ID
+	 * @param v A user ID
+	 * @return True if v was a friend of u
+	 */
+	public abstract boolean remove(int u, int v);
+	
+	/**
+	 * Determines if v is a friend of u.
+	 * @param u A user ID
+	 * @param v A user ID
+	 * @return True if v is a friend of u
+	 */
+	public boolean contains(int u, int v){
+		int count = degree(u);
+		for(int i = 0; i < count; i++){
+			if(neighbor(u, i) == v){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}
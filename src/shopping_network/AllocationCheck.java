@@ -0,0 +1,211 @@
+package shopping_network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks that the stream phase does not allocate more than it should, and exits with
+ * status 1 if it does.
+ *
+ * A dataset is generated with WorkloadGenerator and parsed up front, so that parsing is
+ * not measured. The batch phase is applied, then the first part of the stream warms up
+ * the engine and the JIT, and the rest of the stream is measured one event at a time:
+ * the bytes allocated by this thread (from ThreadMXBean.getThreadAllocatedBytes) are read
+ * before and after each event, and counted against its path. The paths are purchases that
+ * are not flagged, flagged purchases (which write a flag), befriends and unfriends.
+ *
+ * A path fails if its mean allocation per event is over its budget, or if its 99.9th
+ * percentile is over its tail budget. The engine keeps its state in arrays that grow by
+ * doubling, so an event may now and then allocate a large array; the mean spreads that
+ * over the events, and the percentile leaves out the few events that grew an array, so
+ * the maximum is reported but not checked. The tail budget catches a path where some
+ * events allocate a lot too often to be growth, which a low mean could hide. Flagged
+ * purchases have budgets for the flag itself.
+ * @author Kevin
+ *
+ */
+public class AllocationCheck {
+
+	static final int PURCHASE = 0;
+	static final int FLAGGED = 1;
+	static final int BEFRIEND = 2;
+	static final int UNFRIEND = 3;
+	static final String[] PATHS = {"purchase", "flagged", "befriend", "unfriend"};
+
+	//bytes per event
+	static final double[] BUDGETS = {64, 2048, 64, 64};
+	static final double TAIL = 99.9;//the percentile held to TAIL_BUDGETS
+	static final long[] TAIL_BUDGETS = {512, 4096, 1024, 1024};
+
+	private final Histogram[] allocations = {new Histogram(), new Histogram(), new Histogram(), new Histogram()};
+
+	private static final long THREAD = Thread.currentThread().getId();
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	/**
+	 * Usage:
+	 *   java shopping_network.AllocationCheck [check options] [Detector options]
+	 * Check options:
+	 *   --generate=<k=v,...>  WorkloadGenerator options for the dataset, replacing the
+	 *                         defaults here (users=5000,stream-events=200000)
+	 *   --warmup=<percent>    the share of the stream applied before measuring [50]
+	 *   --budget=<path>=<bytes per event>
+	 *                         the budget of a path (purchase, flagged, befriend or unfriend)
+	 *   --tail-budget=<path>=<bytes>
+	 *                         the budget of a path's 99.9th percentile
+	 * Any other options are given to Detector (see Detector.main), except for those that
+	 * hold events back (--bursts, --coalesce-edges and --max-lateness), as events are
+	 * measured one at a time.
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(THREADS == null || !THREADS.isThreadAllocatedMemorySupported()){
+			throw new IllegalStateException("This JVM does not count the bytes allocated by a thread");
+		}
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+		String generate = "users=5000,stream-events=200000";
+		double warmup = 50;
+		double[] budgets = BUDGETS.clone();
+		long[] tailBudgets = TAIL_BUDGETS.clone();
+		List<String> detectorArgs = new ArrayList<String>();
+		for(String arg : args){
+			if(arg.startsWith("--generate=")){
+				generate = arg.substring("--generate=".length());
+			} else if(arg.startsWith("--warmup=")){
+				warmup = Double.parseDouble(arg.substring("--warmup=".length()));
+			} else if(arg.startsWith("--budget=")){
+				String[] kv = arg.substring("--budget=".length()).split("=");
+				budgets[path(kv[0])] = Double.parseDouble(kv[1]);
+			} else if(arg.startsWith("--tail-budget=")){
+				String[] kv = arg.substring("--tail-budget=".length()).split("=");
+				tailBudgets[path(kv[0])] = Long.parseLong(kv[1]);
+			} else {
+				detectorArgs.add(arg);
+			}
+		}
+		if(warmup < 0 || warmup >= 100){
+			throw new IllegalArgumentException("The warm-up must be at least 0% and under 100% of the stream");
+		}
+		Detector.Options options = Detector.Options.parse(detectorArgs.toArray(new String[0]), 0);
+		if(options.runs != Detector.NO_RUNS || options.maxLateness >= 0){
+			throw new IllegalArgumentException("Events are measured one at a time, without --bursts, --coalesce-edges or --max-lateness");
+		}
+
+		WorkloadGenerator g = new WorkloadGenerator();
+		for(String setting : generate.split(",")){
+			if(!setting.isEmpty()){
+				g.set("--"+setting);
+			}
+		}
+		StringWriter batchLog = new StringWriter();
+		StringWriter streamLog = new StringWriter();
+		g.writeBatch(batchLog);
+		g.writeStream(streamLog);
+
+		EventBuffer batch = new EventBuffer();
+		EventBuffer stream = new EventBuffer();
+		try(BufferedReader br = new BufferedReader(new StringReader(batchLog.toString()))){
+			Event.setParameters(br.readLine());
+			String line;
+			while((line = br.readLine()) != null){
+				Event.parseEvent(line, batch);
+			}
+		}
+		batchLog = null;
+		try(BufferedReader br = new BufferedReader(new StringReader(streamLog.toString()))){
+			String line;
+			while((line = br.readLine()) != null){
+				Event.parseEvent(line, stream);
+			}
+		}
+		streamLog = null;
+
+		AllocationCheck check = new AllocationCheck();
+		Network n = options.newNetwork();
+		try {
+			for(int i = 0; i < batch.size; i++){
+				batch.apply(n, i, false);
+			}
+			n.startStreaming();
+			check.run(n, stream, (int)(stream.size*warmup/100));
+		} finally {
+			n.close();
+		}
+
+		boolean passed = true;
+		System.out.printf(Locale.ROOT, "%-9s %10s %12s %10s %12s %10s %12s%n", "path", "events", "bytes/event", "p99.9",
+				"max bytes", "budget", "p99.9 budget");
+		for(int p = 0; p < 4; p++){
+			Histogram h = check.allocations[p];
+			double mean = check.getMean(p);
+			long tail = h.percentile(TAIL);
+			boolean over = mean > budgets[p] || tail > tailBudgets[p];
+			passed &= !over;
+			System.out.printf(Locale.ROOT, "%-9s %10d %12.1f %10d %12d %10.0f %12d%s%n", PATHS[p], h.getCount(), mean, tail,
+					h.getMax(), budgets[p], tailBudgets[p], over ? "  OVER BUDGET" : "");
+		}
+		if(!passed){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Applies a stream, measuring the events from the given index on.
+	 * @param n A Network, streaming
+	 * @param stream The events of the stream
+	 * @param from The index of the first event measured
+	 */
+	void run(Network n, EventBuffer stream, int from){
+		for(int i = 0; i < from; i++){
+			stream.apply(n, i, true);
+		}
+		long overhead = Long.MAX_VALUE;//of reading the counter, which should be nothing
+		for(int i = 0; i < 1000; i++){
+			long before = allocatedBytes();
+			overhead = Math.min(overhead, allocatedBytes() - before);
+		}
+		for(int i = from; i < stream.size; i++){
+			long before = allocatedBytes();
+			String flag = stream.apply(n, i, true);
+			long allocated = allocatedBytes() - before - overhead;
+			int path = stream.type[i] == Event.BEFRIEND ? BEFRIEND : stream.type[i] == Event.UNFRIEND ? UNFRIEND
+					: flag != null ? FLAGGED : PURCHASE;
+			allocations[path].record(allocated);
+		}
+	}
+
+	/**
+	 * Gives the mean bytes allocated per event on a path.
+	 * @param path PURCHASE, FLAGGED, BEFRIEND or UNFRIEND
+	 * @return A double, or 0 if there were no such events
+	 */
+	double getMean(int path){
+		return allocations[path].getMean();
+	}
+
+	private static int path(String name){
+		for(int p = 0; p < PATHS.length; p++){
+			if(PATHS[p].equals(name)){
+				return p;
+			}
+		}
+		throw new IllegalArgumentException("Unknown path: "+name);
+	}
+
+	private static long allocatedBytes(){
+		return THREADS.getThreadAllocatedBytes(THREAD);
+	}
+
+	private static com.sun.management.ThreadMXBean threads(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)bean : null;
+	}
+
+}
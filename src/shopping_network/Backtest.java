@@ -0,0 +1,424 @@
+package shopping_network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Backtests a dataset with many settings of D, T and the multiplier at once, and reports
+ * how many purchases each setting flags and how their flags overlap.
+ *
+ * The logs are parsed once, in chunks split at line breaks and memory-mapped on a pool of
+ * threads (see LogChunks), into two EventBuffers kept in memory: 21 bytes an event. Each
+ * pair of D and T is then replayed on a network of its own, on the same pool; each network
+ * has its own parameters and clock (see Network.setParameters), so they run side by side,
+ * and the settings cost about as much time as the slowest of them when there are enough
+ * processors. Each network is as large as one Detector would build, so the heap must hold
+ * as many networks as there are threads.
+ *
+ * The multipliers do not need networks of their own: a purchase's window is the same
+ * whatever the multiplier. So each network records the totals of the window of every
+ * purchase as it is checked, and they are scored against every multiplier a block at a
+ * time with the window kernels (see WindowKernels). The flags are exactly those Detector
+ * writes with the same D, T and --multiplier.
+ *
+ * Each setting's flags are a BitSet over the purchases of the stream, in order, so overlaps
+ * are counted by intersecting them. Every setting is compared with the baseline, the first
+ * value of each list (by default, the D and T of the batch log and a multiplier of 3).
+ * @author Kevin
+ *
+ */
+public class Backtest {
+
+	static final int BLOCK = 4096;//purchases scored at once
+
+	private final ExecutorService pool;
+	private final int threads;
+	private final WindowKernels kernels = WindowKernels.get();
+	private EventBuffer batch;
+	private EventBuffer stream;
+	private int purchases = 0;
+
+	/**
+	 * One setting of D, T and the multiplier, and the purchases it flags.
+	 */
+	static final class Setting {
+
+		final int D;
+		final int T;
+		final String multiplier;//as it was given
+		final long multiplierNum;
+		final long multiplierDen;
+		final BitSet flagged = new BitSet();
+		long engineNanos;//the time of the network that ran it, shared by each multiplier
+
+		Setting(int D, int T, String multiplier){
+			this.D = D;
+			this.T = T;
+			this.multiplier = multiplier;
+			long[] k = Detector.Options.parseMultiplier(multiplier);
+			this.multiplierNum = k[0];
+			this.multiplierDen = k[1];
+		}
+
+	}
+
+	private Backtest(int threads){
+		this.threads = threads;
+		this.pool = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Usage:
+	 *   java shopping_network.Backtest <dataset directory> [backtest options] [Detector options]
+	 * Backtest options:
+	 *   --D=<list>           degrees, such as 1,2,3 [the D of the batch log]
+	 *   --T=<list>           window sizes, such as 20,50,100 [the T of the batch log]
+	 *   --multiplier=<list>  multipliers, such as 2.5,3,3.5 [3]
+	 *   --threads=<n>        threads that parse the logs and run networks [the number of processors]
+	 *   --json=<file>        also write the results as JSON
+	 * Every combination of the lists is a setting. Any other options are given to Detector
+	 * (see Detector.main) for every network, such as --window-minutes or --share-windows.
+	 * Events are applied one at a time and in order, so --bursts, --coalesce-edges (which do
+	 * not change the flags) and --max-lateness cannot be given, nor can rules other than the
+	 * mean and standard deviation.
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length < 1){
+			throw new IllegalArgumentException("Please give the dataset directory, followed by any options.");
+		}
+		File dataset = new File(args[0]);
+		String degrees = null;
+		String sizes = null;
+		String multipliers = "3";
+		int threads = Runtime.getRuntime().availableProcessors();
+		File json = null;
+		List<String> detectorArgs = new ArrayList<String>();
+		for(int i = 1; i < args.length; i++){
+			if(args[i].startsWith("--D=")){
+				degrees = args[i].substring("--D=".length());
+			} else if(args[i].startsWith("--T=")){
+				sizes = args[i].substring("--T=".length());
+			} else if(args[i].startsWith("--multiplier=")){
+				multipliers = args[i].substring("--multiplier=".length());
+			} else if(args[i].startsWith("--threads=")){
+				threads = Integer.parseInt(args[i].substring("--threads=".length()));
+			} else if(args[i].startsWith("--json=")){
+				json = new File(args[i].substring("--json=".length()));
+			} else {
+				detectorArgs.add(args[i]);
+			}
+		}
+		if(threads < 1){
+			throw new IllegalArgumentException("Threads must be positive");
+		}
+		Detector.Options options = Detector.Options.parse(detectorArgs.toArray(new String[0]), 0);
+		if(options.runs != Detector.NO_RUNS || options.maxLateness >= 0){
+			throw new IllegalArgumentException("Backtest applies events one at a time and in order,"
+					+ " so --bursts, --coalesce-edges and --max-lateness cannot be used");
+		}
+		if(options.rule != Network.MEAN_SD){
+			throw new IllegalArgumentException("Backtest scores with the mean and standard deviation only");
+		}
+		if(options.offHeapDirectory != null){
+			throw new IllegalArgumentException("Networks cannot share an --off-heap directory; use --off-heap");
+		}
+
+		File batchLog = new File(dataset, "batch_log.json");
+		File streamLog = new File(dataset, "stream_log.json");
+		try(BufferedReader br = new BufferedReader(new FileReader(batchLog))){
+			String line = br.readLine();
+			if(line == null){
+				throw new IllegalArgumentException("The batch log is empty: "+batchLog);
+			}
+			Event.setParameters(line);
+		}
+		List<Setting> settings = new ArrayList<Setting>();
+		for(int D : integers(degrees, Event.D)){
+			for(int T : integers(sizes, Event.T)){
+				for(String k : multipliers.split(",")){
+					settings.add(new Setting(D, T, k.trim()));
+				}
+			}
+		}
+
+		Backtest backtest = new Backtest(threads);
+		long start = System.nanoTime();
+		long parseNanos;
+		try {
+			backtest.batch = backtest.load(batchLog, true);
+			backtest.stream = backtest.load(streamLog, false);
+			for(int i = 0; i < backtest.stream.size; i++){
+				if(backtest.stream.type[i] == Event.PURCHASE){
+					backtest.purchases++;
+				}
+			}
+			parseNanos = System.nanoTime() - start;
+			backtest.run(options, settings);
+		} finally {
+			backtest.pool.shutdown();
+		}
+		long wallNanos = System.nanoTime() - start - parseNanos;
+		System.out.print(backtest.report(settings, parseNanos, wallNanos));
+		if(json != null){
+			try(Writer w = new FileWriter(json)){
+				w.write(backtest.json(dataset, settings, parseNanos, wallNanos));
+			}
+		}
+	}
+
+	private static int[] integers(String list, int otherwise){
+		if(list == null){
+			return new int[]{otherwise};
+		}
+		String[] values = list.split(",");
+		int[] result = new int[values.length];
+		for(int i = 0; i < values.length; i++){
+			result[i] = Integer.parseInt(values[i].trim());
+		}
+		return result;
+	}
+
+	/**
+	 * Replays the logs with every setting: one network for each pair of D and T, run on the
+	 * pool, the most costly (by D, then T) first.
+	 * @param options The options for each network
+	 * @param settings The settings, grouped by D and T in the order they were made
+	 * @throws IOException
+	 */
+	void run(Detector.Options options, List<Setting> settings) throws IOException{
+		List<Setting[]> groups = new ArrayList<Setting[]>();
+		for(int i = 0; i < settings.size(); ){
+			int j = i;
+			while(j < settings.size() && settings.get(j).D == settings.get(i).D && settings.get(j).T == settings.get(i).T){
+				j++;
+			}
+			groups.add(settings.subList(i, j).toArray(new Setting[0]));
+			i = j;
+		}
+		groups.sort((a, b) -> a[0].D != b[0].D ? Integer.compare(b[0].D, a[0].D) : Integer.compare(b[0].T, a[0].T));
+		List<Future<Void>> runs = new ArrayList<Future<Void>>();
+		for(Setting[] group : groups){
+			runs.add(pool.submit(() -> {
+				replay(options, group);
+				return null;
+			}));
+		}
+		for(Future<Void> r : runs){
+			LogChunks.get(r);
+		}
+	}
+
+	/**
+	 * Replays the logs on a fresh network with the D and T of a group of settings, and
+	 * scores the stream's purchases with each of their multipliers.
+	 */
+	private void replay(Detector.Options options, Setting[] group) throws IOException{
+		long start = System.nanoTime();
+		Network n = options.newNetwork();
+		try {
+			n.setParameters(group[0].D, group[0].T, options.windowMinutes);
+			for(int i = 0; i < batch.size; i++){
+				batch.apply(n, i, false);
+			}
+			n.startStreaming();
+
+			//the totals of the window of each purchase in the block
+			long[] amounts = new long[BLOCK];
+			long[] counts = new long[BLOCK];
+			long[] sums = new long[BLOCK];
+			long[] squareSumHi = new long[BLOCK];
+			long[] squareSumLo = new long[BLOCK];
+			boolean[] flagged = new boolean[BLOCK];
+			int purchase = 0;
+			int j = 0;
+			for(int i = 0; i < stream.size; i++){
+				if(stream.type[i] != Event.PURCHASE){
+					stream.apply(n, i, true);
+					continue;
+				}
+				int u = stream.id1[i];
+				long time = stream.time[i];
+				long price = stream.value[i];
+				n.addPurchase(u, Purchase.orderKey(time, n.nextPurchaseNum(time)), price, true);
+				n.checkForOutlier(u, price);//brings the window up to date
+				amounts[j] = price;
+				counts[j] = n.snCount[u];
+				sums[j] = n.snSum[u];
+				squareSumHi[j] = n.snSquareSumHi[u];
+				squareSumLo[j] = n.snSquareSumLo[u];
+				purchase++;
+				if(++j == BLOCK){
+					score(group, amounts, counts, sums, squareSumHi, squareSumLo, purchase - j, j, flagged);
+					j = 0;
+				}
+			}
+			score(group, amounts, counts, sums, squareSumHi, squareSumLo, purchase - j, j, flagged);
+		} finally {
+			n.close();
+		}
+		long nanos = System.nanoTime() - start;
+		for(Setting s : group){
+			s.engineNanos = nanos;
+		}
+	}
+
+	private void score(Setting[] group, long[] amounts, long[] counts, long[] sums, long[] squareSumHi, long[] squareSumLo,
+			int first, int count, boolean[] flagged){
+		for(Setting s : group){
+			kernels.score(amounts, counts, sums, squareSumHi, squareSumLo, count, s.multiplierNum, s.multiplierDen, flagged);
+			for(int j = 0; j < count; j++){
+				if(flagged[j]){
+					s.flagged.set(first + j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses a log into an EventBuffer, in chunks on the pool (see LogChunks).
+	 * @param log A log file
+	 * @param header True if its first line is D and T, which is skipped
+	 * @return The events, in order
+	 * @throws IOException
+	 */
+	EventBuffer load(File log, boolean header) throws IOException{
+		List<EventBuffer> chunks = LogChunks.read(pool, threads, log, header,
+				bytes -> new EventBuffer((int)Math.min(1 << 20, bytes/64 + 1)),
+				(events, one) -> events.add(one.type[0], one.time[0], one.id1[0], one.value[0]));
+		long size = 0;
+		for(EventBuffer chunk : chunks){
+			size += chunk.size;
+		}
+		if(size > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("Too many events to hold at once: "+size+" in "+log);
+		}
+		EventBuffer events = new EventBuffer((int)size);
+		for(EventBuffer chunk : chunks){
+			events.addAll(chunk);
+		}
+		return events;
+	}
+
+	/**
+	 * Writes the results as text: a line per setting, with its flags and their overlap with
+	 * the baseline's.
+	 */
+	String report(List<Setting> settings, long parseNanos, long wallNanos){
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "Parsed %d batch and %d stream events (%d purchases) in %.1f s with %d threads%n",
+				batch.size, stream.size, purchases, parseNanos/1e9, threads));
+		long engineNanos = engineNanos(settings);
+		s.append(String.format(Locale.ROOT, "Replayed %d settings on %d networks in %.1f s (%.1f s of replays, %.1f at once on average)%n",
+				settings.size(), networks(settings), wallNanos/1e9, engineNanos/1e9, (double)engineNanos/Math.max(1, wallNanos)));
+		Setting baseline = settings.get(0);
+		s.append(String.format(Locale.ROOT, "%n%4s %5s %10s %8s %8s %10s %14s %8s %10s%n",
+				"D", "T", "multiplier", "flags", "both", "only here", "only baseline", "Jaccard", "replay s"));
+		for(Setting x : settings){
+			long both = intersection(x, baseline);
+			long here = x.flagged.cardinality();
+			long there = baseline.flagged.cardinality();
+			s.append(String.format(Locale.ROOT, "%4d %5d %10s %8d %8d %10d %14d %8s %10.1f%s%n",
+					x.D, x.T, x.multiplier, here, both, here - both, there - both, jaccard(both, here, there),
+					x.engineNanos/1e9, x == baseline ? "  (baseline)" : ""));
+		}
+		BitSet any = new BitSet();
+		BitSet all = (BitSet)baseline.flagged.clone();
+		for(Setting x : settings){
+			any.or(x.flagged);
+			all.and(x.flagged);
+		}
+		s.append(String.format(Locale.ROOT, "%nFlagged by every setting: %d; by at least one: %d%n", all.cardinality(), any.cardinality()));
+		return s.toString();
+	}
+
+	/**
+	 * Writes the results as JSON: the timings, each setting with its flags and its overlap
+	 * with the baseline, and the number of purchases flagged by each pair of settings.
+	 */
+	String json(File dataset, List<Setting> settings, long parseNanos, long wallNanos){
+		Setting baseline = settings.get(0);
+		StringBuilder s = new StringBuilder();
+		s.append("{\n");
+		s.append("  \"dataset\": \"").append(dataset.getPath().replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		s.append("  \"threads\": ").append(threads).append(",\n");
+		s.append("  \"kernels\": \"").append(kernels.name()).append("\",\n");
+		s.append("  \"batchEvents\": ").append(batch.size).append(",\n");
+		s.append("  \"streamEvents\": ").append(stream.size).append(",\n");
+		s.append("  \"purchases\": ").append(purchases).append(",\n");
+		s.append(String.format(Locale.ROOT, "  \"parseSeconds\": %.3f,%n", parseNanos/1e9));
+		s.append(String.format(Locale.ROOT, "  \"wallSeconds\": %.3f,%n", wallNanos/1e9));
+		s.append(String.format(Locale.ROOT, "  \"replaySeconds\": %.3f,%n", engineNanos(settings)/1e9));
+		s.append("  \"settings\": [");
+		for(int i = 0; i < settings.size(); i++){
+			Setting x = settings.get(i);
+			long both = intersection(x, baseline);
+			long here = x.flagged.cardinality();
+			long there = baseline.flagged.cardinality();
+			s.append(i == 0 ? "\n" : ",\n");
+			s.append(String.format(Locale.ROOT, "    {\"D\": %d, \"T\": %d, \"multiplier\": \"%s\", \"flags\": %d, \"both\": %d,"
+					+ " \"onlyHere\": %d, \"onlyBaseline\": %d, \"jaccard\": %s, \"replaySeconds\": %.3f}",
+					x.D, x.T, x.multiplier, here, both, here - both, there - both, jaccard(both, here, there), x.engineNanos/1e9));
+		}
+		s.append("\n  ],\n");
+		s.append("  \"overlaps\": [");
+		for(int i = 0; i < settings.size(); i++){
+			s.append(i == 0 ? "\n    [" : ",\n    [");
+			for(int j = 0; j < settings.size(); j++){
+				s.append(j == 0 ? "" : ", ").append(intersection(settings.get(i), settings.get(j)));
+			}
+			s.append(']');
+		}
+		s.append("\n  ]\n");
+		s.append("}\n");
+		return s.toString();
+	}
+
+	private static long intersection(Setting a, Setting b){
+		BitSet both = (BitSet)a.flagged.clone();
+		both.and(b.flagged);
+		return both.cardinality();
+	}
+
+	private static String jaccard(long both, long a, long b){
+		long union = a + b - both;
+		return union == 0 ? "1.000" : String.format(Locale.ROOT, "%.3f", (double)both/union);
+	}
+
+	private static long engineNanos(List<Setting> settings){
+		long nanos = 0;
+		for(int i = 0; i < settings.size(); i++){
+			if(i == 0 || !sameNetwork(settings.get(i), settings.get(i - 1))){
+				nanos += settings.get(i).engineNanos;
+			}
+		}
+		return nanos;
+	}
+
+	private static int networks(List<Setting> settings){
+		int count = 0;
+		for(int i = 0; i < settings.size(); i++){
+			if(i == 0 || !sameNetwork(settings.get(i), settings.get(i - 1))){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static boolean sameNetwork(Setting a, Setting b){
+		return a.D == b.D && a.T == b.T;
+	}
+
+}
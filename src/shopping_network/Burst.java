@@ -0,0 +1,320 @@
+package shopping_network;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies stream events in runs, so that events close together share their crawls.
+ *
+ * Events are held back until the run they belong to ends. A run is a sequence of
+ * consecutive purchases (at most 64), or a sequence of consecutive befriends and unfriends.
+ * The output is exactly the same as applying the events one at a time with Event.parseEvent.
+ *
+ * Purchases: the social networks of every buyer in the run are found in one multi-source
+ * crawl (see Network.socialNetworks). The purchases are then applied in order, each one
+ * pushed to the users whose mask has the buyer's bit set, and each one checked straight
+ * after it is added. A buyer whose history has to be rebuilt uses the same masks to find
+ * the members of their network, so no crawl is needed for the rebuild either. The friend
+ * lists do not change within a purchase run, so the masks stay correct for the whole run.
+ *
+ * Befriends and unfriends: the run is reduced to its net change first. Nothing reads the
+ * friend lists between two purchases, so only the last event for each pair of users
+ * matters, and a pair that ends the run as it started (a befriend followed by an unfriend,
+ * say) is dropped altogether. Every net change is applied without crawling, and the users
+ * it starts from are remembered. Then, one crawl of degree D-1 from all of them together
+ * flags the users whose networks may have changed. The crawl is done over the friendships
+ * from both before and after the run (friendships removed in the run are put back for the
+ * crawl): if a user's network differs between the two, a path within D of them uses a
+ * changed friendship in one or the other, so they are within D-1 of one of its ends.
+ * Flagging extra users only means their history is rebuilt exactly on their next purchase.
+ *
+ * Runs of purchases can be turned off (see the constructor), so that only befriends and
+ * unfriends are coalesced and each purchase is applied as it arrives.
+ * @author Kevin
+ *
+ */
+public class Burst {
+
+	public static final int MAX_PURCHASES = 64;//one bit per buyer in the crawl masks
+	public static final int MAX_EDGE_EVENTS = 4096;
+
+	private final Network n;
+	private final int maxPurchases;
+	private final EventBuffer pending = new EventBuffer(MAX_PURCHASES);
+	private final EventBuffer incoming = new EventBuffer(1);
+
+	private int[] buyers = new int[MAX_PURCHASES];
+	private int[] members = new int[16];
+	private int[] sources = new int[16];
+	private int[] changed = new int[16];//pairs (u, v) of friendships removed during a run
+	private long[] pairKeys = new long[16];//per event of a run, its pair of users, then sorted
+	private int[] pairEvents = new int[16];//parallel to pairKeys: the event's index in the run
+	private int[] pairScratch = new int[16];
+	private boolean[] net = new boolean[16];//per event of a run: true if it is applied
+
+	/**
+	 * @param n A Network that is ready for streaming
+	 */
+	public Burst(Network n){
+		this(n, true);
+	}
+
+	/**
+	 * @param n A Network that is ready for streaming
+	 * @param purchaseRuns False to apply each purchase as it arrives, and only coalesce
+	 *                     befriends and unfriends
+	 */
+	public Burst(Network n, boolean purchaseRuns){
+		this.n = n;
+		this.maxPurchases = purchaseRuns ? MAX_PURCHASES : 1;
+	}
+
+	/**
+	 * Parses a stream event and holds it back until its run ends.
+	 * Any flags for events of the previous run are added to the list.
+	 * @param event An event
+	 * @param flags A list of flags to add to
+	 */
+	public void offer(String event, List<String> flags){
+		incoming.clear();
+		if(!Event.parseEvent(event, incoming)){
+			return;
+		}
+		offer(incoming.type[0], incoming.time[0], incoming.id1[0], incoming.value[0], flags);
+	}
+
+	/**
+	 * Holds back a parsed stream event until its run ends.
+	 * Any flags for events of the previous run are added to the list.
+	 * @param type The type of the event
+	 * @param time The time in milliseconds
+	 * @param id1 The first user ID
+	 * @param value The amount in cents or the second user ID
+	 * @param flags A list of flags to add to
+	 */
+	public void offer(byte type, long time, int id1, long value, List<String> flags){
+		if(pending.size > 0){
+			boolean purchaseRun = pending.type[0] == Event.PURCHASE;
+			if(purchaseRun != (type == Event.PURCHASE)
+					|| pending.size == (purchaseRun ? maxPurchases : MAX_EDGE_EVENTS)){
+				flush(flags);
+			}
+		}
+		pending.add(type, time, id1, value);
+	}
+
+	/**
+	 * Applies every event held back.
+	 * @param flags A list of flags to add to
+	 */
+	public void flush(List<String> flags){
+		if(pending.size == 0){
+			return;
+		}
+		if(pending.size == 1){
+			String s = pending.apply(n, 0, true);
+			if(s != null){
+				flags.add(s);
+			}
+		} else if(pending.type[0] == Event.PURCHASE){
+			flushPurchases(flags);
+		} else {
+			flushFriendships();
+		}
+		pending.clear();
+	}
+
+	private void flushPurchases(List<String> flags){
+		int count = pending.size;
+		for(int i = 0; i < count; i++){
+			buyers[i] = pending.id1[i];
+			n.expandNetwork(buyers[i]);
+		}
+		if(n.metrics != null){
+			n.metrics.kind = Metrics.RUN;
+		}
+		int size = n.socialNetworks(buyers, count, n.degree());
+		int[] reached = n.msReached;
+		long[] masks = n.msMask;
+		for(int i = 0; i < count; i++){
+			int u = buyers[i];
+			long time = pending.time[i];
+			long price = pending.value[i];
+			int purchaseNum = n.nextPurchaseNum(time);
+			long key = Purchase.orderKey(time, purchaseNum);
+			long bit = 1L << i;
+
+			n.addPurchase(u, key, price, false);
+			FlightEvents.FanOut event = new FlightEvents.FanOut();
+			event.begin();
+			long start = 0;
+			if(n.metrics != null){
+				n.metrics.kind = Event.PURCHASE;
+				n.metrics.purchases++;
+				start = System.nanoTime();
+			}
+			if(n.shared != null){
+				n.shared.beginFanOut();
+			}
+			int memberCount = 0;
+			for(int j = 0; j < size; j++){
+				int v = reached[j];
+				if((masks[j] & bit) != 0){
+					n.pushSNPurchase(v, key, price, u);
+				}
+				if((masks[j] & bit) != 0 && v != u){
+					if(memberCount == members.length){
+						members = Arrays.copyOf(members, memberCount*2);
+					}
+					members[memberCount++] = v;
+				}
+			}
+			if(n.metrics != null){
+				n.metrics.fanOut.record(memberCount);
+				n.metrics.pushNanos.record(System.nanoTime() - start);
+			}
+			event.end();
+			if(event.shouldCommit()){
+				n.fannedOut(event, u, memberCount, price);
+			}
+
+			//rebuilt from the masks before the check, and counted as the check would count it
+			if(n.snChange[u]){
+				if(n.metrics != null){
+					start = System.nanoTime();
+					n.buildSNPurchaseHistory(u, members, 0, memberCount);
+					n.metrics.rebuildNanos.record(System.nanoTime() - start);
+					n.metrics.checksRebuilt++;
+				} else {
+					n.buildSNPurchaseHistory(u, members, 0, memberCount);
+				}
+			}
+			if(n.checkForOutlier(u, price)){
+				flags.add(Event.writePurchaseFlag(n, u, price, time, purchaseNum));
+			}
+		}
+	}
+
+	private void flushFriendships(){
+		findNetChanges();
+		int sourceCount = 0;
+		int changedCount = 0;
+		for(int i = 0; i < pending.size; i++){
+			n.tick(pending.time[i]);
+			if(!net[i]){
+				continue;
+			}
+			int a = pending.id1[i];
+			int b = (int)pending.value[i];
+			if(sourceCount + 2 > sources.length){
+				sources = Arrays.copyOf(sources, sources.length*2);
+			}
+			if(changedCount + 4 > changed.length){
+				changed = Arrays.copyOf(changed, changed.length*2);
+			}
+			if(pending.type[i] == Event.BEFRIEND){
+				if(n.addFriend(a, b, false)){
+					sources[sourceCount++] = a;
+					n.logAddedFriendship(a, b);
+				}
+				if(n.addFriend(b, a, false)){
+					sources[sourceCount++] = b;
+					n.logAddedFriendship(b, a);
+				}
+			} else {
+				if(n.removeFriend(a, b, false)){
+					sources[sourceCount++] = a;
+					changed[changedCount++] = a;
+					changed[changedCount++] = b;
+				}
+				if(n.removeFriend(b, a, false)){
+					sources[sourceCount++] = b;
+					changed[changedCount++] = b;
+					changed[changedCount++] = a;
+				}
+			}
+		}
+		if(sourceCount == 0){
+			return;
+		}
+
+		//put back the friendships removed during the run, keeping those actually re-added
+		int restoreCount = 0;
+		for(int i = 0; i < changedCount; i += 2){
+			if(n.addFriend(changed[i], changed[i + 1], false)){
+				changed[restoreCount++] = changed[i];
+				changed[restoreCount++] = changed[i + 1];
+			}
+		}
+		FlightEvents.EdgeInvalidation event = new FlightEvents.EdgeInvalidation();
+		event.begin();
+		if(n.metrics != null){
+			n.metrics.kind = Metrics.RUN;
+		}
+		int size = n.socialNetwork(sources, sourceCount, n.degree() - 1);
+		int[] sn = n.sn;
+		for(int i = 0; i < size; i++){
+			n.flagSN(sn[i]);
+		}
+		if(n.metrics != null){
+			n.metrics.usersFlagged += size;
+		}
+		event.end();
+		if(event.shouldCommit()){
+			event.user = -1;
+			event.friend = -1;
+			event.kind = "run";
+			event.degree = n.degree() - 1;
+			event.flagged = size;
+			event.commit();
+		}
+		for(int i = 0; i < restoreCount; i += 2){
+			n.removeFriend(changed[i], changed[i + 1], false);
+		}
+	}
+
+	/**
+	 * Marks, in net, the events of the run that make up its net change: for each pair of
+	 * users, the last event, unless the friendship ends the run as it started. The events
+	 * are grouped by pair by sorting their pair keys.
+	 */
+	private void findNetChanges(){
+		int count = pending.size;
+		if(pairKeys.length < count){
+			int length = Math.max(count, pairKeys.length*2);
+			pairKeys = new long[length];
+			pairEvents = new int[length];
+			pairScratch = new int[length];
+			net = new boolean[length];
+		}
+		for(int i = 0; i < count; i++){
+			int a = pending.id1[i];
+			int b = (int)pending.value[i];
+			pairKeys[i] = ((long)Math.min(a, b) << 32) | Math.max(a, b);
+			pairEvents[i] = i;
+			net[i] = false;
+		}
+		Network.quickSort(pairKeys, pairScratch, pairEvents, 0, count - 1);
+		int start = 0;
+		while(start < count){
+			int end = start;
+			int last = pairEvents[start];
+			while(end + 1 < count && pairKeys[end + 1] == pairKeys[start]){
+				end++;
+				last = Math.max(last, pairEvents[end]);
+			}
+			int a = pending.id1[last];
+			int b = (int)pending.value[last];
+			n.expandNetwork(Math.max(a, b));
+			boolean before = n.friends.contains(a, b);
+			boolean after = pending.type[last] == Event.BEFRIEND;
+			boolean applied = before != after || before != n.friends.contains(b, a);
+			net[last] = applied;
+			if(n.metrics != null){
+				n.metrics.edgesCancelled += applied ? end - start : end - start + 1;
+			}
+			start = end + 1;
+		}
+	}
+
+}
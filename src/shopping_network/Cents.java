@@ -0,0 +1,298 @@
+package shopping_network;
+
+import java.math.BigInteger;
+
+/**
+ * A holder for static methods dealing with amounts in fixed-point cents.
+ * Every amount is stored as a long number of cents, so 16.83 is stored as 1683.
+ *
+ * Sums of squares can outgrow a long once T gets large, so they are kept as
+ * unsigned 128-bit values split across two longs (a high and a low half).
+ * The methods here update and compare those halves without allocating.
+ *
+ * The outlier test is done entirely in integers. A purchase x is an outlier if
+ * x > mean + 3*sd, with mean = S/n and sd = sqrt(n*Q - S*S)/n, where S is the sum
+ * and Q is the sum of squares. Multiplying through by n gives n*x - S > 3*sqrt(n*Q - S*S),
+ * which is checked by squaring both sides. No rounding is involved, so long-running
+ * windows never drift.
+ * @author Kevin
+ *
+ */
+public class Cents {
+
+	/**
+	 * Parses a decimal amount such as "16.83" into cents.
+	 * Amounts with fewer than two decimal places are padded ("5" and "5.1" become
+	 * 500 and 510). Digits past the second decimal place are truncated, which matches
+	 * how amounts have always been written out.
+	 * @param s A String of digits with at most one decimal point
+	 * @return A long number of cents
+	 */
+	public static long parse(String s){
+		return parse(s, 0, s.length());
+	}
+
+	/**
+	 * Parses the amount in s between start (inclusive) and end (exclusive).
+	 * @param s A CharSequence
+	 * @param start The index of the first character
+	 * @param end The index after the last character
+	 * @return A long number of cents
+	 */
+	public static long parse(CharSequence s, int start, int end){
+		long whole = 0;
+		long fraction = 0;
+		int fractionDigits = -1;//-1 until the decimal point is seen
+		boolean digits = false;
+		for(int i = start; i < end; i++){
+			char c = s.charAt(i);
+			if(c >= '0' && c <= '9'){
+				digits = true;
+				if(fractionDigits < 0){
+					whole = whole*10 + (c - '0');
+					if(whole > Long.MAX_VALUE/1000){
+						throw new NumberFormatException("Amount too large: \""+s.subSequence(start, end)+"\"");
+					}
+				} else if(fractionDigits < 2){
+					fraction = fraction*10 + (c - '0');
+					fractionDigits++;
+				}
+			} else if(c == '.' && fractionDigits < 0){
+				fractionDigits = 0;
+			} else {
+				throw new NumberFormatException("Cannot parse amount: \""+s.subSequence(start, end)+"\"");
+			}
+		}
+		if(!digits){
+			throw new NumberFormatException("Cannot parse amount: \""+s.subSequence(start, end)+"\"");
+		}
+		while(fractionDigits < 2){
+			fraction *= 10;
+			fractionDigits++;
+		}
+		return whole*100 + fraction;
+	}
+
+	/**
+	 * Writes an amount in cents with exactly two decimal places;
+	 * e.g. 1500 is returned as 15.00 and 3110 is returned as 31.10.
+	 * @param cents A non-negative long
+	 * @return A String
+	 */
+	public static String format(long cents){
+		StringBuilder sb = new StringBuilder(24);
+		appendTo(sb, cents);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends an amount in cents with exactly two decimal places.
+	 * @param sb A StringBuilder
+	 * @param cents A non-negative long
+	 */
+	public static void appendTo(StringBuilder sb, long cents){
+		long fraction = cents % 100;
+		sb.append(cents / 100).append('.');
+		if(fraction < 10){
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+
+	/*
+	 * 128-bit sums of squares. The high half is always updated before the low half,
+	 * since the carry depends on the old low half:
+	 *     hi = Cents.addSquareHi(hi, lo, x);
+	 *     lo = Cents.addSquareLo(lo, x);
+	 */
+
+	/**
+	 * Gives the new high half of a sum of squares after adding x*x.
+	 * @param hi The current high half
+	 * @param lo The current low half
+	 * @param x An amount in cents
+	 * @return The new high half
+	 */
+	public static long addSquareHi(long hi, long lo, long x){
+		long sq = x*x;
+		long carry = Long.compareUnsigned(lo + sq, lo) < 0 ? 1 : 0;
+		return hi + Math.multiplyHigh(x, x) + carry;
+	}
+	public static long addSquareLo(long lo, long x){
+		return lo + x*x;
+	}
+
+	/**
+	 * Gives the new high half of a sum of squares after removing x*x.
+	 * @param hi The current high half
+	 * @param lo The current low half
+	 * @param x An amount in cents
+	 * @return The new high half
+	 */
+	public static long subtractSquareHi(long hi, long lo, long x){
+		long sq = x*x;
+		long borrow = Long.compareUnsigned(lo, sq) < 0 ? 1 : 0;
+		return hi - Math.multiplyHigh(x, x) - borrow;
+	}
+	public static long subtractSquareLo(long lo, long x){
+		return lo - x*x;
+	}
+
+
+	/**
+	 * Gives the mean of a window in cents, truncated.
+	 * @param n The number of purchases in the window (at least 1)
+	 * @param sum The sum of the window in cents
+	 * @return A long
+	 */
+	public static long mean(long n, long sum){
+		return sum / n;
+	}
+
+	/**
+	 * Gives the standard deviation of a window in cents, truncated.
+	 * Since n is an integer, floor(sqrt(V)/n) is the same as floor(isqrt(V)/n),
+	 * where V = n*Q - S*S.
+	 * @param n The number of purchases in the window (at least 1)
+	 * @param sum The sum of the window in cents
+	 * @param sqHi The high half of the sum of squares
+	 * @param sqLo The low half of the sum of squares
+	 * @return A long
+	 */
+	public static long sd(long n, long sum, long sqHi, long sqLo){
+		long vLo = varianceLo(n, sum, sqLo);
+		long vHi = varianceHi(n, sum, sqHi, sqLo);
+		return sqrt(vHi, vLo) / n;
+	}
+
+	/**
+	 * Determines if a purchase is more than 3 standard deviations above the mean of the window.
+	 * @param x The amount of the purchase in cents
+	 * @param n The number of purchases in the window (at least 1)
+	 * @param sum The sum of the window in cents
+	 * @param sqHi The high half of the sum of squares
+	 * @param sqLo The low half of the sum of squares
+	 * @return True if x > mean + 3*sd
+	 */
+	public static boolean isOutlier(long x, long n, long sum, long sqHi, long sqLo){
+		return isOutlier(x, n, sum, sqHi, sqLo, 3);
+	}
+
+	/**
+	 * Determines if a purchase is more than k standard deviations above the mean of the window.
+	 * @param x The amount of the purchase in cents
+	 * @param n The number of purchases in the window (at least 1)
+	 * @param sum The sum of the window in cents
+	 * @param sqHi The high half of the sum of squares
+	 * @param sqLo The low half of the sum of squares
+	 * @param k A small positive integer multiplier
+	 * @return True if x > mean + k*sd
+	 */
+	public static boolean isOutlier(long x, long n, long sum, long sqHi, long sqLo, long k){
+		long d = n*x - sum;
+		if(d <= 0){
+			return false;
+		}
+		long vLo = varianceLo(n, sum, sqLo);
+		long vHi = varianceHi(n, sum, sqHi, sqLo);
+		//compare d*d against k*k*V
+		long k2 = k*k;
+		long rLo = vLo*k2;
+		long rHi = vHi*k2 + unsignedMultiplyHigh(vLo, k2);
+		long lLo = d*d;
+		long lHi = Math.multiplyHigh(d, d);
+		return compare(lHi, lLo, rHi, rLo) > 0;
+	}
+
+	/**
+	 * Determines if a purchase is more than kNum/kDen standard deviations above the mean
+	 * of the window, for any positive multiplier that is a fraction (such as 5/2). This checks
+	 * (n*x - S)^2 * kDen^2 > kNum^2 * V in 128 bits, or with BigIntegers in the rare case
+	 * where a side does not fit.
+	 * @param x The amount of the purchase in cents
+	 * @param n The number of purchases in the window (at least 1)
+	 * @param sum The sum of the window in cents
+	 * @param sqHi The high half of the sum of squares
+	 * @param sqLo The low half of the sum of squares
+	 * @param kNum The numerator of the multiplier, positive
+	 * @param kDen The denominator of the multiplier, positive
+	 * @return True if x > mean + (kNum/kDen)*sd
+	 */
+	public static boolean isOutlier(long x, long n, long sum, long sqHi, long sqLo, long kNum, long kDen){
+		long d = n*x - sum;
+		if(d <= 0){
+			return false;
+		}
+		long vLo = varianceLo(n, sum, sqLo);
+		long vHi = varianceHi(n, sum, sqHi, sqLo);
+		long lLo = d*d;
+		long lHi = Math.multiplyHigh(d, d);
+		long den2 = kDen*kDen;
+		long num2 = kNum*kNum;
+		if(lHi < Long.MAX_VALUE/den2 - 1 && vHi < Long.MAX_VALUE/num2 - 1){
+			long aLo = lLo*den2;
+			long aHi = lHi*den2 + unsignedMultiplyHigh(lLo, den2);
+			long bLo = vLo*num2;
+			long bHi = vHi*num2 + unsignedMultiplyHigh(vLo, num2);
+			return compare(aHi, aLo, bHi, bLo) > 0;
+		}
+		BigInteger left = toBigInteger(lHi, lLo).multiply(BigInteger.valueOf(den2));
+		BigInteger right = toBigInteger(vHi, vLo).multiply(BigInteger.valueOf(num2));
+		return left.compareTo(right) > 0;
+	}
+
+	private static BigInteger toBigInteger(long hi, long lo){
+		BigInteger low = BigInteger.valueOf(lo >>> 1).shiftLeft(1).or(BigInteger.valueOf(lo & 1));
+		return BigInteger.valueOf(hi).shiftLeft(64).or(low);
+	}
+
+	/*
+	 * V = n*Q - S*S, the variance scaled by n*n. It is never negative.
+	 */
+	private static long varianceLo(long n, long sum, long sqLo){
+		return sqLo*n - sum*sum;
+	}
+	private static long varianceHi(long n, long sum, long sqHi, long sqLo){
+		long nqLo = sqLo*n;
+		long nqHi = sqHi*n + unsignedMultiplyHigh(sqLo, n);
+		long ssLo = sum*sum;
+		long ssHi = Math.multiplyHigh(sum, sum);
+		long borrow = Long.compareUnsigned(nqLo, ssLo) < 0 ? 1 : 0;
+		return nqHi - ssHi - borrow;
+	}
+
+	/**
+	 * The integer square root of an unsigned 128-bit value, below 2^126.
+	 * @param hi The high half
+	 * @param lo The low half
+	 * @return floor(sqrt(hi*2^64 + lo))
+	 */
+	static long sqrt(long hi, long lo){
+		double approx = hi*18446744073709551616.0 + (lo >>> 1)*2.0 + (lo & 1);
+		long r = (long)Math.sqrt(approx);
+		//the estimate is off by at most a few units; fix it exactly
+		while(r > 0 && compare(Math.multiplyHigh(r, r), r*r, hi, lo) > 0){
+			r--;
+		}
+		while(true){
+			long s = r + 1;
+			if(compare(Math.multiplyHigh(s, s), s*s, hi, lo) > 0){
+				return r;
+			}
+			r = s;
+		}
+	}
+
+	static int compare(long aHi, long aLo, long bHi, long bLo){
+		if(aHi != bHi){
+			return Long.compareUnsigned(aHi, bHi);
+		}
+		return Long.compareUnsigned(aLo, bLo);
+	}
+
+	static long unsignedMultiplyHigh(long a, long b){
+		return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+	}
+
+}
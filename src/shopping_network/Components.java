@@ -0,0 +1,158 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * The connected components of the friendship graph, tracked as friendships change.
+ *
+ * Components are kept in a union-find forest: a befriend between two components links
+ * their roots (the smaller under the larger), and every root keeps the size of its
+ * component and a circular list of its users (next), so the users of a component can
+ * be listed without a crawl. An unfriend cannot be undone in a union-find forest, so it
+ * only marks the component as possibly split; the component is split for real (see
+ * Network.resplitComponent) the next time it is needed.
+ *
+ * Each root also keeps an upper bound on the diameter of its component: the most degrees
+ * of separation between any two of its users. A single user has diameter 0. Joining two
+ * components with diameters a and b by one friendship gives at most a + b + 1, and a
+ * friendship within a component can only bring users closer, so the bound stays valid
+ * without any crawl until a friendship is removed. A component whose diameter is at most
+ * D is the social network of each of its users (see Network.joinComponentWindow).
+ * @author Kevin
+ *
+ */
+class Components {
+
+	static final int LIMIT = 4096;//larger components are never split or tested
+	static final int UNKNOWN = Integer.MAX_VALUE;//a diameter with no bound
+
+	//per user
+	int[] parent = new int[0];
+	int[] next = new int[0];//the next user in the component's circular list
+
+	//per root
+	int[] size = new int[0];
+	int[] diameter = new int[0];//an upper bound, or UNKNOWN
+	boolean[] split = new boolean[0];//a friendship was removed; the component may have split
+	boolean[] tested = new boolean[0];//tested against D since the component last changed
+	boolean[] blocked = new boolean[0];//no component window until the component next changes
+	int[] window = new int[0];//the component window (see SharedWindows), or -1
+
+	private int numUsers = 0;
+
+	/**
+	 * Adds the users below the given ID, each as a component of their own.
+	 * @param numUsers The new number of users
+	 */
+	void expand(int numUsers){
+		if(numUsers <= this.numUsers){
+			return;
+		}
+		if(numUsers > parent.length){
+			int length = Math.max(numUsers, parent.length*2);
+			parent = Arrays.copyOf(parent, length);
+			next = Arrays.copyOf(next, length);
+			size = Arrays.copyOf(size, length);
+			diameter = Arrays.copyOf(diameter, length);
+			split = Arrays.copyOf(split, length);
+			tested = Arrays.copyOf(tested, length);
+			blocked = Arrays.copyOf(blocked, length);
+			window = Arrays.copyOf(window, length);
+		}
+		for(int u = this.numUsers; u < numUsers; u++){
+			reset(u);
+		}
+		this.numUsers = numUsers;
+	}
+
+	/**
+	 * Makes a user a component of their own.
+	 * @param u A user ID
+	 */
+	void reset(int u){
+		parent[u] = u;
+		next[u] = u;
+		size[u] = 1;
+		diameter[u] = 0;
+		split[u] = false;
+		tested[u] = false;
+		blocked[u] = false;
+		window[u] = -1;
+	}
+
+	/**
+	 * Finds the root of a user's component, halving the path on the way.
+	 * @param u A user ID
+	 * @return A user ID
+	 */
+	int find(int u){
+		int[] p = parent;
+		while(p[u] != u){
+			p[u] = p[p[u]];
+			u = p[u];
+		}
+		return u;
+	}
+
+	/**
+	 * Joins two components, linked by a new friendship.
+	 * @param a The root of one component
+	 * @param b The root of another component
+	 * @return The root of the joined component
+	 */
+	int union(int a, int b){
+		if(size[a] < size[b]){
+			int t = a;
+			a = b;
+			b = t;
+		}
+		parent[b] = a;
+		size[a] += size[b];
+		int t = next[a];//splice the two circular lists
+		next[a] = next[b];
+		next[b] = t;
+		long d = (long)diameter[a] + diameter[b] + 1;
+		diameter[a] = diameter[a] == UNKNOWN || diameter[b] == UNKNOWN ? UNKNOWN : (int)Math.min(d, UNKNOWN - 1);
+		split[a] |= split[b];
+		changed(a);
+		return a;
+	}
+
+	/**
+	 * Puts a user, who is a component of their own, into the component with the given root.
+	 * @param u A user ID
+	 * @param root The root of a component
+	 */
+	void attach(int u, int root){
+		parent[u] = root;
+		size[root]++;
+		next[u] = next[root];
+		next[root] = u;
+	}
+
+	/**
+	 * Notes that the friendships within a component have changed.
+	 * @param r The root of the component
+	 */
+	void changed(int r){
+		tested[r] = false;
+		blocked[r] = false;
+	}
+
+	/**
+	 * Lists the users of a component.
+	 * @param r The root of the component
+	 * @param out An array of length at least size[r]
+	 * @return The number of users listed
+	 */
+	int members(int r, int[] out){
+		int n = 0;
+		int u = r;
+		do {
+			out[n++] = u;
+			u = next[u];
+		} while(u != r);
+		return n;
+	}
+
+}
@@ -0,0 +1,324 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Friend lists stored as a frozen, compressed graph plus a small mutable overlay.
+ *
+ * The frozen graph is in compressed sparse row form: every friend list is written one
+ * after another into a single byte array, and offsets[u] gives the start of u's list.
+ * A list is its length followed by the friend IDs in increasing order, with each ID
+ * stored as the gap from the previous one. All of these are written as varints (7 bits
+ * per byte, the high bit marking that another byte follows), so a typical list takes
+ * one or two bytes per friend rather than the four of an int. Reading a list streams
+ * through consecutive bytes.
+ *
+ * Changes since the last compaction are kept in the overlay: friends added to a list,
+ * and friends removed from the frozen part of a list. Once the overlay grows past a
+ * fraction of the frozen graph, the whole graph is rewritten with the changes applied.
+ * A compaction is also done when the stream phase begins (see Network.startStreaming).
+ *
+ * In the sample data only about a fifth of stream events change friendships, so after
+ * the batch phase nearly all reads are from the frozen part.
+ * @author Kevin
+ *
+ */
+public class CompressedAdjacency extends Adjacency {
+
+	private static final int MIN_COMPACTION = 1 << 16;//overlay entries
+	private static final int COMPACTION_RATIO = 8;//compact when the overlay is 1/8 the frozen graph
+
+	private int numUsers = 0;
+	private int frozenUsers = 0;//users with an entry in offsets
+	private byte[] data = new byte[0];
+	private int[] offsets = new int[1];
+	private long frozenEdges = 0;
+
+	//overlay lists; element 0 is the number of entries that follow
+	private int[][] added = new int[0][];
+	private int[][] removed = new int[0][];
+	private long overlayEntries = 0;
+
+	@Override
+	public void expand(int numUsers){
+		if(numUsers > added.length){
+			int length = Math.max(numUsers, added.length*2);
+			added = Arrays.copyOf(added, length);
+			removed = Arrays.copyOf(removed, length);
+		}
+		if(numUsers > this.numUsers){
+			this.numUsers = numUsers;
+		}
+	}
+
+	@Override
+	public int degree(int u){
+		return frozenDegree(u) - count(removed[u]) + count(added[u]);
+	}
+
+	private int frozenDegree(int u){
+		if(u >= frozenUsers){
+			return 0;
+		}
+		return readVarint(data, offsets[u]);
+	}
+
+	@Override
+	public int neighbor(int u, int i){
+		int[] buffer = new int[degree(u)];//random access is only used outside the event path
+		neighbors(u, buffer);
+		return buffer[i];
+	}
+
+	@Override
+	public int neighbors(int u, int[] buffer){
+		int n = 0;
+		int[] r = removed[u];
+		int removedCount = count(r);
+		if(u < frozenUsers){
+			byte[] d = data;
+			int pos = offsets[u];
+			//inlined varint reads; see readVarint
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = d[pos++];
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			int v = 0;
+			for(int i = 0; i < length; i++){
+				int gap = 0;
+				shift = 0;
+				do {
+					b = d[pos++];
+					gap |= (b & 0x7f) << shift;
+					shift += 7;
+				} while(b < 0);
+				v += gap;
+				if(removedCount == 0 || indexOf(r, v) < 0){
+					buffer[n++] = v;
+				}
+			}
+		}
+		int[] a = added[u];
+		int addedCount = count(a);
+		if(addedCount > 0){
+			System.arraycopy(a, 1, buffer, n, addedCount);
+			n += addedCount;
+		}
+		return n;
+	}
+
+	@Override
+	public int firstNeighborIn(int u, long[] bits){
+		int[] a = added[u];
+		for(int i = 1; i <= count(a); i++){
+			int v = a[i];
+			if((bits[v >>> 6] & (1L << v)) != 0){
+				return v;
+			}
+		}
+		if(u >= frozenUsers){
+			return -1;
+		}
+		int[] r = removed[u];
+		int pos = offsets[u];
+		int length = readVarint(data, pos);
+		pos += varintLength(length);
+		int v = 0;
+		for(int i = 0; i < length; i++){
+			int gap = readVarint(data, pos);
+			pos += varintLength(gap);
+			v += gap;
+			if((bits[v >>> 6] & (1L << v)) != 0 && indexOf(r, v) < 0){
+				return v;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public boolean contains(int u, int v){
+		if(indexOf(added[u], v) >= 0){
+			return true;
+		}
+		return frozenContains(u, v) && indexOf(removed[u], v) < 0;
+	}
+
+	private boolean frozenContains(int u, int v){
+		if(u >= frozenUsers){
+			return false;
+		}
+		int pos = offsets[u];
+		int length = readVarint(data, pos);
+		pos += varintLength(length);
+		int w = 0;
+		for(int i = 0; i < length; i++){
+			int gap = readVarint(data, pos);
+			pos += varintLength(gap);
+			w += gap;
+			if(w >= v){
+				return w == v;//lists are sorted
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void add(int u, int v){
+		int i = indexOf(removed[u], v);
+		if(i >= 0){
+			removeAt(removed[u], i);//v is still in the frozen list
+			overlayEntries--;
+		} else {
+			added[u] = append(added[u], v);
+			overlayEntries++;
+			maybeCompact();
+		}
+	}
+
+	@Override
+	public boolean remove(int u, int v){
+		int i = indexOf(added[u], v);
+		if(i >= 0){
+			removeAt(added[u], i);
+			overlayEntries--;
+			return true;
+		}
+		if(frozenContains(u, v) && indexOf(removed[u], v) < 0){
+			removed[u] = append(removed[u], v);
+			overlayEntries++;
+			maybeCompact();
+			return true;
+		}
+		return false;
+	}
+
+	private void maybeCompact(){
+		if(overlayEntries > MIN_COMPACTION && overlayEntries*COMPACTION_RATIO > frozenEdges){
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the frozen graph with the overlay applied, and clears the overlay.
+	 */
+	@Override
+	public void compact(){
+		if(overlayEntries == 0 && frozenUsers == numUsers){
+			return;
+		}
+		int[] newOffsets = new int[numUsers + 1];
+		byte[] out = new byte[Math.max(16, data.length + (int)Math.min(Integer.MAX_VALUE/2, overlayEntries*5 + numUsers))];
+		int pos = 0;
+		long edges = 0;
+		int[] buffer = new int[16];
+		for(int u = 0; u < numUsers; u++){
+			int degree = degree(u);
+			if(degree > buffer.length){
+				buffer = new int[Math.max(degree, buffer.length*2)];
+			}
+			neighbors(u, buffer);
+			Arrays.sort(buffer, 0, degree);
+			if((long)pos + 5L*(degree + 1) > out.length){
+				long newLength = Math.max((long)pos + 5L*(degree + 1), (long)out.length*2);
+				if(newLength > Integer.MAX_VALUE - 8){
+					if((long)pos + 5L*(degree + 1) > Integer.MAX_VALUE - 8){
+						throw new IllegalStateException("Friend lists do not fit in one compressed array");
+					}
+					newLength = Integer.MAX_VALUE - 8;
+				}
+				out = Arrays.copyOf(out, (int)newLength);
+			}
+			newOffsets[u] = pos;
+			pos = writeVarint(out, pos, degree);
+			int previous = 0;
+			for(int i = 0; i < degree; i++){
+				pos = writeVarint(out, pos, buffer[i] - previous);
+				previous = buffer[i];
+			}
+			edges += degree;
+			added[u] = null;
+			removed[u] = null;
+		}
+		newOffsets[numUsers] = pos;
+		data = Arrays.copyOf(out, pos);
+		offsets = newOffsets;
+		frozenUsers = numUsers;
+		frozenEdges = edges;
+		overlayEntries = 0;
+	}
+
+	/**
+	 * Gives the number of bytes used by the frozen graph.
+	 * @return A long
+	 */
+	public long getFrozenBytes(){
+		return data.length + 4L*offsets.length;
+	}
+
+
+	private static int count(int[] list){
+		return list == null ? 0 : list[0];
+	}
+
+	private static int indexOf(int[] list, int v){
+		if(list == null){
+			return -1;
+		}
+		for(int i = 1; i <= list[0]; i++){
+			if(list[i] == v){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int[] append(int[] list, int v){
+		if(list == null){
+			list = new int[4];
+		} else if(list[0] + 1 == list.length){
+			list = Arrays.copyOf(list, list.length*2);
+		}
+		list[0]++;
+		list[list[0]] = v;
+		return list;
+	}
+
+	private static void removeAt(int[] list, int i){
+		list[i] = list[list[0]];//order within the overlay does not matter
+		list[0]--;
+	}
+
+	static int readVarint(byte[] d, int pos){
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = d[pos++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while(b < 0);
+		return value;
+	}
+
+	static int varintLength(int value){
+		int length = 1;
+		while((value >>>= 7) != 0){
+			length++;
+		}
+		return length;
+	}
+
+	static int writeVarint(byte[] d, int pos, int value){
+		while((value & ~0x7f) != 0){
+			d[pos++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		d[pos++] = (byte)value;
+		return pos;
+	}
+
+}
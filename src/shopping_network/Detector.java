@@ -6,6 +6,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The main class for the algorithm.
@@ -15,6 +19,13 @@ import java.io.IOException;
  */
 public class Detector {
 	
+	//how stream events are grouped (see networkUpdates)
+	public static final int NO_RUNS = 0;
+	public static final int EDGE_RUNS = 1;
+	public static final int ALL_RUNS = 2;
+
+	static final int REORDER_CAPACITY = 1 << 20;//events held at most, when reordering
+
 	/**
 	 * Runs the anomalous file detector for log files in the given input directory.
 	 * Prints the files to a file in the given output directory.
@@ -22,12 +33,36 @@ public class Detector {
 	 * the output directory.
 	 * In the input directory, there should be files "batch_log.json" and "stream_log.json".
 	 * A file "flagged_purchases.json" will be made or rewritten in the output directory.
+	 * 
+	 * Any further arguments are options:
+	 *   --off-heap          keep friend lists and purchase histories outside the heap
+	 *   --off-heap=<dir>    the same, backed by files in the given directory
+	 *   --compressed-friends  freeze friend lists into a compressed graph after the batch phase
+	 *   --bursts            apply runs of stream events together, sharing their crawls (see Burst)
+	 *   --coalesce-edges    only apply runs of befriends and unfriends together, as their net change
+	 *   --share-windows     users with identical social networks share one window (see SharedWindows)
+	 *   --component-windows  users of a component within D of each other share one window,
+	 *                       with no crawls (see Components)
+	 *   --window-minutes=<N>  only use purchases made in the last N minutes (and at most T)
+	 *   --rule=median-mad   flag purchases more than 3 scaled MADs above the median instead
+	 *   --rule=percentile=<p>  flag purchases above the p-th percentile instead
+	 *   --multiplier=<k>    flag purchases more than k deviations above instead of 3
+	 *                       (with the mean-sd and median-mad rules; k may be a decimal)
+	 *   --max-lateness=<s>  put stream events that arrive up to s seconds out of order back
+	 *                       in order before applying them (see ReorderBuffer)
+	 *   --late-events=drop|adjust  what to do with events later than that (default drop)
+	 *   --sn-memory=<MB>    bound the memory of social network histories, dropping the least
+	 *                       recently used ones and rebuilding them on demand
+	 *   --metrics           count crawls, rebuilds, fan-out, flags and stage latencies (see
+	 *                       Metrics), and register them with JMX as shopping_network:type=Metrics
+	 *   --metrics-file=<file>  also write them to a file every --metrics-interval=<s> seconds
+	 *                       (default 10), and once more at the end
 	 * @param args An array of strings
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException{
-		if(args.length != 2){
-			throw new IllegalArgumentException("Input not valid. Please give exactly two parameters."
+		if(args.length < 2){
+			throw new IllegalArgumentException("Input not valid. Please give at least two parameters."
 					+ " These parameters should be the input directory followed by the output directory.");
 		}
 		//File testDir1 = new File(args[0]);
@@ -37,7 +72,36 @@ public class Detector {
 		//}
 		//testDir2.mkdir();//This should throw an exception if the directory is not valid
 		
-		networkUpdates(args[0], args[1]);
+		Options options = Options.parse(args, 2);
+		Network n = options.newNetwork();
+		String batchPath = args[0] + File.separator + "batch_log.json";
+		String streamPath = args[0] + File.separator + "stream_log.json";
+		ReorderBuffer reorder = options.newReorderBuffer();
+		Metrics metrics = n.getMetrics();
+		if(metrics != null){
+			metrics.register();
+			if(options.metricsFile != null){
+				metrics.startDump(options.metricsFile, options.metricsInterval);
+			}
+		}
+		try {
+			networkUpdates(n, batchPath, streamPath, args[1], options.runs, reorder);
+		} finally {
+			n.close();
+			if(metrics != null){
+				metrics.stopDump();
+			}
+		}
+		if(options.snMemory > 0){
+			System.err.printf("Social network memory: %d histories dropped to stay under %.0f MB%n",
+					n.getSNEvictions(), options.snMemory/(1024.0*1024));
+		}
+		if(reorder != null){
+			System.err.printf("Reordering: %d events out of order (up to %d ms), %d late, %d dropped, %d released early;"
+					+ " held %.1f us on average, %.1f us at most%n",
+					reorder.getOutOfOrder(), reorder.getMaxDisorder(), reorder.getLate(), reorder.getDropped(),
+					reorder.getForced(), reorder.getMeanHoldNanos()/1000, reorder.getMaxHoldNanos()/1000.0);
+		}
 		//TODO: make sure input is valid here. Check that directories and files exist
 		//and return appropriate exceptions if they don't.
 	}
@@ -62,8 +126,47 @@ public class Detector {
 	 * @throws IOException
 	 */
 	public static void networkUpdates(String batchPath, String streamPath, String outDirectory) throws IOException{
-		Network n = new Network();
-		
+		networkUpdates(new Network(), batchPath, streamPath, outDirectory);
+	}
+	
+	/**
+	 * Runs networkUpdates on the given (empty) network.
+	 * @param n A Network
+	 * @param batchPath The file path for the batch log
+	 * @param streamPath The file path for the stream log
+	 * @param outDirectory The output directory
+	 * @throws IOException
+	 */
+	public static void networkUpdates(Network n, String batchPath, String streamPath, String outDirectory) throws IOException{
+		networkUpdates(n, batchPath, streamPath, outDirectory, false);
+	}
+	
+	/**
+	 * Runs networkUpdates on the given (empty) network.
+	 * @param n A Network
+	 * @param batchPath The file path for the batch log
+	 * @param streamPath The file path for the stream log
+	 * @param outDirectory The output directory
+	 * @param bursts True to apply runs of stream events together (see Burst)
+	 * @throws IOException
+	 */
+	public static void networkUpdates(Network n, String batchPath, String streamPath, String outDirectory, boolean bursts) throws IOException{
+		networkUpdates(n, batchPath, streamPath, outDirectory, bursts ? ALL_RUNS : NO_RUNS, null);
+	}
+
+	/**
+	 * Runs networkUpdates on the given (empty) network.
+	 * @param n A Network
+	 * @param batchPath The file path for the batch log
+	 * @param streamPath The file path for the stream log
+	 * @param outDirectory The output directory
+	 * @param runs NO_RUNS, EDGE_RUNS to apply runs of befriends and unfriends together, or
+	 *             ALL_RUNS to apply runs of purchases together too (see Burst)
+	 * @param reorder A buffer that puts stream events in time order first, or null if they are in order
+	 * @throws IOException
+	 */
+	public static void networkUpdates(Network n, String batchPath, String streamPath, String outDirectory, int runs,
+			ReorderBuffer reorder) throws IOException{
 		String line = null;
 		BufferedReader br = new BufferedReader(new FileReader(batchPath));
 		
@@ -78,6 +181,7 @@ public class Detector {
 			Event.parseEvent(n, line, false);
 		}
 		br.close();
+		n.startStreaming();
 		
 		//File outFile = new File(outDirectory+System.lineSeparator()+"flagged_purchases.json");
 		//outFile.createNewFile();//doesn't create new one if it already exists
@@ -87,16 +191,238 @@ public class Detector {
 		
 		line = null;
 		BufferedReader br2 = new BufferedReader(new FileReader(streamPath));
-		while((line = br2.readLine()) != null){
-			String s = Event.parseEvent(n, line, true);
-			if(s != null){
-				bw.write(s);
-				bw.newLine();
+		if(reorder != null){
+			reorder.advanceTo(n.now());
+			Burst burst = runs == NO_RUNS ? null : new Burst(n, runs == ALL_RUNS);
+			ArrayList<String> flags = new ArrayList<String>();
+			EventBuffer incoming = new EventBuffer(1);
+			EventBuffer ready = new EventBuffer();
+			while((line = br2.readLine()) != null){
+				incoming.clear();
+				if(Event.parseEvent(line, incoming)){
+					reorder.offer(incoming.type[0], incoming.time[0], incoming.id1[0], incoming.value[0], ready);
+					applyReleased(n, ready, burst, flags);
+					writeFlags(bw, flags);
+				}
+			}
+			reorder.flush(ready);
+			applyReleased(n, ready, burst, flags);
+			if(burst != null){
+				burst.flush(flags);
+			}
+			writeFlags(bw, flags);
+		} else if(runs != NO_RUNS){
+			Burst burst = new Burst(n, runs == ALL_RUNS);
+			ArrayList<String> flags = new ArrayList<String>();
+			while((line = br2.readLine()) != null){
+				burst.offer(line, flags);
+				writeFlags(bw, flags);
+			}
+			burst.flush(flags);
+			writeFlags(bw, flags);
+		} else {
+			while((line = br2.readLine()) != null){
+				String s = Event.parseEvent(n, line, true);
+				if(s != null){
+					bw.write(s);
+					bw.newLine();
+				}
 			}
 		}
 		//bw.newLine();
 		br2.close();
 		bw.close();
 	}
+	
+	private static void applyReleased(Network n, EventBuffer ready, Burst burst, List<String> flags){
+		for(int i = 0; i < ready.size; i++){
+			if(burst != null){
+				burst.offer(ready.type[i], ready.time[i], ready.id1[i], ready.value[i], flags);
+			} else {
+				String s = ready.apply(n, i, true);
+				if(s != null){
+					flags.add(s);
+				}
+			}
+		}
+		ready.clear();
+	}
+
+	private static void writeFlags(BufferedWriter bw, ArrayList<String> flags) throws IOException{
+		for(int i = 0; i < flags.size(); i++){
+			bw.write(flags.get(i));
+			bw.newLine();
+		}
+		flags.clear();
+	}
+
+	/**
+	 * The options given to Detector after the input and output directories (see main),
+	 * kept apart so that other tools (such as Replay) can set up the engine the same way.
+	 */
+	static final class Options {
+
+		boolean offHeap = false;
+		File offHeapDirectory = null;
+		boolean compressedFriends = false;
+		int runs = NO_RUNS;
+		boolean shareWindows = false;
+		boolean componentWindows = false;
+		long snMemory = 0;
+		long maxLateness = -1;
+		int latePolicy = ReorderBuffer.DROP;
+		int windowMinutes = 0;
+		int rule = Network.MEAN_SD;
+		double percentile = 0;
+		long multiplierNum = 3;
+		long multiplierDen = 1;
+		boolean metrics = false;
+		File metricsFile = null;
+		long metricsInterval = 10000;//in milliseconds
+
+		/**
+		 * Reads options.
+		 * @param args An array of strings
+		 * @param from The index of the first option
+		 * @return The options
+		 */
+		static Options parse(String[] args, int from){
+			Options o = new Options();
+			for(int i = from; i < args.length; i++){
+				if(args[i].equals("--off-heap")){
+					o.offHeap = true;
+				} else if(args[i].startsWith("--off-heap=")){
+					o.offHeap = true;
+					o.offHeapDirectory = new File(args[i].substring("--off-heap=".length()));
+				} else if(args[i].equals("--compressed-friends")){
+					o.compressedFriends = true;
+				} else if(args[i].equals("--bursts")){
+					o.runs = ALL_RUNS;
+				} else if(args[i].equals("--coalesce-edges")){
+					o.runs = Math.max(o.runs, EDGE_RUNS);
+				} else if(args[i].equals("--share-windows")){
+					o.shareWindows = true;
+				} else if(args[i].equals("--component-windows")){
+					o.componentWindows = true;
+				} else if(args[i].startsWith("--window-minutes=")){
+					o.windowMinutes = Integer.parseInt(args[i].substring("--window-minutes=".length()));
+					if(o.windowMinutes <= 0){
+						throw new IllegalArgumentException("Time window must be positive: \""+args[i]+"\"");
+					}
+				} else if(args[i].startsWith("--max-lateness=")){
+					o.maxLateness = (long)(Double.parseDouble(args[i].substring("--max-lateness=".length()))*1000);
+					if(o.maxLateness < 0){
+						throw new IllegalArgumentException("Lateness must not be negative: \""+args[i]+"\"");
+					}
+				} else if(args[i].equals("--late-events=drop")){
+					o.latePolicy = ReorderBuffer.DROP;
+				} else if(args[i].equals("--late-events=adjust")){
+					o.latePolicy = ReorderBuffer.ADJUST;
+				} else if(args[i].equals("--rule=mean-sd")){
+					o.rule = Network.MEAN_SD;
+				} else if(args[i].equals("--rule=median-mad")){
+					o.rule = Network.MEDIAN_MAD;
+				} else if(args[i].startsWith("--rule=percentile=")){
+					o.rule = Network.PERCENTILE;
+					o.percentile = Double.parseDouble(args[i].substring("--rule=percentile=".length()));
+				} else if(args[i].startsWith("--multiplier=")){
+					long[] k = parseMultiplier(args[i].substring("--multiplier=".length()));
+					o.multiplierNum = k[0];
+					o.multiplierDen = k[1];
+				} else if(args[i].startsWith("--sn-memory=")){
+					o.snMemory = (long)(Double.parseDouble(args[i].substring("--sn-memory=".length()))*1024*1024);
+					if(o.snMemory <= 0){
+						throw new IllegalArgumentException("Memory limit must be positive: \""+args[i]+"\"");
+					}
+				} else if(args[i].equals("--metrics")){
+					o.metrics = true;
+				} else if(args[i].startsWith("--metrics-file=")){
+					o.metrics = true;
+					o.metricsFile = new File(args[i].substring("--metrics-file=".length()));
+				} else if(args[i].startsWith("--metrics-interval=")){
+					o.metricsInterval = (long)(Double.parseDouble(args[i].substring("--metrics-interval=".length()))*1000);
+					if(o.metricsInterval <= 0){
+						throw new IllegalArgumentException("Metrics interval must be positive: \""+args[i]+"\"");
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown option: \""+args[i]+"\"");
+				}
+			}
+			if(o.rule != Network.MEAN_SD && (o.shareWindows || o.componentWindows)){
+				throw new IllegalArgumentException("--rule=median-mad and --rule=percentile cannot be used with shared or component windows");
+			}
+			if(o.rule == Network.PERCENTILE && (o.multiplierNum != 3 || o.multiplierDen != 1)){
+				throw new IllegalArgumentException("--multiplier cannot be used with --rule=percentile");
+			}
+			return o;
+		}
+
+		/**
+		 * Reads a multiplier written as a decimal (such as 2.5) as a fraction in lowest
+		 * terms (5/2), so that the outlier test stays exact.
+		 * @param value A positive decimal
+		 * @return The numerator and the denominator
+		 */
+		static long[] parseMultiplier(String value){
+			BigDecimal k;
+			try {
+				k = new BigDecimal(value).stripTrailingZeros();
+			} catch(NumberFormatException e){
+				throw new IllegalArgumentException("Cannot read multiplier: \""+value+"\"");
+			}
+			if(k.scale() < 0){
+				k = k.setScale(0);
+			}
+			BigInteger num = k.unscaledValue();
+			BigInteger den = BigInteger.TEN.pow(k.scale());
+			BigInteger gcd = num.gcd(den);
+			num = num.divide(gcd);
+			den = den.divide(gcd);
+			BigInteger max = BigInteger.valueOf(Network.MAX_MULTIPLIER_TERM);
+			if(num.signum() <= 0 || num.compareTo(max) > 0 || den.compareTo(max) > 0){
+				throw new IllegalArgumentException("Multiplier must be positive, at most "+max+" and have at most "
+						+(max.toString().length() - 1)+" decimal places: \""+value+"\"");
+			}
+			return new long[]{num.longValue(), den.longValue()};
+		}
+
+		/**
+		 * Makes an empty network set up with these options.
+		 * @return A Network
+		 */
+		Network newNetwork(){
+			Network n;
+			if(offHeap){
+				n = Network.offHeap(offHeapDirectory, compressedFriends);
+			} else if(compressedFriends){
+				n = new Network(new CompressedAdjacency(), new HeapRings(false), new HeapRings(true));
+			} else {
+				n = new Network();
+			}
+			if(shareWindows){
+				n.shareSNPurchaseHistories();
+			}
+			if(componentWindows){
+				n.useComponentWindows();
+			}
+			n.setWindowMinutes(windowMinutes);
+			n.setSNMemoryLimit(snMemory);
+			n.setOutlierRule(rule, percentile);
+			n.setOutlierMultiplier(multiplierNum, multiplierDen);
+			if(metrics){
+				n.enableMetrics();
+			}
+			return n;
+		}
+
+		/**
+		 * Makes a reorder buffer for these options.
+		 * @return A ReorderBuffer, or null if events are not to be reordered
+		 */
+		ReorderBuffer newReorderBuffer(){
+			return maxLateness < 0 ? null : new ReorderBuffer(maxLateness, REORDER_CAPACITY, latePolicy);
+		}
+
+	}
 
 }
@@ -0,0 +1,340 @@
+package shopping_network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the engine and the reference engine (see ReferenceEngine) on random logs and
+ * exits with status 1 if they flag different purchases.
+ *
+ * Each case is a small random log with its own D and T, built to reach the corners where
+ * a fast engine is most likely to go wrong: runs of events in the same second, friendships
+ * broken and made again (and made twice, or broken when there were none), users with many
+ * friends, tiny windows (T of 2) and windows large enough for the chunk summaries of
+ * large-T mode (see Network.LARGE_T), social networks of one degree, and amounts that repeat
+ * so that purchases fall exactly on the line of 3 standard deviations. The engine is run
+ * as Detector runs it, from files and with the same options, so Burst and ReorderBuffer are
+ * tested along with the Network.
+ *
+ * When a case fails, it is shrunk: events are taken out, in chunks and then one by one,
+ * as long as the engines still disagree (or the engine still throws). The smallest log is
+ * written in the layout of insight_testsuite/tests, with the reference engine's flags as
+ * the expected output, so that it can be kept as a test.
+ * @author Kevin
+ *
+ */
+public class Differential {
+
+	private static final long START = Timestamp.valueOf("2017-06-13 00:00:00").getTime();
+	private static final int[] WINDOWS = {2, 2, 3, 5, 10, 50, 300};
+	private static final int[] LARGE_WINDOWS = {Network.LARGE_T, 300, 333, 500};//for --large-t
+
+	private final Detector.Options options;
+	private final File work;
+
+	private Differential(Detector.Options options, File work){
+		this.options = options;
+		this.work = work;
+	}
+
+	/**
+	 * Usage:
+	 *   java shopping_network.Differential [harness options] [Detector options]
+	 * Harness options:
+	 *   --cases=<n>   random cases to run [300]
+	 *   --seed=<s>    the seed of the first case; case i uses seed s + i [1]
+	 *   --out=<dir>   where to write the smallest failing log [differential-failure]
+	 *   --large-t     give every case a T of at least Network.LARGE_T
+	 * Any other options are given to Detector (see Detector.main) for the engine. The
+	 * reference engine only knows the mean and standard deviation rule, so --rule cannot be
+	 * given; --window-minutes is used by both engines.
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		int cases = 300;
+		long seed = 1;
+		File out = new File("differential-failure");
+		boolean largeT = false;
+		List<String> detectorArgs = new ArrayList<String>();
+		for(String arg : args){
+			if(arg.startsWith("--cases=")){
+				cases = Integer.parseInt(arg.substring("--cases=".length()));
+			} else if(arg.startsWith("--seed=")){
+				seed = Long.parseLong(arg.substring("--seed=".length()));
+			} else if(arg.startsWith("--out=")){
+				out = new File(arg.substring("--out=".length()));
+			} else if(arg.equals("--large-t")){
+				largeT = true;
+			} else {
+				detectorArgs.add(arg);
+			}
+		}
+		Detector.Options options = Detector.Options.parse(detectorArgs.toArray(new String[0]), 0);
+		if(options.rule != Network.MEAN_SD){
+			throw new IllegalArgumentException("The reference engine only flags by the mean and standard deviation");
+		}
+		File work = Files.createTempDirectory("differential").toFile();
+		Differential harness = new Differential(options, work);
+		try {
+			for(int i = 0; i < cases; i++){
+				Case c = Case.random(new Random(seed + i), options.windowMinutes > 0, largeT);
+				String failure = harness.compare(c);
+				if(failure == null){
+					continue;
+				}
+				System.out.println("Case with seed "+(seed + i)+" failed: "+failure);
+				Case smallest = harness.shrink(c);
+				System.out.println("Shrunk from "+c.size()+" events to "+smallest.size()+": "+harness.compare(smallest));
+				smallest.write(out, harness.reference(smallest));
+				System.out.println("Wrote it to "+out+File.separator+"log_input, with the expected flags in log_output");
+				System.out.println(String.join(System.lineSeparator(), smallest.lines()));
+				System.exit(1);
+			}
+		} finally {
+			for(File f : work.listFiles()){
+				f.delete();
+			}
+			work.delete();
+		}
+		List<String> shown = new ArrayList<String>(detectorArgs);
+		if(largeT){
+			shown.add(0, "--large-t");
+		}
+		System.out.println(cases+" cases matched the reference engine"
+				+ (shown.isEmpty() ? "" : " with "+String.join(" ", shown)));
+	}
+
+	/**
+	 * Runs both engines on a case.
+	 * @param c A case
+	 * @return A description of the first difference, or null if they agree
+	 */
+	String compare(Case c){
+		List<String> expected = reference(c);
+		List<String> actual;
+		try {
+			actual = engine(c);
+		} catch(IOException e){
+			throw new IllegalStateException(e);
+		} catch(RuntimeException e){
+			return "the engine threw "+e;
+		}
+		for(int i = 0; i < Math.max(expected.size(), actual.size()); i++){
+			String e = i < expected.size() ? expected.get(i) : "nothing";
+			String a = i < actual.size() ? actual.get(i) : "nothing";
+			if(!e.equals(a)){
+				return "flag "+(i + 1)+" should be "+e+" but was "+a;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gives the flags of the reference engine for a case.
+	 */
+	List<String> reference(Case c){
+		ReferenceEngine r = new ReferenceEngine(c.D, c.T, options.windowMinutes, options.multiplierNum, options.multiplierDen);
+		List<String> flags = new ArrayList<String>();
+		for(int i = 0; i < c.size(); i++){
+			String flag = r.apply(c.type.get(i), c.time.get(i), c.id1.get(i), c.value.get(i), i >= c.batchSize);
+			if(flag != null){
+				flags.add(flag);
+			}
+		}
+		return flags;
+	}
+
+	private List<String> engine(Case c) throws IOException{
+		c.write(work);
+		Network n = options.newNetwork();
+		try {
+			Detector.networkUpdates(n, work + File.separator + "batch_log.json", work + File.separator + "stream_log.json",
+					work.getPath(), options.runs, options.newReorderBuffer());
+		} finally {
+			n.close();
+		}
+		return Files.readAllLines(new File(work, "flagged_purchases.json").toPath());
+	}
+
+	/**
+	 * Takes events out of a failing case while it still fails: chunks of half the events,
+	 * then a quarter, and so on down to single events.
+	 */
+	Case shrink(Case c){
+		for(int chunk = Math.max(1, c.size()/2); chunk >= 1; chunk /= 2){
+			boolean removed = true;
+			while(removed){
+				removed = false;
+				for(int from = 0; from < c.size(); from += chunk){
+					Case smaller = c.without(from, Math.min(c.size(), from + chunk));
+					if(compare(smaller) != null){
+						c = smaller;
+						removed = true;
+						from -= chunk;
+					}
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * A log: D, T, and the batch events followed by the stream events.
+	 */
+	static final class Case {
+
+		int D;
+		int T;
+		int batchSize;
+		final List<Byte> type = new ArrayList<Byte>();
+		final List<Long> time = new ArrayList<Long>();
+		final List<Integer> id1 = new ArrayList<Integer>();
+		final List<Long> value = new ArrayList<Long>();
+
+		int size(){
+			return type.size();
+		}
+
+		private void add(byte ty, long t, int a, long v){
+			type.add(ty);
+			time.add(t);
+			id1.add(a);
+			value.add(v);
+		}
+
+		/**
+		 * Makes a random case. Each case leans on a few of the corners listed for the class.
+		 * @param random The source of the case
+		 * @param minutes True to spread events over hours rather than seconds, so that a
+		 *        time window drops purchases
+		 * @param largeT True to use only windows of at least Network.LARGE_T
+		 * @return A Case
+		 */
+		static Case random(Random random, boolean minutes, boolean largeT){
+			Case c = new Case();
+			c.D = random.nextInt(4) == 0 ? 1 : 1 + random.nextInt(3);
+			int[] windows = largeT ? LARGE_WINDOWS : WINDOWS;
+			c.T = windows[random.nextInt(windows.length)];
+			int users = 2 + random.nextInt(random.nextBoolean() ? 8 : 40);
+			//a large window needs enough purchases to fill it, and to move on past it
+			int events = c.T >= Network.LARGE_T ? 2*c.T + random.nextInt(3*c.T) : 20 + random.nextInt(400);
+			c.batchSize = random.nextInt(events);
+			double sameSecond = random.nextInt(3) == 0 ? 0.9 : random.nextDouble()/2;
+			double churn = random.nextInt(3) == 0 ? 0.5 : 0.1;
+			double friendships = 0.1 + random.nextDouble()*0.5;
+			int hub = random.nextInt(3) == 0 ? random.nextInt(users) : -1;
+			long[] amounts = new long[1 + random.nextInt(4)];//amounts that repeat, in cents
+			for(int i = 0; i < amounts.length; i++){
+				amounts[i] = 100*(1 + random.nextInt(50));
+			}
+			List<int[]> made = new ArrayList<int[]>();//friendships made so far, for unfriends
+			long t = START;
+			for(int i = 0; i < events; i++){
+				if(random.nextDouble() >= sameSecond){
+					t += 1000L*(1 + random.nextInt(minutes ? 1800 : 5));
+				}
+				int a = random.nextInt(users);
+				if(random.nextDouble() >= friendships){
+					long amount;
+					double r = random.nextDouble();
+					if(r < 0.6){
+						amount = amounts[random.nextInt(amounts.length)];
+					} else if(r < 0.95){
+						amount = 1 + random.nextInt(10000);
+					} else {
+						amount = 100000 + random.nextInt(1000000);//a likely outlier
+					}
+					c.add(Event.PURCHASE, t, a, amount);
+					continue;
+				}
+				int b = hub >= 0 && random.nextBoolean() ? hub : random.nextInt(users);
+				if(a == b){
+					b = (a + 1) % users;
+				}
+				if(!made.isEmpty() && random.nextDouble() < churn){
+					int[] f = made.get(random.nextInt(made.size()));
+					c.add(Event.UNFRIEND, t, f[0], f[1]);
+					if(random.nextBoolean()){
+						c.add(Event.BEFRIEND, t, f[1], f[0]);//made again, in the same second
+					}
+				} else if(random.nextInt(20) == 0){
+					c.add(Event.UNFRIEND, t, a, b);//perhaps never friends
+				} else {
+					c.add(Event.BEFRIEND, t, a, b);
+					made.add(new int[]{a, b});
+				}
+			}
+			c.batchSize = Math.min(c.batchSize, c.size());
+			return c;
+		}
+
+		/**
+		 * Gives a copy of the case without the events in [from, to).
+		 */
+		Case without(int from, int to){
+			Case c = new Case();
+			c.D = D;
+			c.T = T;
+			for(int i = 0; i < size(); i++){
+				if(i < from || i >= to){
+					c.add(type.get(i), time.get(i), id1.get(i), value.get(i));
+				}
+			}
+			c.batchSize = batchSize - Math.max(0, Math.min(to, batchSize) - from);
+			return c;
+		}
+
+		/**
+		 * Gives the lines of the case: the parameters, the batch events, and the stream events.
+		 */
+		List<String> lines(){
+			List<String> lines = new ArrayList<String>();
+			lines.add("{\"D\":\""+D+"\", \"T\":\""+T+"\"}");
+			for(int i = 0; i < size(); i++){
+				lines.add(line(i));
+			}
+			return lines;
+		}
+
+		private String line(int i){
+			String timestamp = new Timestamp(time.get(i)).toString();
+			timestamp = timestamp.substring(0, timestamp.length() - 2);
+			if(type.get(i) == Event.PURCHASE){
+				return "{\"event_type\":\"purchase\", \"timestamp\":\""+timestamp+"\", \"id\": \""+id1.get(i)
+						+"\", \"amount\": \""+Cents.format(value.get(i))+"\"}";
+			}
+			return "{\"event_type\":\""+(type.get(i) == Event.BEFRIEND ? "befriend" : "unfriend")+"\", \"timestamp\":\""
+					+timestamp+"\", \"id1\": \""+id1.get(i)+"\", \"id2\": \""+value.get(i)+"\"}";
+		}
+
+		/**
+		 * Writes batch_log.json and stream_log.json to a directory.
+		 */
+		void write(File directory) throws IOException{
+			List<String> lines = lines();
+			Files.write(new File(directory, "batch_log.json").toPath(), lines.subList(0, batchSize + 1));
+			Files.write(new File(directory, "stream_log.json").toPath(), lines.subList(batchSize + 1, lines.size()));
+		}
+
+		/**
+		 * Writes the case as a test of insight_testsuite: the logs in log_input, and the
+		 * given flags in log_output.
+		 */
+		void write(File test, List<String> flags) throws IOException{
+			File in = new File(test, "log_input");
+			File out = new File(test, "log_output");
+			in.mkdirs();
+			out.mkdirs();
+			write(in);
+			Files.write(new File(out, "flagged_purchases.json").toPath(), flags);
+		}
+
+	}
+
+}
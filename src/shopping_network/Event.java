@@ -1,8 +1,6 @@
 package shopping_network;
 
-import java.math.RoundingMode;
 import java.sql.Timestamp;
-import java.text.DecimalFormat;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,8 +15,9 @@ public class Event {
 	public static final String pattern = "^\\{\"event_type\":\"(purchase|befriend|unfriend)\", \"timestamp\":\"([0-9\\- :]+)\", \"id1?\": \"([0-9]+)\", \"(?:amount|id2)\": \"([0-9.]+)\"\\}$";
 	static Pattern p = Pattern.compile(pattern);
 	
-	private static long currentTime = 0;
-	private static int purchaseNum = 0;//Purchases are numbered each second to preserve order.
+	public static final byte PURCHASE = 0;
+	public static final byte BEFRIEND = 1;
+	public static final byte UNFRIEND = 2;
 	
 	/**
 	 * Parses a string corresponding to a purchase, befriend, or unfriend event,
@@ -34,25 +33,20 @@ public class Event {
 		Matcher m = p.matcher(event);
 		if(m.matches()){
 			
-			Timestamp timestamp = Timestamp.valueOf(m.group(2));//Already in JDBC timestamp escape format! Handy!
-			if(timestamp.getTime() > currentTime){
-				currentTime = timestamp.getTime();
-				purchaseNum = 0;
-			}
+			long time = Timestamp.valueOf(m.group(2)).getTime();//Already in JDBC timestamp escape format! Handy!
 			
 			if(m.group(1).equals("purchase")){
 				int id = Integer.parseInt(m.group(3));
-				double amount = Double.parseDouble(m.group(4));
-				out = purchase(n, id, amount, timestamp, purchaseNum, streaming);
-				purchaseNum++;
+				long amount = Cents.parse(event, m.start(4), m.end(4));
+				out = applyEvent(n, PURCHASE, time, id, amount, streaming);
 			} else if(m.group(1).equals("befriend")){
 				int id1 = Integer.parseInt(m.group(3));
 				int id2 = Integer.parseInt(m.group(4));
-				befriend(n, id1, id2, timestamp, streaming);
+				applyEvent(n, BEFRIEND, time, id1, id2, streaming);
 			} else if(m.group(1).equals("unfriend")){
 				int id1 = Integer.parseInt(m.group(3));
 				int id2 = Integer.parseInt(m.group(4));
-				unfriend(n, id1, id2, timestamp, streaming);
+				applyEvent(n, UNFRIEND, time, id1, id2, streaming);
 			} else {
 				//Exception for unhandled event. This will never occur.
 				System.out.println("Unhandled event: \""+m.group(1)+"\" "+ m.group(0));
@@ -67,34 +61,104 @@ public class Event {
 		}
 		return out;
 	}
-
 	
-	private static String purchase(Network n, int id, double amount, Timestamp timestamp, int purchaseNum, boolean streaming){
-		Purchase p = new Purchase(id, amount, timestamp, purchaseNum);
-		User u = n.getUser(id);
-		u.addPurchase(p, streaming);
+	/**
+	 * Parses a string corresponding to a purchase, befriend, or unfriend event,
+	 * and adds it to the back of a buffer without applying it.
+	 * @param event An event
+	 * @param buffer An EventBuffer
+	 * @return False if the line was empty, true if an event was added
+	 */
+	public static boolean parseEvent(String event, EventBuffer buffer){
+		Matcher m = p.matcher(event);
+		if(m.matches()){
+			long time = Timestamp.valueOf(m.group(2)).getTime();
+			int id1 = Integer.parseInt(m.group(3));
+			if(m.group(1).equals("purchase")){
+				buffer.add(PURCHASE, time, id1, Cents.parse(event, m.start(4), m.end(4)));
+			} else {
+				buffer.add(m.group(1).equals("befriend") ? BEFRIEND : UNFRIEND, time, id1, Integer.parseInt(m.group(4)));
+			}
+			return true;
+		} else if(!event.equals("")){
+			throw new IllegalArgumentException("Cannot parse event: \""+event+"\"");
+		}
+		return false;
+	}
+	
+	/**
+	 * Applies a parsed event to the network.
+	 * @param n A Network
+	 * @param type PURCHASE, BEFRIEND or UNFRIEND
+	 * @param time The time of the event in milliseconds
+	 * @param id1 The purchaser, or the first user of a befriend or unfriend
+	 * @param value The amount in cents of a purchase, or the second user of a befriend or unfriend
+	 * @param streaming True if currently streaming
+	 * @return A flag for an anomalous purchase (see writePurchaseFlag), or null
+	 */
+	public static String applyEvent(Network n, byte type, long time, int id1, long value, boolean streaming){
+		if(type == PURCHASE){
+			return purchase(n, id1, value, time, n.nextPurchaseNum(time), streaming);
+		}
+		n.tick(time);
+		if(type == BEFRIEND){
+			befriend(n, id1, (int)value, streaming);
+		} else {
+			unfriend(n, id1, (int)value, streaming);
+		}
+		return null;
+	}
+	
+	private static String purchase(Network n, int id, long amount, long time, int purchaseNum, boolean streaming){
+		n.addPurchase(id, Purchase.orderKey(time, purchaseNum), amount, streaming);
 		
 		if(!streaming){
 			return null;
 		}
-		if(u.checkForOutlier(p)){
-			String flag = writePurchaseFlag(p, u.getMean(), u.getSD());
-			return flag;
+		if(n.checkForOutlier(id, amount)){
+			return writePurchaseFlag(n, id, amount, time, purchaseNum);
 			//System.out.println(flag);
 		}
 		return null;
 	}
-	private static void befriend(Network n, int id1, int id2, Timestamp timestamp, boolean streaming){
-		User u1 = n.getUser(id1);
-		User u2 = n.getUser(id2);
-		u1.addFriend(u2, streaming);
-		u2.addFriend(u1, streaming);
+	private static void befriend(Network n, int id1, int id2, boolean streaming){
+		n.addFriend(id1, id2, streaming);
+		n.addFriend(id2, id1, streaming);
 	}
-	private static void unfriend(Network n, int id1, int id2, Timestamp timestamp, boolean streaming){
-		User u1 = n.getUser(id1);
-		User u2 = n.getUser(id2);
-		u1.removeFriend(u2, streaming);
-		u2.removeFriend(u1, streaming);
+	private static void unfriend(Network n, int id1, int id2, boolean streaming){
+		n.removeFriend(id1, id2, streaming);
+		n.removeFriend(id2, id1, streaming);
+	}
+	
+	/**
+	 * Writes a flag for a purchase that has just been checked, using the mean and
+	 * standard deviation stored for the purchaser.
+	 * @param n A Network
+	 * @param id The purchaser
+	 * @param amount The amount in cents
+	 * @param time The time of the purchase in milliseconds
+	 * @param purchaseNum The purchase number of the purchase
+	 * @return A String
+	 */
+	static String writePurchaseFlag(Network n, int id, long amount, long time, int purchaseNum){
+		FlightEvents.FlagEmit event = new FlightEvents.FlagEmit();
+		event.begin();
+		long start = n.metrics == null ? 0 : System.nanoTime();
+		Purchase p = new Purchase(id, amount, new Timestamp(time), purchaseNum);//only needed for the flag
+		String flag = writePurchaseFlag(p, n.mean[id], n.sd[id]);
+		if(n.metrics != null){
+			n.metrics.flagWriteNanos.record(System.nanoTime() - start);
+		}
+		event.end();
+		if(event.shouldCommit()){
+			event.user = id;
+			event.amount = amount;
+			event.history = n.snCount[id];
+			event.mean = n.mean[id];
+			event.sd = n.sd[id];
+			event.commit();
+		}
+		return flag;
 	}
 	
 	
@@ -124,53 +188,32 @@ public class Event {
 	
 	/**
 	 * Writes a flag for a purchase. This is meant to be used in a .json file.
-	 * The mean and standard deviation are truncated here; the more precise values
+	 * The mean and standard deviation are truncated to whole cents; the exact sums
 	 * were used in the computations.
 	 * @param p A purchase
-	 * @param mean A double corresponding to a mean
-	 * @param sd A double corresponding to a standard deviation
+	 * @param mean A mean in cents
+	 * @param sd A standard deviation in cents
 	 * @return A String
 	 */
-	public static String writePurchaseFlag(Purchase p, double mean, double sd){
+	public static String writePurchaseFlag(Purchase p, long mean, long sd){
 		String timestamp = p.getTimestamp().toString();
 		timestamp = timestamp.substring(0, timestamp.length()-2);//remove the ".0"	
 				
-		String s = "{\"event_type\":\"purchase\", ";
-		s += "\"timestamp\":\""+timestamp+"\", ";
-		s += "\"id\": \"" + p.getUserID()+"\", ";
-		s += "\"amount\": \"" + formatDouble(p.getPrice()) + "\", ";
-		s += "\"mean\": \"" + formatDouble(mean) + "\", ";
-		s += "\"sd\": \"" + formatDouble(sd) + "\"}";
+		StringBuilder s = new StringBuilder(128);
+		s.append("{\"event_type\":\"purchase\", ");
+		s.append("\"timestamp\":\"").append(timestamp).append("\", ");
+		s.append("\"id\": \"").append(p.getUserID()).append("\", ");
+		s.append("\"amount\": \"");
+		Cents.appendTo(s, p.getPrice());
+		s.append("\", \"mean\": \"");
+		Cents.appendTo(s, mean);
+		s.append("\", \"sd\": \"");
+		Cents.appendTo(s, sd);
+		s.append("\"}");
 				
-		return s;
+		return s.toString();
 	}
 	
-	/**
-	 * Truncates a double to two decimal places, and returns it as a String;
-	 * e.g. 13.73849 is truncated to 13.73.
-	 * The string will always have precision to exactly two decimal places;
-	 * e.g. 15 is returned as 15.00 and 31.1 is returned as 31.10.
-	 * 
-	 * @param d A double
-	 * @return A String
-	 */
-	protected static String formatDouble(double d){
-		
-		DecimalFormat df = new DecimalFormat("0");
-		df.setMaximumFractionDigits(2);
-		df.setMinimumFractionDigits(2);
-		df.setRoundingMode(RoundingMode.DOWN);
-		return df.format(d);
-		//int temp = (int)(d*100);
-		//String s = ""+((double)(temp)/100);
-		//if(temp%10 == 0 && temp%100 != 0){
-		//	s += "0";
-		//} else if(temp%100 == 0 && !s.contains(".")){
-		//	s+=".00";//probably redundant, from the looks of it
-		//}
-		//return s;
-		//return (double)(temp)/100;
-	}
 	
 	
 	
@@ -0,0 +1,92 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of parsed events, stored in parallel primitive arrays.
+ * Each event has a type (Event.PURCHASE, Event.BEFRIEND or Event.UNFRIEND), a time
+ * in milliseconds, a first user ID, and a value: the amount in cents of a purchase,
+ * or the second user ID of a befriend or unfriend.
+ * @author Kevin
+ *
+ */
+public class EventBuffer {
+	
+	byte[] type;
+	long[] time;
+	int[] id1;
+	long[] value;
+	int size = 0;
+	
+	public EventBuffer(){
+		this(16);
+	}
+	
+	public EventBuffer(int capacity){
+		capacity = Math.max(1, capacity);
+		type = new byte[capacity];
+		time = new long[capacity];
+		id1 = new int[capacity];
+		value = new long[capacity];
+	}
+	
+	/**
+	 * Adds an event to the back of the list.
+	 * @param type The type of the event
+	 * @param time The time in milliseconds
+	 * @param id1 The first user ID
+	 * @param value The amount in cents or the second user ID
+	 */
+	public void add(byte type, long time, int id1, long value){
+		if(size == this.type.length){
+			grow(size*2);
+		}
+		this.type[size] = type;
+		this.time[size] = time;
+		this.id1[size] = id1;
+		this.value[size] = value;
+		size++;
+	}
+	
+	/**
+	 * Adds the events of another buffer to the back of this one, in order.
+	 * @param other An EventBuffer
+	 */
+	public void addAll(EventBuffer other){
+		if(size + other.size > type.length){
+			grow(Math.max(size + other.size, type.length*2));
+		}
+		System.arraycopy(other.type, 0, type, size, other.size);
+		System.arraycopy(other.time, 0, time, size, other.size);
+		System.arraycopy(other.id1, 0, id1, size, other.size);
+		System.arraycopy(other.value, 0, value, size, other.size);
+		size += other.size;
+	}
+	
+	private void grow(int capacity){
+		type = Arrays.copyOf(type, capacity);
+		time = Arrays.copyOf(time, capacity);
+		id1 = Arrays.copyOf(id1, capacity);
+		value = Arrays.copyOf(value, capacity);
+	}
+	
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * Applies the i-th event to the network; see Event.applyEvent.
+	 * @param n A Network
+	 * @param i An index below size()
+	 * @param streaming True if currently streaming
+	 * @return A flag, or null
+	 */
+	public String apply(Network n, int i, boolean streaming){
+		return Event.applyEvent(n, type[i], time[i], id1[i], value[i], streaming);
+	}
+	
+	public void clear(){
+		size = 0;
+	}
+	
+}
@@ -0,0 +1,166 @@
+package shopping_network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for the internals of the engine: crawls, history rebuilds,
+ * purchase fan-out, the flagging of social networks when a friendship changes, and
+ * flags written for anomalous purchases.
+ *
+ * The events are turned on and off like any other JFR event, by the settings of a
+ * recording. Unless the settings say otherwise, only events that take at least 1 ms are
+ * recorded, so a recording left running in production keeps the slow crawls and rebuilds
+ * and drops the rest; flags are recorded whatever they take, as there are few of them.
+ * The settings file jfr/engine.jfc records every event of the engine, for profiling a run;
+ * given after the JDK's default settings, it records both:
+ *
+ *   java -XX:StartFlightRecording:filename=run.jfr,settings=default,settings=jfr/engine.jfc ...
+ *   jfr print --events shopping_network.Rebuild run.jfr
+ *
+ * Each hook follows the usual pattern: the event is allocated and begun before the work
+ * and ended after it, and the fields are only filled in if it is to be committed. With no
+ * recording running, the JIT removes the allocation, and each hook costs a test of a flag.
+ * The events carry no stack trace; the hooks are few and each is named by its event type.
+ * @author Kevin
+ *
+ */
+final class FlightEvents {
+
+	private FlightEvents(){
+	}
+
+	@Name("shopping_network.Crawl")
+	@Label("Crawl")
+	@Category({"Shopping Network", "Social Network"})
+	@Description("A crawl of the social network of one user, or of several at once")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static final class Crawl extends jdk.jfr.Event {
+		@Label("User")
+		@Description("The user crawled from, or -1 if there were several sources")
+		int user;
+
+		@Label("Sources")
+		int sources;
+
+		@Label("Degree")
+		int degree;
+
+		@Label("Size")
+		@Description("The users reached, sources included")
+		int size;
+
+		@Label("Multi-Source")
+		@Description("True if each user reached was tracked per source (see Network.socialNetworks)")
+		boolean multiSource;
+	}
+
+	@Name("shopping_network.Rebuild")
+	@Label("History Rebuild")
+	@Category({"Shopping Network", "History"})
+	@Description("A rebuild of the social network purchase history of a user, or their joining a shared window")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static final class Rebuild extends jdk.jfr.Event {
+		@Label("User")
+		int user;
+
+		@Label("Degree")
+		int degree;
+
+		@Label("Members")
+		@Description("The size of the social network, without the user")
+		int members;
+
+		@Label("Merged")
+		@Description("The purchases merged into a private history, or 0 if a shared window was joined")
+		int merged;
+
+		@Label("Kind")
+		@Description("full, partial, shared or component")
+		String kind;
+	}
+
+	@Name("shopping_network.FanOut")
+	@Label("Purchase Fan-Out")
+	@Category({"Shopping Network", "History"})
+	@Description("A streamed purchase pushed to the histories of the buyer's social network")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static final class FanOut extends jdk.jfr.Event {
+		@Label("User")
+		@Description("The buyer")
+		int user;
+
+		@Label("Degree")
+		int degree;
+
+		@Label("Reached")
+		@Description("The users the purchase reaches, without the buyer, or -1 if pushed to a component window")
+		int reached;
+
+		@Label("Amount")
+		@Description("The price in cents")
+		long amount;
+	}
+
+	@Name("shopping_network.EdgeInvalidation")
+	@Label("Edge Invalidation")
+	@Category({"Shopping Network", "Social Network"})
+	@Description("The users flagged for a rebuild after a friendship changed")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static final class EdgeInvalidation extends jdk.jfr.Event {
+		@Label("User")
+		@Description("The user whose friend list changed, or -1 for a run of changes")
+		int user;
+
+		@Label("Friend")
+		@Description("The friend added or removed, or -1 for a run of changes")
+		int friend;
+
+		@Label("Kind")
+		@Description("befriend, unfriend or run (see Burst)")
+		String kind;
+
+		@Label("Degree")
+		int degree;
+
+		@Label("Flagged")
+		@Description("The users flagged, or 0 if the change stayed within a component window")
+		int flagged;
+	}
+
+	@Name("shopping_network.FlagEmit")
+	@Label("Flag Emit")
+	@Category({"Shopping Network", "Flags"})
+	@Description("A flag written for an anomalous purchase")
+	@StackTrace(false)
+	@Threshold("0 ms")
+	static final class FlagEmit extends jdk.jfr.Event {
+		@Label("User")
+		int user;
+
+		@Label("Amount")
+		@Description("The price in cents")
+		long amount;
+
+		@Label("History")
+		@Description("The purchases in the user's social network history")
+		int history;
+
+		@Label("Mean")
+		@Description("The mean of the history, in cents")
+		long mean;
+
+		@Label("Standard Deviation")
+		@Description("The standard deviation of the history, in cents")
+		long sd;
+	}
+
+}
@@ -0,0 +1,97 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Friend lists stored on the Java heap, as one int array per user.
+ * Friends are kept in the order they were added.
+ * @author Kevin
+ *
+ */
+public class HeapAdjacency extends Adjacency {
+	
+	private int[][] friends = new int[0][];
+	private int[] friendCount = new int[0];
+	
+	@Override
+	public void expand(int numUsers){
+		if(numUsers > friends.length){
+			friends = Arrays.copyOf(friends, numUsers);
+			friendCount = Arrays.copyOf(friendCount, numUsers);
+		}
+	}
+	
+	@Override
+	public int degree(int u){
+		return friendCount[u];
+	}
+	
+	@Override
+	public int neighbor(int u, int i){
+		return friends[u][i];
+	}
+	
+	@Override
+	public int neighbors(int u, int[] buffer){
+		int count = friendCount[u];
+		if(count > 0){
+			System.arraycopy(friends[u], 0, buffer, 0, count);
+		}
+		return count;
+	}
+	
+	@Override
+	public int firstNeighborIn(int u, long[] bits){
+		int[] f = friends[u];
+		int count = friendCount[u];
+		for(int i = 0; i < count; i++){
+			int v = f[i];
+			if((bits[v >>> 6] & (1L << v)) != 0){
+				return v;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public boolean contains(int u, int v){
+		int[] f = friends[u];
+		int count = friendCount[u];
+		for(int i = 0; i < count; i++){
+			if(f[i] == v){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public void add(int u, int v){
+		int[] f = friends[u];
+		int count = friendCount[u];
+		if(f == null){
+			f = new int[4];
+			friends[u] = f;
+		} else if(count == f.length){
+			f = Arrays.copyOf(f, count*2);
+			friends[u] = f;
+		}
+		f[count] = v;
+		friendCount[u] = count + 1;
+	}
+	
+	@Override
+	public boolean remove(int u, int v){
+		int[] f = friends[u];
+		int count = friendCount[u];
+		for(int i = 0; i < count; i++){
+			if(f[i] == v){
+				System.arraycopy(f, i+1, f, i, count-i-1);//keeps the friends in the order they were added
+				friendCount[u] = count - 1;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}
@@ -0,0 +1,62 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Purchase rings stored on the Java heap, in parallel slab arrays.
+ * A slab holds at most about 2^31 entries.
+ * @author Kevin
+ *
+ */
+public class HeapRings extends Rings {
+	
+	private long[] keys = new long[0];
+	private long[] prices = new long[0];
+	private int[] users = new int[0];
+	
+	public HeapRings(boolean withUsers){
+		super(withUsers);
+	}
+	
+	@Override
+	public void ensure(long entries){
+		if(entries <= keys.length){
+			return;
+		}
+		long newLength = Math.max(entries, Math.max(1024, (long)keys.length*2));
+		if(newLength > Integer.MAX_VALUE - 8){
+			if(entries > Integer.MAX_VALUE - 8){
+				throw new IllegalStateException("Purchase histories do not fit in a heap slab ("+entries+" entries); use off-heap storage");
+			}
+			newLength = Integer.MAX_VALUE - 8;
+		}
+		keys = Arrays.copyOf(keys, (int)newLength);
+		prices = Arrays.copyOf(prices, (int)newLength);
+		if(withUsers){
+			users = Arrays.copyOf(users, (int)newLength);
+		}
+	}
+	
+	@Override
+	public long key(long i){
+		return keys[(int)i];
+	}
+	@Override
+	public long price(long i){
+		return prices[(int)i];
+	}
+	@Override
+	public int user(long i){
+		return users[(int)i];
+	}
+	
+	@Override
+	public void set(long i, long key, long price, int user){
+		keys[(int)i] = key;
+		prices[(int)i] = price;
+		if(withUsers){
+			users[(int)i] = user;
+		}
+	}
+	
+}
@@ -0,0 +1,207 @@
+package shopping_network;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the window kernels (see WindowKernels) agree with each other and with
+ * plain BigInteger arithmetic, and exits with status 1 if they do not.
+ *
+ * Random windows are made with prices that are small, spread out, all equal (so the
+ * standard deviation is 0), or now and then too large for the vector kernels to split,
+ * and of lengths from 0 to a few thousand. Each window is totalled by both kernels and
+ * with BigIntegers. Purchases are then scored against them with several multipliers,
+ * both at random amounts and at the amounts on either side of the line, found by binary
+ * search, where the vector kernels have to fall back on the exact test. Without the
+ * Vector API (see WindowKernels.get), the scalar kernels are checked on their own.
+ * @author Kevin
+ *
+ */
+public class KernelCheck {
+
+	private static final long[][] MULTIPLIERS = {{3, 1}, {2, 1}, {1, 1}, {5, 2}, {7, 2}, {29, 10}};
+
+	private long mismatches = 0;
+
+	/**
+	 * Usage:
+	 *   java --add-modules jdk.incubator.vector shopping_network.KernelCheck [options]
+	 * Options:
+	 *   --windows=<n>  random windows [20000]
+	 *   --seed=<s>     [1]
+	 * @param args An array of strings
+	 */
+	public static void main(String[] args){
+		int windows = 20000;
+		long seed = 1;
+		for(String arg : args){
+			if(arg.startsWith("--windows=")){
+				windows = Integer.parseInt(arg.substring("--windows=".length()));
+			} else if(arg.startsWith("--seed=")){
+				seed = Long.parseLong(arg.substring("--seed=".length()));
+			} else {
+				throw new IllegalArgumentException("Unknown option: \""+arg+"\"");
+			}
+		}
+		WindowKernels kernels = WindowKernels.get();
+		if(kernels == WindowKernels.scalar()){
+			System.out.println("The Vector API is not available; checking the scalar kernels only");
+		}
+		KernelCheck check = new KernelCheck();
+		long scored = check.run(kernels, new Random(seed), windows);
+		if(check.mismatches > 0){
+			System.out.println(check.mismatches+" mismatches between the "+kernels.name()+" kernels, the scalar kernels and BigIntegers");
+			System.exit(1);
+		}
+		System.out.println(windows+" windows and "+scored+" purchases matched, with the "+kernels.name()+" kernels");
+	}
+
+	/**
+	 * Checks the given kernels on random windows.
+	 * @return The number of purchases scored
+	 */
+	long run(WindowKernels kernels, Random random, int windows){
+		WindowKernels scalar = WindowKernels.scalar();
+		int[] offsets = new int[windows + 1];
+		long[] prices = new long[1024];
+		for(int w = 0; w < windows; w++){
+			int length = random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(100);
+			if(prices.length < offsets[w] + length){
+				prices = Arrays.copyOf(prices, Math.max(prices.length*2, offsets[w] + length));
+			}
+			int shape = random.nextInt(5);
+			long same = 1 + random.nextInt(100000);
+			for(int i = offsets[w]; i < offsets[w] + length; i++){
+				prices[i] = price(random, shape, same);
+			}
+			offsets[w + 1] = offsets[w] + length;
+		}
+
+		long[] counts = new long[windows];
+		long[] sums = new long[windows];
+		long[] squareSumHi = new long[windows];
+		long[] squareSumLo = new long[windows];
+		long[] totals = new long[3];
+		long[] expected = new long[3];
+		for(int w = 0; w < windows; w++){
+			scalar.sums(prices, offsets[w], offsets[w + 1], expected);
+			kernels.sums(prices, offsets[w], offsets[w + 1], totals);
+			BigInteger sum = BigInteger.ZERO;
+			BigInteger squares = BigInteger.ZERO;
+			for(int i = offsets[w]; i < offsets[w + 1]; i++){
+				BigInteger x = BigInteger.valueOf(prices[i]);
+				sum = sum.add(x);
+				squares = squares.add(x.multiply(x));
+			}
+			if(totals[0] != expected[0] || totals[1] != expected[1] || totals[2] != expected[2]
+					|| expected[0] != sum.longValue() || !toBigInteger(expected[1], expected[2]).equals(squares)){
+				mismatch("sums of window "+w+" of "+(offsets[w + 1] - offsets[w])+" prices: "+totals[0]+" "+totals[1]+" "+totals[2]
+						+" against "+expected[0]+" "+expected[1]+" "+expected[2]+" and "+sum+" "+squares);
+			}
+			counts[w] = offsets[w + 1] - offsets[w];
+			sums[w] = expected[0];
+			squareSumHi[w] = expected[1];
+			squareSumLo[w] = expected[2];
+		}
+
+		long scored = 0;
+		long[] amounts = new long[windows];
+		boolean[] flagged = new boolean[windows];
+		boolean[] expectedFlags = new boolean[windows];
+		for(long[] k : MULTIPLIERS){
+			for(int round = 0; round < 4; round++){
+				for(int w = 0; w < windows; w++){
+					amounts[w] = round == 0 ? price(random, random.nextInt(5), 1 + random.nextInt(100000))
+							: line(counts[w], sums[w], squareSumHi[w], squareSumLo[w], k) + round - 2;//just below, on and above
+					amounts[w] = Math.max(0, amounts[w]);
+				}
+				kernels.score(amounts, counts, sums, squareSumHi, squareSumLo, windows, k[0], k[1], flagged);
+				scalar.score(amounts, counts, sums, squareSumHi, squareSumLo, windows, k[0], k[1], expectedFlags);
+				compare(flagged, expectedFlags, amounts, counts, sums, squareSumHi, squareSumLo, k);
+				if(round == 0){
+					kernels.scoreWindows(prices, offsets, amounts, windows, k[0], k[1], flagged);
+					compare(flagged, expectedFlags, amounts, counts, sums, squareSumHi, squareSumLo, k);
+				}
+				scored += windows;
+			}
+		}
+		return scored;
+	}
+
+	private void compare(boolean[] flagged, boolean[] expected, long[] amounts, long[] counts, long[] sums,
+			long[] squareSumHi, long[] squareSumLo, long[] k){
+		for(int w = 0; w < flagged.length; w++){
+			boolean exact = isOutlier(amounts[w], counts[w], sums[w], squareSumHi[w], squareSumLo[w], k);
+			if(flagged[w] != expected[w] || expected[w] != exact){
+				mismatch("purchase of "+amounts[w]+" against window "+w+" of "+counts[w]+" prices, k = "+k[0]+"/"+k[1]+": "
+						+flagged[w]+" against "+expected[w]+" and "+exact);
+			}
+		}
+	}
+
+	private void mismatch(String description){
+		if(mismatches++ < 10){
+			System.out.println("Mismatch: "+description);
+		}
+	}
+
+	private static long price(Random random, int shape, long same){
+		switch(shape){
+		case 0:
+			return 1 + random.nextInt(100);
+		case 1:
+			return (long)Math.exp(8 + 2*random.nextGaussian());
+		case 2:
+			return same;
+		case 3:
+			return random.nextInt(200) == 0 ? (1L << 42) + random.nextInt(1000) : random.nextInt(10000000);
+		default:
+			return random.nextInt(1000) == 0 ? 1000000000000L : 100*(1 + random.nextInt(50));
+		}
+	}
+
+	/**
+	 * Finds the smallest amount that is flagged against a window, or 0 if there is none
+	 * below 2^50 (a window of fewer than 2 prices).
+	 */
+	private static long line(long n, long sum, long squareSumHi, long squareSumLo, long[] k){
+		long lo = 0;
+		long hi = 1L << 50;
+		if(!isOutlier(hi, n, sum, squareSumHi, squareSumLo, k)){
+			return 0;
+		}
+		while(lo < hi){
+			long mid = (lo + hi) >>> 1;
+			if(isOutlier(mid, n, sum, squareSumHi, squareSumLo, k)){
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * The outlier test with BigIntegers: (n*x - S)^2 * kDen^2 > kNum^2 * (n*Q - S^2).
+	 */
+	private static boolean isOutlier(long x, long n, long sum, long squareSumHi, long squareSumLo, long[] k){
+		if(n < 2){
+			return false;
+		}
+		BigInteger bn = BigInteger.valueOf(n);
+		BigInteger s = BigInteger.valueOf(sum);
+		BigInteger d = bn.multiply(BigInteger.valueOf(x)).subtract(s);
+		if(d.signum() <= 0){
+			return false;
+		}
+		BigInteger v = bn.multiply(toBigInteger(squareSumHi, squareSumLo)).subtract(s.multiply(s));
+		BigInteger left = d.multiply(d).multiply(BigInteger.valueOf(k[1]*k[1]));
+		return left.compareTo(v.multiply(BigInteger.valueOf(k[0]*k[0]))) > 0;
+	}
+
+	private static BigInteger toBigInteger(long hi, long lo){
+		return BigInteger.valueOf(hi).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(lo)));
+	}
+
+}
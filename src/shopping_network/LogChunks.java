@@ -0,0 +1,149 @@
+package shopping_network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Reads a log in chunks, in parallel, for Profiler and Backtest.
+ *
+ * The log is split into chunks at line breaks (at least four a thread, and none larger than
+ * MAX_CHUNK), and each chunk is memory-mapped and parsed with Event.parseEvent on a pool of
+ * threads, so the tools read exactly what the detector reads. Each event is handed to the
+ * caller's chunk, and the chunks come back in the order of the log.
+ * @author Kevin
+ *
+ */
+final class LogChunks {
+
+	static final long MAX_CHUNK = 1L << 30;//bytes mapped at once
+
+	private LogChunks(){
+	}
+
+	/**
+	 * Reads a log in chunks, in parallel.
+	 * @param pool The threads that read the chunks
+	 * @param threads The number of threads in the pool
+	 * @param log A log file
+	 * @param header True if its first line is D and T, which is skipped
+	 * @param newChunk Makes a chunk, given its length in bytes
+	 * @param add Adds an event to a chunk; the event is the only one in the EventBuffer, which is reused
+	 * @return The chunks, in order
+	 * @throws IOException
+	 */
+	static <C> List<C> read(ExecutorService pool, int threads, File log, boolean header,
+			LongFunction<C> newChunk, BiConsumer<C, EventBuffer> add) throws IOException{
+		long length = log.length();
+		int pieces = (int)Math.max(threads*4L, length/MAX_CHUNK + 1);
+		long[] bounds = new long[pieces + 1];
+		try(RandomAccessFile raf = new RandomAccessFile(log, "r")){
+			bounds[0] = header ? lineStart(raf, 1, length) : 0;
+			for(int k = 1; k < pieces; k++){
+				bounds[k] = Math.max(bounds[k - 1], lineStart(raf, length*k/pieces, length));
+			}
+			bounds[pieces] = length;
+		}
+		List<Future<C>> parts = new ArrayList<Future<C>>();
+		for(int k = 0; k < pieces; k++){
+			long from = bounds[k];
+			long to = bounds[k + 1];
+			parts.add(pool.submit(() -> readChunk(log, from, to, newChunk.apply(Math.max(0, to - from)), add)));
+		}
+		List<C> chunks = new ArrayList<C>();
+		for(Future<C> part : parts){
+			chunks.add(get(part));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Gives the start of the first line that starts at or after the given position.
+	 */
+	static long lineStart(RandomAccessFile raf, long position, long length) throws IOException{
+		if(position <= 0){
+			return 0;
+		}
+		raf.seek(position - 1);
+		byte[] buffer = new byte[8192];
+		long at = position - 1;
+		int read;
+		while((read = raf.read(buffer)) > 0){
+			for(int i = 0; i < read; i++){
+				if(buffer[i] == '\n'){
+					return at + i + 1;
+				}
+			}
+			at += read;
+		}
+		return length;
+	}
+
+	private static <C> C readChunk(File log, long from, long to, C c, BiConsumer<C, EventBuffer> add) throws IOException{
+		if(to <= from){
+			return c;
+		}
+		EventBuffer one = new EventBuffer(1);
+		byte[] line = new byte[256];
+		int length = 0;
+		try(RandomAccessFile raf = new RandomAccessFile(log, "r"); FileChannel channel = raf.getChannel()){
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			while(true){
+				boolean end = !map.hasRemaining();
+				byte b = end ? (byte)'\n' : map.get();
+				if(b != '\n'){
+					if(length == line.length){
+						line = Arrays.copyOf(line, length*2);
+					}
+					line[length++] = b;
+					continue;
+				}
+				if(length > 0 && line[length - 1] == '\r'){
+					length--;
+				}
+				one.clear();
+				if(Event.parseEvent(new String(line, 0, length, StandardCharsets.ISO_8859_1), one)){
+					add.accept(c, one);
+				}
+				length = 0;
+				if(end){
+					break;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Waits for a task on the pool, and rethrows what it threw.
+	 */
+	static <T> T get(Future<T> future) throws IOException{
+		try {
+			return future.get();
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException){
+				throw (IOException)cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException)cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+}
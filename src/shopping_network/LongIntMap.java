@@ -0,0 +1,127 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to non-negative ints, kept in two primitive arrays with open
+ * addressing and linear probing, so that lookups and updates do not box their keys.
+ * An empty slot has a value of -1. A removed entry is filled by shifting later entries
+ * of its run back, so there are no tombstones.
+ * @author Kevin
+ *
+ */
+final class LongIntMap {
+
+	private long[] keys;
+	private int[] values;//-1 for an empty slot
+	private int mask;
+	private int size = 0;
+
+	LongIntMap(){
+		this(16);
+	}
+
+	/**
+	 * @param capacity The number of entries to hold before growing
+	 */
+	LongIntMap(int capacity){
+		int slots = Integer.highestOneBit(Math.max(8, capacity*2 - 1)) << 1;
+		keys = new long[slots];
+		values = new int[slots];
+		Arrays.fill(values, -1);
+		mask = slots - 1;
+	}
+
+	private int slot(long key){
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @param key A key
+	 * @return The value for the key, or -1 if it has none
+	 */
+	int get(long key){
+		for(int i = slot(key); values[i] >= 0; i = (i + 1) & mask){
+			if(keys[i] == key){
+				return values[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets the value for a key, replacing any value it had.
+	 * @param key A key
+	 * @param value A value of at least 0
+	 */
+	void put(long key, int value){
+		if(value < 0){
+			throw new IllegalArgumentException("value must be at least 0: "+value);
+		}
+		int i = slot(key);
+		for(; values[i] >= 0; i = (i + 1) & mask){
+			if(keys[i] == key){
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if(++size*2 > keys.length){
+			grow();
+		}
+	}
+
+	/**
+	 * Removes a key and its value.
+	 * @param key A key
+	 * @return The value the key had, or -1 if it had none
+	 */
+	int remove(long key){
+		int i = slot(key);
+		while(values[i] >= 0 && keys[i] != key){
+			i = (i + 1) & mask;
+		}
+		int removed = values[i];
+		if(removed < 0){
+			return -1;
+		}
+		size--;
+		//shift back the entries after i that would not be found past the gap
+		int gap = i;
+		for(int j = (i + 1) & mask; values[j] >= 0; j = (j + 1) & mask){
+			int home = slot(keys[j]);
+			if(((j - home) & mask) >= ((j - gap) & mask)){
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = -1;
+		return removed;
+	}
+
+	int size(){
+		return size;
+	}
+
+	private void grow(){
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length*2];
+		values = new int[oldKeys.length*2];
+		Arrays.fill(values, -1);
+		mask = keys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldValues[i] >= 0){
+				int j = slot(oldKeys[i]);
+				while(values[j] >= 0){
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
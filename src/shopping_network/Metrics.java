@@ -0,0 +1,252 @@
+package shopping_network;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of what the engine does in the stream phase: how large crawls
+ * get, how often histories are rebuilt and how, how far purchases fan out, how many
+ * purchases are flagged, and how long each stage takes.
+ *
+ * Metrics are off unless turned on (see Network.enableMetrics). While off, the engine
+ * only tests that Network.metrics is null at each hook. While on, each hook is a few
+ * increments and, for the stages, two calls to System.nanoTime(); nothing is allocated
+ * (see Histogram).
+ *
+ * Crawls are counted by what they were for: a purchase, a befriend or an unfriend, or a
+ * run of events sharing one crawl (see Burst). The entry points of the engine set kind
+ * before crawling.
+ *
+ * The engine runs in one thread and updates the counters without synchronization. They can
+ * be read from other threads, through JMX (see register) or a periodic dump to a file (see
+ * startDump), as they change; such a reading may be off by the events in flight, and the
+ * last dump, written by stopDump, is exact.
+ * @author Kevin
+ *
+ */
+public class Metrics implements MetricsMXBean {
+
+	static final int RUN = 3;//a crawl shared by a run of events
+	static final String[] KINDS = {"purchase", "befriend", "unfriend", "run"};//indexed by Event type, then RUN
+
+	int kind = Event.PURCHASE;//what the next crawl is for
+
+	final Histogram[] crawlSize = {new Histogram(), new Histogram(), new Histogram(), new Histogram()};
+	long purchases = 0;//streamed purchases pushed to social networks
+	long componentPushes = 0;//of those, pushed to a component window only
+	final Histogram fanOut = new Histogram();//histories a purchase was pushed to
+	long usersFlagged = 0;//flagSN calls, from befriends and unfriends
+	long checks = 0;
+	long flags = 0;
+	long checksRebuilt = 0;//checks that rebuilt the purchaser's history first
+	long fullRebuilds = 0;
+	long partialRebuilds = 0;
+	long sharedJoins = 0;
+	long componentJoins = 0;
+	long edgesCancelled = 0;//befriends and unfriends a later event of their run made irrelevant (see Burst)
+	long snEvictions = 0;//histories dropped to stay under the memory limit (see Network.setSNMemoryLimit)
+	final Histogram mergeMembers = new Histogram();//members merged by a full rebuild
+	final Histogram mergeLength = new Histogram();//purchases merged by a full rebuild
+
+	//stage latencies, in nanoseconds
+	final Histogram pushNanos = new Histogram();
+	final Histogram edgeNanos = new Histogram();
+	final Histogram checkNanos = new Histogram();
+	final Histogram rebuildNanos = new Histogram();
+	final Histogram flagWriteNanos = new Histogram();
+
+	private ScheduledExecutorService dumper = null;
+	private Writer dump = null;
+
+	/**
+	 * Records the size of a crawl, for the current kind.
+	 * @param size The number of users reached, sources included
+	 */
+	void crawled(int size){
+		crawlSize[kind].record(size);
+	}
+
+	@Override
+	public long getChecks(){
+		return checks;
+	}
+
+	@Override
+	public long getFlags(){
+		return flags;
+	}
+
+	@Override
+	public double getFlagRate(){
+		return checks == 0 ? 0 : (double)flags/checks;
+	}
+
+	@Override
+	public double getRebuildRate(){
+		return checks == 0 ? 0 : (double)checksRebuilt/checks;
+	}
+
+	@Override
+	public long getFullRebuilds(){
+		return fullRebuilds;
+	}
+
+	@Override
+	public long getPartialRebuilds(){
+		return partialRebuilds;
+	}
+
+	@Override
+	public Map<String, Double> getSnapshot(){
+		Map<String, Double> m = new LinkedHashMap<String, Double>();
+		for(int k = 0; k < KINDS.length; k++){
+			put(m, "crawl."+KINDS[k]+".size", crawlSize[k]);
+		}
+		m.put("purchases", (double)purchases);
+		m.put("componentPushes", (double)componentPushes);
+		put(m, "fanOut", fanOut);
+		m.put("usersFlagged", (double)usersFlagged);
+		m.put("checks", (double)checks);
+		m.put("flags", (double)flags);
+		m.put("flagRate", getFlagRate());
+		m.put("checksRebuilt", (double)checksRebuilt);
+		m.put("rebuildRate", getRebuildRate());
+		m.put("fullRebuilds", (double)fullRebuilds);
+		m.put("partialRebuilds", (double)partialRebuilds);
+		m.put("sharedJoins", (double)sharedJoins);
+		m.put("componentJoins", (double)componentJoins);
+		m.put("edgesCancelled", (double)edgesCancelled);
+		m.put("snEvictions", (double)snEvictions);
+		put(m, "merge.members", mergeMembers);
+		put(m, "merge.length", mergeLength);
+		put(m, "stage.push.nanos", pushNanos);
+		put(m, "stage.edge.nanos", edgeNanos);
+		put(m, "stage.check.nanos", checkNanos);
+		put(m, "stage.rebuild.nanos", rebuildNanos);
+		put(m, "stage.flagWrite.nanos", flagWriteNanos);
+		return m;
+	}
+
+	private static void put(Map<String, Double> m, String name, Histogram h){
+		m.put(name+".count", (double)h.getCount());
+		m.put(name+".mean", h.getMean());
+		m.put(name+".p50", (double)h.percentile(50));
+		m.put(name+".p99", (double)h.percentile(99));
+		m.put(name+".max", (double)h.getMax());
+	}
+
+	@Override
+	public void reset(){
+		for(Histogram h : crawlSize){
+			h.clear();
+		}
+		purchases = 0;
+		componentPushes = 0;
+		fanOut.clear();
+		usersFlagged = 0;
+		checks = 0;
+		flags = 0;
+		checksRebuilt = 0;
+		fullRebuilds = 0;
+		partialRebuilds = 0;
+		sharedJoins = 0;
+		componentJoins = 0;
+		edgesCancelled = 0;
+		snEvictions = 0;
+		mergeMembers.clear();
+		mergeLength.clear();
+		pushNanos.clear();
+		edgeNanos.clear();
+		checkNanos.clear();
+		rebuildNanos.clear();
+		flagWriteNanos.clear();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, as shopping_network:type=Metrics.
+	 */
+	public void register(){
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("shopping_network:type=Metrics"));
+		} catch(JMException e){
+			throw new IllegalStateException("Cannot register metrics", e);
+		}
+	}
+
+	/**
+	 * Starts writing a snapshot (see getSnapshot) to a file at a fixed interval, from a
+	 * daemon thread. Each snapshot is one line of JSON, with the time it was taken.
+	 * This and stopDump are called from the thread running the engine.
+	 * @param file The file, which is replaced
+	 * @param intervalMillis The time between snapshots in milliseconds
+	 * @throws IOException
+	 */
+	public void startDump(File file, long intervalMillis) throws IOException{
+		if(dumper != null){
+			throw new IllegalStateException("Metrics are already being dumped");
+		}
+		dump = new FileWriter(file);
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try {
+				writeSnapshot();
+			} catch(IOException e){
+				throw new RuntimeException(e);//stops the dumps
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the periodic dump, and writes a last snapshot.
+	 * @throws IOException
+	 */
+	public void stopDump() throws IOException{
+		if(dumper == null){
+			return;
+		}
+		dumper.shutdown();
+		try {
+			dumper.awaitTermination(1, TimeUnit.MINUTES);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		dumper = null;
+		writeSnapshot();
+		dump.close();
+		dump = null;
+	}
+
+	private synchronized void writeSnapshot() throws IOException{
+		StringBuilder s = new StringBuilder(2048);
+		s.append("{\"time\": ").append(System.currentTimeMillis());
+		for(Map.Entry<String, Double> e : getSnapshot().entrySet()){
+			double v = e.getValue();
+			s.append(", \"").append(e.getKey()).append("\": ");
+			if(v == Math.rint(v)){
+				s.append((long)v);
+			} else {
+				s.append(String.format(Locale.ROOT, "%.4f", v));
+			}
+		}
+		s.append("}\n");
+		dump.write(s.toString());
+		dump.flush();
+	}
+
+}
@@ -0,0 +1,59 @@
+package shopping_network;
+
+import java.util.Map;
+
+/**
+ * The management interface of Metrics, registered as shopping_network:type=Metrics.
+ * @author Kevin
+ *
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * Gives the number of purchases checked in the stream phase.
+	 * @return A long
+	 */
+	long getChecks();
+
+	/**
+	 * Gives the number of purchases flagged as anomalous.
+	 * @return A long
+	 */
+	long getFlags();
+
+	/**
+	 * Gives the share of checked purchases that were flagged.
+	 * @return A double from 0 to 1
+	 */
+	double getFlagRate();
+
+	/**
+	 * Gives the share of checks that had to rebuild the purchaser's history first.
+	 * @return A double from 0 to 1
+	 */
+	double getRebuildRate();
+
+	/**
+	 * Gives the number of histories built from the whole social network.
+	 * @return A long
+	 */
+	long getFullRebuilds();
+
+	/**
+	 * Gives the number of histories brought up to date by a partial rebuild.
+	 * @return A long
+	 */
+	long getPartialRebuilds();
+
+	/**
+	 * Gives every counter, and the count, mean, p50, p99 and maximum of every histogram.
+	 * @return A map from metric names to values
+	 */
+	Map<String, Double> getSnapshot();
+
+	/**
+	 * Sets every counter and histogram back to zero.
+	 */
+	void reset();
+
+}
@@ -1,55 +1,2185 @@
 package shopping_network;
 
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * A container for all users. The network is expanded to accommodate new users.
  * This network relies on the range of user IDs being based on the total number
  * of users, so there should be no user with ID 923465 in a network of 10 users.
- * 
+ *
+ * The network stores every user's state in parallel primitive arrays indexed by user ID,
+ * rather than in one object per user. This keeps the per-user cost down to a few
+ * array entries and keeps a crawl walking over flat arrays. User objects are only
+ * lightweight views over these arrays and are never created on the event path.
+ *
+ * Purchase histories are rings of size T. Rather than one array per user, rings are
+ * carved out of shared slabs (see Rings): a user is given a ring slot on their first
+ * purchase (or on their first social network rebuild), and the entries for slot s live
+ * at indices s*T through s*T + T - 1. Each entry is a purchase's order key
+ * (see Purchase.orderKey) and its price in cents. Social network entries also keep
+ * the purchaser's ID.
+ *
+ * Friend lists (see Adjacency) and the purchase rings make up nearly all of the memory
+ * of a large network. By default they are kept on the heap; Network.offHeap keeps them
+ * in memory outside the heap (optionally backed by files) so that the heap, and with it
+ * GC pause times, stay small no matter how many users there are. The crawl and the
+ * rebuild run directly against either storage.
+ *
  * @author Kevin
  *
  */
-public class Network {
-	
-	ArrayList<User> users = new ArrayList<User>();
+public class Network implements Closeable {
+
+	private int numUsers = 0;
+	private int capacity = 0;
+
+	final Adjacency friends;
+
+	//crawl state (see socialNetwork); both bitsets are clear between crawls
+	long[] crawled = new long[0];//users already on the crawl list
+	long[] frontier = new long[0];//users in the level being expanded, during a bottom-up step
+	int[] sn = new int[16];//the result of the latest crawl
+	int snSize = 0;
+	int[] snLevels = new int[16];//snLevels[k] is the index in sn where users k degrees away begin
+	long friendEdges = 0;//total length of all friend lists
+	private int[] neighborBuffer = new int[16];//friends of the user being crawled
+
+	//personal purchase histories
+	int[] histSlot = new int[0];//-1 until the user's first purchase
+	int[] histHead = new int[0];//index of the oldest purchase within the ring
+	int[] histCount = new int[0];
+	final Rings hist;
+	private int histSlots = 0;
+
+	//social network purchase histories
+	boolean[] snChange = new boolean[0];//flags a change that may impact the user's social network
+	//if true, the user should rebuild their friends' purchase histories when needed
 	
+	/*
+	 * Rather than rebuilding the entire purchase history, only the affected portion is
+	 * rebuilt where possible (see partialRebuild). Flagged users keep receiving purchases
+	 * for this reason.
+	 */
+	int[] snSlot = new int[0];//-1 until the user's first rebuild, and while the user shares a window
+	int[] snHead = new int[0];
+	int[] snCount = new int[0];
+	final Rings snHist;
+	private int snSlots = 0;
+	private int[] freeSNSlots = new int[16];//slots given back (see releaseSNSlot)
+	private int freeSNSlotCount = 0;
+	private int[] slotOwner = new int[0];//the user holding each slot, or -1
+	private boolean[] slotUsed = new boolean[0];//CLOCK marks, set when a slot's history is read
+	private int clockHand = 0;
+	private long snMemoryLimit = 0;//in bytes, 0 for none (see setSNMemoryLimit)
+	private int snSlotLimit = 0;
+	private long snEvictions = 0;
+	static final int SN_ENTRY_BYTES = 20;//key, price and user
+
+	//shared social network windows (see SharedWindows); null unless turned on
+	private boolean shareWindows = false;
+	SharedWindows shared = null;//created when the stream phase begins
+	int[] snGroup = new int[0];//the shared window the user reads from, or -1
+	long[] snBallHash = new long[0];//hash of the user's social network at their last rebuild
+	private int[] ball = new int[16];//scratch: a sorted social network, the user included
+	private LongIntMap ballOwners = new LongIntMap();//ball hash -> a user with a private window
+
+	//component windows (see Components and joinComponentWindow); null unless turned on
+	Components components = null;
+	private int[] componentMembers = new int[16];
+	private final int[] coverSources = new int[64];
+
+	long[] snSum = new long[0];//in cents
+	long[] snSquareSumHi = new long[0];//128-bit sum of squares, see Cents
+	long[] snSquareSumLo = new long[0];
+	long[] mean = new long[0];//in cents, updated when a purchase is checked
+	long[] sd = new long[0];
+
+	//the outlier rule (see setOutlierRule)
+	static final int MEAN_SD = 0;
+	static final int MEDIAN_MAD = 1;
+	static final int PERCENTILE = 2;
+	private int rule = MEAN_SD;
+	private double percentile = 0;
+	OrderStatistics orderStats = null;//mirrors private windows for the robust rules
+
+	Metrics metrics = null;//null unless turned on (see enableMetrics)
+
+	//the parameters (see setParameters); until set, D and T are those of Event when first needed
+	private int degree = 0;//D
+	private int ringSize = 0;//T, fixed when the first ring is handed out
+	private int windowMinutes = 0;//0 for no time limit (see setWindowMinutes)
+	private long multiplierNum = 3;//see setOutlierMultiplier
+	private long multiplierDen = 1;
+	static final long MAX_MULTIPLIER_TERM = 1000;//keeps the median rule's comparison within a long
+
+	//the clock: the latest time of an event applied so far, and the purchases numbered in that second
+	private long currentTime = 0;
+	private int purchaseNum = 0;
+
+	//large-T mode: personal histories carry a summary for each chunk of CHUNK ring positions
+	static final int LARGE_T = 256;//the smallest T that uses large-T mode
+	static final int CHUNK = 64;
+	private int chunksPerRing = 0;//0 unless in large-T mode
+	private long[] chunkSum = new long[0];//per personal ring slot and chunk
+	private long[] chunkSquareSumHi = new long[0];
+	private long[] chunkSquareSumLo = new long[0];
+	private long runSum;//the result of rangeSums
+	private long runSquareSumHi;
+	private long runSquareSumLo;
+
+	//friendships added while streaming, for partial rebuilds; a ring of the latest ones
+	private static final int ADDED_LOG_SIZE = 1024;
+	static final int PARTIAL_REBUILD_LIMIT = 16;//the most added friendships a partial rebuild handles
+	private final int[] addedLog = new int[2*ADDED_LOG_SIZE];//pairs of users
+	private long addedLogCount = 0;
+	long[] snBuiltAt = new long[0];//addedLogCount when the user's history was last rebuilt
+	private int[] mark = new int[0];//per user, see partialRebuild
+	private int markStamp = 0;
+	private int[] partialMembers = new int[16];
+	private int[] endpoints = new int[16];
+	private long[] candidateKey = new long[16];
+	private int[] candidateUser = new int[16];
+	private int[] candidateIndex = new int[16];
+	private long[] candidatePrice = new long[16];
+
+	/**
+	 * Creates a network that keeps everything on the heap.
+	 */
 	public Network(){
-		
+		this(new HeapAdjacency(), new HeapRings(false), new HeapRings(true));
 	}
-	
+
+	/**
+	 * Creates a network with the given storage for friend lists and purchase rings.
+	 * @param friends Storage for friend lists
+	 * @param hist Storage for personal purchase histories (without users)
+	 * @param snHist Storage for social network purchase histories (with users)
+	 */
+	public Network(Adjacency friends, Rings hist, Rings snHist){
+		this.friends = friends;
+		this.hist = hist;
+		this.snHist = snHist;
+	}
+
+	/**
+	 * Creates a network that keeps friend lists and purchase rings outside the heap.
+	 * @param directory A directory for the backing files, or null to use direct buffers
+	 * @return A Network
+	 */
+	public static Network offHeap(File directory){
+		return offHeap(directory, false);
+	}
+
+	/**
+	 * Creates a network that keeps purchase rings outside the heap. Friend lists are kept
+	 * outside the heap too, unless they are compressed (see CompressedAdjacency), in which
+	 * case the compressed graph is a single array on the heap.
+	 * @param directory A directory for the backing files, or null to use direct buffers
+	 * @param compressedFriends True to use CompressedAdjacency for friend lists
+	 * @return A Network
+	 */
+	public static Network offHeap(File directory, boolean compressedFriends){
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs()){
+			throw new IllegalArgumentException("Cannot create directory for off-heap storage: "+directory);
+		}
+		return new Network(compressedFriends ? new CompressedAdjacency() : new OffHeapAdjacency(directory),
+				new OffHeapRings(false, directory, "purchases"),
+				new OffHeapRings(true, directory, "sn_purchases"));
+	}
+
 	/**
 	 * Resizes the network to accommodate higher user IDs.
 	 * @param newUserID An integer
 	 */
 	public void expandNetwork(int newUserID){
-		for(int i = users.size(); i <= newUserID; i++){
-			User u = new User(i);
-			users.add(u);
+		if(newUserID < numUsers){
+			return;
+		}
+		if(newUserID >= capacity){
+			int newCapacity = Math.max(16, capacity);
+			while(newCapacity <= newUserID){
+				newCapacity = newCapacity < (1 << 30) ? newCapacity*2 : Integer.MAX_VALUE - 8;
+			}
+			grow(newCapacity);
+		}
+		friends.expand(newUserID + 1);
+		if(components != null){
+			components.expand(newUserID + 1);
+		}
+		if(orderStats != null){
+			orderStats.expand(newUserID + 1);
 		}
+		for(int i = numUsers; i <= newUserID; i++){
+			histSlot[i] = -1;
+			snSlot[i] = -1;
+			snGroup[i] = -1;
+			snChange[i] = true;//the histories are not built during the batch phase
+		}
+		numUsers = newUserID + 1;
 	}
-	
+
+	private void grow(int newCapacity){
+		crawled = Arrays.copyOf(crawled, (newCapacity + 63) >>> 6);
+		frontier = Arrays.copyOf(frontier, (newCapacity + 63) >>> 6);
+		histSlot = Arrays.copyOf(histSlot, newCapacity);
+		histHead = Arrays.copyOf(histHead, newCapacity);
+		histCount = Arrays.copyOf(histCount, newCapacity);
+		snChange = Arrays.copyOf(snChange, newCapacity);
+		snSlot = Arrays.copyOf(snSlot, newCapacity);
+		snGroup = Arrays.copyOf(snGroup, newCapacity);
+		snBallHash = Arrays.copyOf(snBallHash, newCapacity);
+		snBuiltAt = Arrays.copyOf(snBuiltAt, newCapacity);
+		mark = Arrays.copyOf(mark, newCapacity);
+		snHead = Arrays.copyOf(snHead, newCapacity);
+		snCount = Arrays.copyOf(snCount, newCapacity);
+		snSum = Arrays.copyOf(snSum, newCapacity);
+		snSquareSumHi = Arrays.copyOf(snSquareSumHi, newCapacity);
+		snSquareSumLo = Arrays.copyOf(snSquareSumLo, newCapacity);
+		mean = Arrays.copyOf(mean, newCapacity);
+		sd = Arrays.copyOf(sd, newCapacity);
+		capacity = newCapacity;
+	}
+
 	/**
 	 * Finds the user with the given ID.
+	 * The User is a view over the network's arrays; it is created on each call.
 	 * @param userID An integer
 	 * @return A User
 	 */
 	public User getUser(int userID){
-		if(userID >= users.size()){
-			expandNetwork(userID);
+		expandNetwork(userID);
+		return new User(this, userID);
+	}
+
+	/**
+	 * Marks the end of the batch phase. Storage that reorganizes itself (such as
+	 * CompressedAdjacency) does so here, since few friendships change afterwards.
+	 */
+	public void startStreaming(){
+		friends.compact();
+		if(orderStats != null && (shareWindows || components != null)){
+			throw new IllegalStateException("The median and percentile rules need a private window for each user,"
+					+ " so they cannot be used with shared or component windows");
+		}
+		if((shareWindows || components != null) && shared == null){
+			shared = new SharedWindows(ringSize());
+		}
+		if(snMemoryLimit > 0){
+			snSlotLimit = (int)Math.max(1, Math.min(Integer.MAX_VALUE/ringSize(), snMemoryLimit/((long)SN_ENTRY_BYTES*ringSize())));
 		}
-		return users.get(userID);
 	}
-	
+
+	/**
+	 * Lets users whose social networks are identical share one social network window
+	 * (see SharedWindows). Takes effect when the stream phase begins.
+	 */
+	public void shareSNPurchaseHistories(){
+		shareWindows = true;
+	}
+
+	/**
+	 * Selects the rule for flagging a purchase. By default (MEAN_SD) a purchase is flagged
+	 * if it is more than 3 standard deviations above the mean of the window. The robust
+	 * rules are not pulled up by the very outliers they are looking for:
+	 *  - MEDIAN_MAD: more than 3 scaled median absolute deviations above the median
+	 *    (see OrderStatistics.isMADOutlier).
+	 *  - PERCENTILE: above the given percentile of the window (by nearest rank).
+	 * The robust rules keep every window in an order-statistics structure as well (see
+	 * OrderStatistics), and need private windows. Either way, a window with fewer than 2
+	 * purchases flags nothing, and flags report the mean and standard deviation.
+	 * @param rule MEAN_SD, MEDIAN_MAD or PERCENTILE
+	 * @param percentile For PERCENTILE, a percentile above 0 and at most 100
+	 */
+	public void setOutlierRule(int rule, double percentile){
+		if(rule == PERCENTILE && !(percentile > 0 && percentile <= 100)){
+			throw new IllegalArgumentException("Percentile must be above 0 and at most 100: "+percentile);
+		}
+		if(rule != MEAN_SD && rule != MEDIAN_MAD && rule != PERCENTILE){
+			throw new IllegalArgumentException("Unknown outlier rule: "+rule);
+		}
+		this.rule = rule;
+		this.percentile = percentile;
+		if(rule != MEAN_SD && orderStats == null){
+			orderStats = new OrderStatistics();
+			orderStats.expand(numUsers);
+		}
+	}
+
+	/**
+	 * Sets the parameters of this network, in place of Event.D and Event.T, so that
+	 * networks with different parameters can be run at the same time (see Backtest).
+	 * Without this, D and T are taken from Event when first needed. It must be called
+	 * before the first purchase is added, since T fixes the size of every purchase history.
+	 * @param D The number of degrees in a social network, at least 1
+	 * @param T The number of purchases in a window, at least 2
+	 * @param windowMinutes If positive, only purchases made less than this many minutes
+	 *        ago are in a window; 0 for no time limit
+	 */
+	public void setParameters(int D, int T, int windowMinutes){
+		if(D < 1 || T < 2){
+			throw new IllegalArgumentException("Invalid parameters: D = "+D+", T = "+T);
+		}
+		if(ringSize != 0 && ringSize != T){
+			throw new IllegalStateException("T is already fixed at "+ringSize);
+		}
+		degree = D;
+		if(ringSize == 0){
+			fixRingSize(T);
+		}
+		setWindowMinutes(windowMinutes);
+	}
+
+	/**
+	 * Adds a time limit to the window: only purchases made less than the given number of
+	 * minutes before the current time (see now) are used, and at most T of them.
+	 * @param windowMinutes A positive number of minutes, or 0 for no time limit
+	 */
+	public void setWindowMinutes(int windowMinutes){
+		if(windowMinutes < 0){
+			throw new IllegalArgumentException("Time window must not be negative: "+windowMinutes+" minutes");
+		}
+		this.windowMinutes = windowMinutes;
+	}
+
+	/**
+	 * Sets the multiplier of the rules that flag a purchase some number of deviations
+	 * above the middle of the window (MEAN_SD and MEDIAN_MAD; see setOutlierRule). It is
+	 * a fraction, so that 2.5 standard deviations is 5/2. The default is 3.
+	 * @param num The numerator, positive
+	 * @param den The denominator, positive
+	 */
+	public void setOutlierMultiplier(long num, long den){
+		if(num <= 0 || den <= 0 || num > MAX_MULTIPLIER_TERM || den > MAX_MULTIPLIER_TERM){
+			throw new IllegalArgumentException("Invalid multiplier: "+num+"/"+den);
+		}
+		multiplierNum = num;
+		multiplierDen = den;
+	}
+
+	/**
+	 * Tracks connected components (see Components), so that the users of a component
+	 * that is the social network of each of them read from one component window rather
+	 * than crawling (see joinComponentWindow). Friendships already added are taken into
+	 * account, but it is cheapest to call this before the batch phase.
+	 */
+	public void useComponentWindows(){
+		if(components != null){
+			return;
+		}
+		components = new Components();
+		components.expand(numUsers);
+		for(int u = 0; u < numUsers; u++){
+			int degree = friends.degree(u);
+			if(neighborBuffer.length < degree){
+				neighborBuffer = new int[Math.max(degree, neighborBuffer.length*2)];
+			}
+			friends.neighbors(u, neighborBuffer);
+			for(int i = 0; i < degree; i++){
+				int ru = components.find(u);
+				int rv = components.find(neighborBuffer[i]);
+				if(ru != rv){
+					components.union(ru, rv);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bounds the memory used by (private) social network histories. Once the limit is
+	 * reached, the histories of the users checked least recently are dropped and rebuilt
+	 * on demand (see allocateSNSlot), and flagged users give their histories back at once.
+	 * Takes effect when the stream phase begins, since the size of a history depends on T.
+	 * @param bytes A number of bytes, or 0 for no limit
+	 */
+	public void setSNMemoryLimit(long bytes){
+		snMemoryLimit = bytes;
+	}
+
+	/**
+	 * Gives the number of social network histories dropped to stay under the memory limit.
+	 * @return A long
+	 */
+	public long getSNEvictions(){
+		return snEvictions;
+	}
+
+	/**
+	 * Turns on counting of crawls, rebuilds, fan-out, flags and stage latencies (see Metrics).
+	 * @return The metrics, which keep counting for the life of the network
+	 */
+	public Metrics enableMetrics(){
+		if(metrics == null){
+			metrics = new Metrics();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Gives the metrics of the network.
+	 * @return The metrics, or null if they are not turned on
+	 */
+	public Metrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * Flags a change that may impact the user's social network. A user who shares a
+	 * window leaves it, since their social network may no longer match the others'.
+	 * A user of a component window is not flagged: their social network is their whole
+	 * component, and any change to the component ends the window (see dissolveComponent).
+	 * @param u A user ID
+	 */
+	public void flagSN(int u){
+		if(components != null && snGroup[u] >= 0 && components.window[components.find(u)] == snGroup[u]){
+			return;
+		}
+		snChange[u] = true;
+		if(snSlotLimit > 0 && snSlot[u] >= 0){
+			releaseSNSlot(u);//under a memory limit, a stale history is not worth keeping for a partial rebuild
+		}
+		int g = snGroup[u];
+		if(g >= 0){
+			snGroup[u] = -1;
+			shared.leave(g);
+		}
+	}
+
 	/**
 	 * Gives the number of users in the network.
 	 * @return An integer
 	 */
 	public int getNumUsers(){
-		return users.size();
+		return numUsers;
+	}
+
+
+
+	/**
+	 * Adds v as a friend of u.
+	 * This method first checks if the users are already friends.
+	 * In the streaming stage, it also flags sufficiently close users
+	 * that there is a change in their social network.
+	 * @param u A user ID
+	 * @param v A user ID
+	 * @param streaming True if currently streaming
+	 * @return False if they were already friends
+	 */
+	public boolean addFriend(int u, int v, boolean streaming){
+		expandNetwork(Math.max(u, v));
+		if(friends.contains(u, v)){
+			return false;
+		}
+		boolean covered = false;//within a component that is the social network of each of its users
+		if(components != null){
+			int ru = components.find(u);
+			int rv = components.find(v);
+			if(ru != rv){
+				dissolveComponent(ru);
+				dissolveComponent(rv);
+				components.union(ru, rv);
+			} else if(components.window[ru] >= 0){
+				covered = true;
+			} else {
+				components.changed(ru);
+			}
+		}
+		if(streaming){
+			FlightEvents.EdgeInvalidation event = new FlightEvents.EdgeInvalidation();
+			event.begin();
+			long start = 0;
+			if(metrics != null){
+				metrics.kind = Event.BEFRIEND;
+				start = System.nanoTime();
+			}
+			int size = 0;
+			if(!covered){
+				size = socialNetwork(u, degree() - 1);
+				for(int i = 0; i < size; i++){
+					flagSN(sn[i]);//flags sufficiently close users that there is a change in their social network
+				}
+				if(metrics != null){
+					metrics.usersFlagged += size;
+				}
+			}
+			logAddedFriendship(u, v);
+			if(metrics != null){
+				metrics.edgeNanos.record(System.nanoTime() - start);
+			}
+			event.end();
+			if(event.shouldCommit()){
+				event.user = u;
+				event.friend = v;
+				event.kind = "befriend";
+				event.degree = degree() - 1;
+				event.flagged = size;
+				event.commit();
+			}
+		}
+		friends.add(u, v);
+		friendEdges++;
+		return true;
+	}
+
+	/**
+	 * Records that v was added as a friend of u while streaming (see partialRebuild).
+	 * @param u A user ID
+	 * @param v A user ID
+	 */
+	void logAddedFriendship(int u, int v){
+		int i = (int)(addedLogCount % ADDED_LOG_SIZE);
+		addedLog[2*i] = u;
+		addedLog[2*i + 1] = v;
+		addedLogCount++;
+	}
+
+	/**
+	 * Removes v as a friend of u.
+	 * If the users are not currently friends, this method will do nothing.
+	 * This method also flags sufficiently close users that there is a change in their social network.
+	 * @param u A user ID
+	 * @param v A user ID
+	 * @param streaming True if currently streaming
+	 * @return False if they were not friends
+	 */
+	public boolean removeFriend(int u, int v, boolean streaming){
+		expandNetwork(Math.max(u, v));
+		if(friends.remove(u, v)){
+			friendEdges--;
+			if(components != null){
+				int r = components.find(u);
+				dissolveComponent(r);
+				components.split[r] = true;
+				components.changed(r);
+			}
+			if(streaming){
+				FlightEvents.EdgeInvalidation event = new FlightEvents.EdgeInvalidation();
+				event.begin();
+				long start = 0;
+				if(metrics != null){
+					metrics.kind = Event.UNFRIEND;
+					start = System.nanoTime();
+				}
+				int size = socialNetwork(u, degree() - 1);
+				for(int j = 0; j < size; j++){
+					flagSN(sn[j]);
+				}
+				if(metrics != null){
+					metrics.usersFlagged += size;
+					metrics.edgeNanos.record(System.nanoTime() - start);
+				}
+				event.end();
+				if(event.shouldCommit()){
+					event.user = u;
+					event.friend = v;
+					event.kind = "unfriend";
+					event.degree = degree() - 1;
+					event.flagged = size;
+					event.commit();
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Generates a user's social network for a given degree.
+	 * The crawl iterates on a list of users, one level of separation at a time.
+	 * It begins with the list consisting of the original user, at level 0. Each step
+	 * adds the users at the next level to the back of the list: those not already on
+	 * the list who are friends with someone at the current level. The steps continue
+	 * until the given degree is reached or a level is empty.
+	 *
+	 * A step can be taken in one of two directions:
+	 *  - Top-down: every friend of every user at the current level is checked, and those
+	 *    not yet on the list are added. This is cheap while the level is small.
+	 *  - Bottom-up: every user not yet on the list checks their own friends for someone at
+	 *    the current level, stopping at the first one found. In a dense neighborhood most
+	 *    friends of the current level are already on the list, so the top-down step would
+	 *    mostly check edges that lead nowhere; the bottom-up step skips them.
+	 * A step is taken bottom-up when the friend lists of the current level are longer
+	 * than 1/ALPHA of the friend lists of everyone not yet reached, and stays bottom-up
+	 * until the level shrinks below 1/BETA of all users. (This is the usual direction-
+	 * optimizing BFS; it relies on friendships being two-way, as they are in the logs.)
+	 * Users on the list and at the current level are tracked in the crawled and frontier
+	 * bitsets, which are cleared again before returning.
+	 *
+	 * The list is left in sn, which is reused between crawls, and includes the original
+	 * user as the first element. Users k degrees away are at indices snLevels[k] through
+	 * snLevels[k+1] - 1. The list is only valid until the next crawl.
+	 *
+	 * @param u A user ID
+	 * @param degree The maximum number of degrees of separation to be used.
+	 * @return The number of users in sn.
+	 */
+	public int socialNetwork(int u, int degree){
+		sn[0] = u;
+		crawled[u >>> 6] |= 1L << u;
+		return crawl(1, degree);
+	}
+
+	/**
+	 * Generates the combined social network of several users for a given degree: everyone
+	 * within the given degree of at least one of them. This is one crawl, however many
+	 * users are given. The given users are at level 0 (duplicates are dropped).
+	 * @param users An array of user IDs
+	 * @param count The number of user IDs in the array
+	 * @param degree The maximum number of degrees of separation to be used.
+	 * @return The number of users in sn.
+	 */
+	public int socialNetwork(int[] users, int count, int degree){
+		if(sn.length < count){
+			sn = new int[count];
+		}
+		int size = 0;
+		for(int i = 0; i < count; i++){
+			int u = users[i];
+			if((crawled[u >>> 6] & (1L << u)) == 0){
+				crawled[u >>> 6] |= 1L << u;
+				sn[size++] = u;
+			}
+		}
+		return crawl(size, degree);
+	}
+
+	/**
+	 * Runs the crawl from the users in sn[0] through sn[sources-1], already marked as crawled.
+	 * @param sources The number of users at level 0
+	 * @param degree The maximum number of degrees of separation to be used.
+	 * @return The number of users in sn.
+	 */
+	private int crawl(int sources, int degree){
+		FlightEvents.Crawl event = new FlightEvents.Crawl();
+		event.begin();
+		Adjacency friends = this.friends;
+		long[] crawled = this.crawled;
+		if(snLevels.length < degree + 2){
+			snLevels = new int[Math.max(degree + 2, 2)];
+		}
+		snLevels[0] = 0;
+		int size = sources;
+		int start = 0;//the current level is sn[start] through sn[size-1]
+		long levelEdges = 0;
+		for(int i = 0; i < sources; i++){
+			levelEdges += friends.degree(sn[i]);
+		}
+		long unreachedEdges = friendEdges - levelEdges;
+		boolean bottomUp = false;
+		int level = 0;
+		while(level < degree && start < size){
+			int end = size;
+			if(bottomUp){
+				bottomUp = (long)(end - start)*BETA >= numUsers;
+			} else {
+				bottomUp = levelEdges*ALPHA > unreachedEdges;
+			}
+			if(bottomUp){
+				size = bottomUpStep(start, end);
+			} else {
+				size = topDownStep(start, end);
+			}
+			levelEdges = 0;
+			for(int i = end; i < size; i++){
+				levelEdges += friends.degree(sn[i]);
+			}
+			unreachedEdges -= levelEdges;
+			start = end;
+			level++;
+			snLevels[level] = start;
+		}
+		for(int k = level + 1; k < snLevels.length; k++){
+			snLevels[k] = size;
+		}
+		int[] list = sn;
+		for(int j = 0; j < size; j++){
+			crawled[list[j] >>> 6] = 0;//whole words; every bit set belongs to a user on the list
+		}
+		snSize = size;
+		if(metrics != null){
+			metrics.crawled(size);
+		}
+		event.end();
+		if(event.shouldCommit()){
+			event.user = sources == 1 ? list[0] : -1;
+			event.sources = sources;
+			event.degree = degree;
+			event.size = size;
+			event.commit();
+		}
+		return size;
+	}
+
+	static final int ALPHA = 14;
+	static final int BETA = 24;
+
+
+	//multi-source crawl state (see socialNetworks), allocated on first use
+	private long[] msSeen = new long[0];//per user, the sources that have reached them
+	private long[] msVisit = new long[0];//per user, the sources expanding from them at this level
+	private long[] msVisitNext = new long[0];
+	private int[] msFrontier = new int[16];
+	private int[] msNext = new int[16];
+	int[] msReached = new int[16];//the result of the latest multi-source crawl
+	long[] msMask = new long[16];//parallel to msReached: bit i is set if source i reached the user
+	int msSize = 0;
+
+	/**
+	 * Generates the social networks of up to 64 users at once, in a single crawl.
+	 * Each user reached is given a 64-bit mask, where bit i is set if they are within the
+	 * given degree of sources[i]. Every level expands all sources together: a user passes
+	 * on, to each friend, the bits of the sources that reached them at this level and have
+	 * not reached the friend yet. Where the networks overlap, which they do heavily for a
+	 * burst of events in one neighborhood, each friend list is read once per level rather
+	 * than once per source. (This is the multi-source BFS of Then et al.)
+	 *
+	 * The users reached (sources included) are left in msReached with their masks in
+	 * msMask, in the order they were first reached. They are only valid until the next
+	 * multi-source crawl.
+	 * @param sources An array of user IDs; the same user may appear more than once
+	 * @param count The number of sources, at most 64
+	 * @param degree The maximum number of degrees of separation to be used.
+	 * @return The number of users in msReached.
+	 */
+	public int socialNetworks(int[] sources, int count, int degree){
+		if(count > 64){
+			throw new IllegalArgumentException("At most 64 sources can be crawled at once: "+count);
+		}
+		FlightEvents.Crawl event = new FlightEvents.Crawl();
+		event.begin();
+		if(msSeen.length < capacity){
+			msSeen = new long[capacity];
+			msVisit = new long[capacity];
+			msVisitNext = new long[capacity];
+		}
+		long[] seen = msSeen;
+		long[] visit = msVisit;
+		long[] next = msVisitNext;
+		Adjacency friends = this.friends;
+		int[] reached = msReached;
+		int[] frontier = msFrontier;
+		if(reached.length < count){
+			reached = new int[count];
+		}
+		if(frontier.length < count){
+			frontier = new int[count];
+		}
+		int size = 0;
+		int frontierSize = 0;
+		for(int i = 0; i < count; i++){
+			int s = sources[i];
+			if(seen[s] == 0){
+				reached[size++] = s;
+				frontier[frontierSize++] = s;
+			}
+			seen[s] |= 1L << i;
+			visit[s] |= 1L << i;
+		}
+		int[] nextFrontier = msNext;
+		for(int level = 0; level < degree && frontierSize > 0; level++){
+			int nextSize = 0;
+			for(int i = 0; i < frontierSize; i++){
+				int w = frontier[i];
+				long bits = visit[w];
+				int friendCount = friends.degree(w);
+				if(friendCount > neighborBuffer.length){
+					neighborBuffer = new int[Math.max(friendCount, neighborBuffer.length*2)];
+				}
+				int[] f = neighborBuffer;
+				friends.neighbors(w, f);
+				for(int j = 0; j < friendCount; j++){
+					int x = f[j];
+					long newBits = bits & ~seen[x];
+					if(newBits != 0){
+						if(next[x] == 0){
+							if(nextSize == nextFrontier.length){
+								nextFrontier = Arrays.copyOf(nextFrontier, nextSize*2);
+							}
+							nextFrontier[nextSize++] = x;
+						}
+						next[x] |= newBits;
+						if(seen[x] == 0){
+							if(size == reached.length){
+								reached = Arrays.copyOf(reached, size*2);
+							}
+							reached[size++] = x;
+						}
+						seen[x] |= newBits;
+					}
+				}
+			}
+			for(int i = 0; i < frontierSize; i++){
+				visit[frontier[i]] = 0;
+			}
+			for(int i = 0; i < nextSize; i++){
+				int x = nextFrontier[i];
+				visit[x] = next[x];
+				next[x] = 0;
+			}
+			int[] t = frontier;
+			frontier = nextFrontier;
+			nextFrontier = t;
+			frontierSize = nextSize;
+		}
+		for(int i = 0; i < frontierSize; i++){
+			visit[frontier[i]] = 0;
+		}
+		if(msMask.length < reached.length){
+			msMask = new long[reached.length];
+		}
+		for(int i = 0; i < size; i++){
+			msMask[i] = seen[reached[i]];
+			seen[reached[i]] = 0;
+		}
+		msReached = reached;
+		msFrontier = frontier;
+		msNext = nextFrontier;
+		msSize = size;
+		if(metrics != null){
+			metrics.crawled(size);
+		}
+		event.end();
+		if(event.shouldCommit()){
+			event.user = count == 1 ? sources[0] : -1;
+			event.sources = count;
+			event.degree = degree;
+			event.size = size;
+			event.multiSource = true;
+			event.commit();
+		}
+		return size;
+	}
+
+	/**
+	 * Adds everyone reachable from sn[start] through sn[end-1] to the back of sn, by
+	 * checking the friends of each.
+	 * @param start The index of the first user at the current level
+	 * @param end The index after the last user at the current level
+	 * @return The new size of sn
+	 */
+	private int topDownStep(int start, int end){
+		Adjacency friends = this.friends;
+		long[] crawled = this.crawled;
+		int[] list = sn;
+		int size = end;
+		for(int i = start; i < end; i++){
+			int w = list[i];
+			int count = friends.degree(w);
+			if(count > neighborBuffer.length){
+				neighborBuffer = new int[Math.max(count, neighborBuffer.length*2)];
+			}
+			int[] f = neighborBuffer;
+			friends.neighbors(w, f);
+			for(int j = 0; j < count; j++){
+				int x = f[j];
+				long bit = 1L << x;
+				if((crawled[x >>> 6] & bit) == 0){
+					crawled[x >>> 6] |= bit;
+					if(size == list.length){
+						list = Arrays.copyOf(list, size*2);
+					}
+					list[size++] = x;
+				}
+			}
+		}
+		sn = list;
+		return size;
+	}
+
+	/**
+	 * Adds everyone reachable from sn[start] through sn[end-1] to the back of sn, by
+	 * having each user not yet on the list look for a friend among them.
+	 * @param start The index of the first user at the current level
+	 * @param end The index after the last user at the current level
+	 * @return The new size of sn
+	 */
+	private int bottomUpStep(int start, int end){
+		Adjacency friends = this.friends;
+		long[] crawled = this.crawled;
+		long[] frontier = this.frontier;
+		int[] list = sn;
+		for(int i = start; i < end; i++){
+			frontier[list[i] >>> 6] |= 1L << list[i];
+		}
+		int size = end;
+		int words = (numUsers + 63) >>> 6;
+		for(int word = 0; word < words; word++){
+			long unreached = ~crawled[word];
+			if(word == words - 1 && (numUsers & 63) != 0){
+				unreached &= (1L << (numUsers & 63)) - 1;
+			}
+			while(unreached != 0){
+				int x = (word << 6) + Long.numberOfTrailingZeros(unreached);
+				unreached &= unreached - 1;
+				if(friends.firstNeighborIn(x, frontier) >= 0){
+					crawled[word] |= 1L << x;
+					if(size == list.length){
+						list = Arrays.copyOf(list, size*2);
+					}
+					list[size++] = x;
+				}
+			}
+		}
+		for(int i = start; i < end; i++){
+			frontier[list[i] >>> 6] = 0;
+		}
+		sn = list;
+		return size;
+	}
+
+
+	/**
+	 * Adds a user's purchase to their personal history.
+	 * Also adds the purchase to the network histories of the
+	 * users in the current user's social network.
+	 * @param u The ID of the user who made the purchase
+	 * @param key The order key of the purchase
+	 * @param price The price in cents
+	 * @param streaming True if currently streaming
+	 */
+	public void addPurchase(int u, long key, long price, boolean streaming){
+		expandNetwork(u);
+		int T = ringSize();
+		int slot = histSlot[u];
+		if(slot < 0){
+			slot = histSlots++;
+			histSlot[u] = slot;
+			hist.ensure((long)histSlots*T);
+			if(chunksPerRing > 0 && (long)histSlots*chunksPerRing > chunkSum.length){
+				int length = (int)Math.min(Integer.MAX_VALUE - 8, Math.max((long)histSlots*chunksPerRing, 2L*chunkSum.length));
+				chunkSum = Arrays.copyOf(chunkSum, length);
+				chunkSquareSumHi = Arrays.copyOf(chunkSquareSumHi, length);
+				chunkSquareSumLo = Arrays.copyOf(chunkSquareSumLo, length);
+			}
+		}
+		int count = histCount[u];
+		int pos;
+		if(count < T){
+			pos = histHead[u] + count;
+			if(pos >= T){
+				pos -= T;
+			}
+			histCount[u] = count + 1;
+		} else {
+			pos = histHead[u];//overwrites the oldest purchase
+			histHead[u] = pos + 1 == T ? 0 : pos + 1;
+			if(chunksPerRing > 0){
+				addToChunk(slot, pos, hist.price((long)slot*T + pos), false);
+			}
+		}
+		hist.set((long)slot*T + pos, key, price, u);
+		if(chunksPerRing > 0){
+			addToChunk(slot, pos, price, true);
+		}
+
+		if(streaming){
+			FlightEvents.FanOut event = new FlightEvents.FanOut();
+			event.begin();
+			long start = 0;
+			if(metrics != null){
+				metrics.kind = Event.PURCHASE;
+				metrics.purchases++;
+				start = System.nanoTime();
+			}
+			if(components != null){
+				int g = components.window[components.find(u)];
+				if(g >= 0){
+					shared.beginFanOut();
+					shared.push(g, key, price, u);//everyone the purchase reaches reads from this window
+					if(metrics != null){
+						metrics.componentPushes++;
+						metrics.pushNanos.record(System.nanoTime() - start);
+					}
+					event.end();
+					if(event.shouldCommit()){
+						fannedOut(event, u, -1, price);
+					}
+					return;
+				}
+			}
+			int size = socialNetwork(u, degree());
+			if(shared == null){
+				for(int i = 1; i < size; i++){
+					addSNPurchase(sn[i], key, price, u);
+				}
+			} else {
+				shared.beginFanOut();
+				for(int i = 0; i < size; i++){
+					pushSNPurchase(sn[i], key, price, u);
+				}
+			}
+			if(metrics != null){
+				metrics.fanOut.record(size - 1);
+				metrics.pushNanos.record(System.nanoTime() - start);
+			}
+			event.end();
+			if(event.shouldCommit()){
+				fannedOut(event, u, size - 1, price);
+			}
+		}
+	}
+
+	void fannedOut(FlightEvents.FanOut event, int u, int reached, long price){
+		event.user = u;
+		event.degree = degree();
+		event.reached = reached;
+		event.amount = price;
+		event.commit();
+	}
+
+	/**
+	 * Adds a purchase to the social network history that a user reads from: their own,
+	 * or the window they share. A shared window only takes a purchase once per fan-out
+	 * (see SharedWindows.beginFanOut), and also takes purchases by its own users.
+	 * @param v A user in the buyer's social network, or the buyer
+	 * @param key The order key of the purchase
+	 * @param price The price in cents
+	 * @param buyer The ID of the user who made the purchase
+	 */
+	void pushSNPurchase(int v, long key, long price, int buyer){
+		int g = snGroup[v];
+		if(g >= 0){
+			shared.push(g, key, price, buyer);
+		} else if(v != buyer){
+			addSNPurchase(v, key, price, buyer);
+		}
+	}
+
+	/**
+	 * Adds a purchase to the social network purchase history of a user,
+	 * and updates analytics variables appropriately.
+	 * @param u The user whose history is updated
+	 * @param key The order key of the purchase
+	 * @param price The price in cents
+	 * @param buyer The ID of the user who made the purchase
+	 */
+	protected void addSNPurchase(int u, long key, long price, int buyer){
+		if(snSlot[u] < 0){
+			return;//not built yet, or reads from a shared window
+		}
+		int T = ringSize;
+		long base = (long)snSlot[u]*T;
+		int count = snCount[u];
+		int pos;
+		if(count < T){
+			pos = snHead[u] + count;
+			if(pos >= T){
+				pos -= T;
+			}
+			snCount[u] = count + 1;
+		} else {
+			pos = snHead[u];
+			removeFromSums(u, snHist.price(base + pos));
+			if(orderStats != null){
+				orderStats.remove(u, snHist.price(base + pos), snHist.key(base + pos));
+			}
+			snHead[u] = pos + 1 == T ? 0 : pos + 1;
+		}
+		snHist.set(base + pos, key, price, buyer);
+		addToSums(u, price);
+		if(orderStats != null){
+			orderStats.insert(u, price, key);
+		}
+	}
+
+	private void addToSums(int u, long price){
+		snSum[u] += price;
+		snSquareSumHi[u] = Cents.addSquareHi(snSquareSumHi[u], snSquareSumLo[u], price);
+		snSquareSumLo[u] = Cents.addSquareLo(snSquareSumLo[u], price);
+	}
+	private void removeFromSums(int u, long price){
+		snSum[u] -= price;
+		snSquareSumHi[u] = Cents.subtractSquareHi(snSquareSumHi[u], snSquareSumLo[u], price);
+		snSquareSumLo[u] = Cents.subtractSquareLo(snSquareSumLo[u], price);
+	}
+
+
+	//scratch arrays for mergeLatest, parallel to each other
+	private int[] mergeUser = new int[16];//whose history
+	private int[] mergeIndex = new int[16];//position in that history, counted from the oldest
+	private long[] mergeKey = new long[16];//key of the purchase at that position
+	//the result of mergeLatest, latest purchase first
+	long[] mergedKey = new long[16];
+	long[] mergedPrice = new long[16];
+	int[] mergedUser = new int[16];
+
+	/**
+	 * Builds (or rebuilds) the social network purchase history of a user.
+	 * First, it crawls and generates the social network. Then it finds the most recent
+	 * purchases and builds them. The sums are exact, so they are accumulated while
+	 * the merged purchases are written rather than in a second pass over the new history.
+	 * If the user's component is their social network, they join its component window
+	 * instead, without a crawl (see joinComponentWindow).
+	 * @param u A user ID
+	 */
+	protected void buildSNPurchaseHistory(int u){
+		FlightEvents.Rebuild event = new FlightEvents.Rebuild();
+		event.begin();
+		if(joinComponentWindow(u)){
+			if(metrics != null){
+				metrics.componentJoins++;
+			}
+			event.end();
+			if(event.shouldCommit()){
+				rebuilt(event, u, components.size[components.find(u)] - 1, 0, "component");
+			}
+			return;
+		}
+		int size = socialNetwork(u, degree());
+		buildSNPurchaseHistory(u, sn, 1, size);//we start at 1 because the current user is at index 0
+	}
+
+	/**
+	 * Builds (or rebuilds) the social network purchase history of a user from the
+	 * histories of the given members of their social network, found by an earlier crawl.
+	 * If windows are shared, the user joins a shared window instead when one matches.
+	 * @param u A user ID
+	 * @param members An array holding the user's social network, without the user
+	 * @param from The index of the first member
+	 * @param to The index after the last member
+	 */
+	void buildSNPurchaseHistory(int u, int[] members, int from, int to){
+		FlightEvents.Rebuild event = new FlightEvents.Rebuild();
+		event.begin();
+		int size = to - from;
+		if(partialMembers.length < size){
+			partialMembers = new int[Math.max(size, partialMembers.length*2)];
+		}
+		//the members may be in sn, which both joinSharedWindow (to check a candidate) and partialRebuild reuse
+		System.arraycopy(members, from, partialMembers, 0, size);
+		members = partialMembers;
+		from = 0;
+		to = size;
+		if(shareWindows && joinSharedWindow(u, members, from, to)){
+			snChange[u] = false;
+			snBuiltAt[u] = addedLogCount;
+			if(metrics != null){
+				metrics.sharedJoins++;
+			}
+			event.end();
+			if(event.shouldCommit()){
+				rebuilt(event, u, size, 0, "shared");
+			}
+			return;
+		}
+		if(snSlot[u] >= 0 && partialRebuild(u, members, size)){
+			if(metrics != null){
+				metrics.partialRebuilds++;
+			}
+			event.end();
+			if(event.shouldCommit()){
+				rebuilt(event, u, size, snCount[u], "partial");
+			}
+			return;
+		}
+		buildPrivateHistory(u, members, from, to);
+		event.end();
+		if(event.shouldCommit()){
+			rebuilt(event, u, size, snCount[u], "full");
+		}
+	}
+
+	private void rebuilt(FlightEvents.Rebuild event, int u, int members, int merged, String kind){
+		event.user = u;
+		event.degree = degree();
+		event.members = members;
+		event.merged = merged;
+		event.kind = kind;
+		event.commit();
+	}
+
+	private void buildPrivateHistory(int u, int[] members, int from, int to){
+		int T = ringSize();
+		int m = chunksPerRing > 0 ? 0 : mergeLatest(members, from, to, T, Long.MAX_VALUE);
+
+		int slot = snSlot[u];
+		if(slot < 0){
+			slot = allocateSNSlot(u);
+		}
+		slotUsed[slot] = true;
+		long base = (long)slot*T;
+		snSum[u] = 0;
+		snSquareSumHi[u] = 0;
+		snSquareSumLo[u] = 0;
+
+		//the history is filled from the back, latest purchase first
+		int pos = T;
+		if(chunksPerRing > 0){
+			pos = mergeRuns(u, members, from, to, base);
+		}
+		for(int i = 0; i < m; i++){
+			pos--;
+			snHist.set(base + pos, mergedKey[i], mergedPrice[i], mergedUser[i]);
+			addToSums(u, mergedPrice[i]);
+		}
+		snHead[u] = pos == T ? 0 : pos;
+		snCount[u] = T - pos;
+		snChange[u] = false;
+		snBuiltAt[u] = addedLogCount;
+		if(orderStats != null){
+			mirrorWindow(u);
+		}
+		if(metrics != null){
+			metrics.fullRebuilds++;
+			metrics.mergeMembers.record(to - from);
+			metrics.mergeLength.record(T - pos);
+		}
+	}
+
+	/**
+	 * Refills the order-statistics structure of a user from their rebuilt window.
+	 * @param u A user with a history
+	 */
+	private void mirrorWindow(int u){
+		orderStats.clear(u);
+		for(int i = 0; i < snCount[u]; i++){
+			long index = snIndex(u, i);
+			orderStats.insert(u, snHist.price(index), snHist.key(index));
+		}
+	}
+
+	/**
+	 * The merge for large-T mode. Rather than taking purchases one at a time, it takes
+	 * runs: the member with the latest purchase contributes every purchase back to the
+	 * next member's latest, found by binary search in their history. The run is copied
+	 * into the user's history as a block, and its sums come from the chunk summaries of
+	 * the member's history (see rangeSums). So the heap-like bookkeeping and the sums cost
+	 * per run and per chunk rather than per purchase, and only the copying is per purchase.
+	 * @param u A user ID, whose sums have been cleared
+	 * @param members An array holding the user's social network, without the user
+	 * @param from The index of the first member
+	 * @param to The index after the last member
+	 * @param base The index of the user's ring in snHist
+	 * @return The position of the oldest purchase written (T if none)
+	 */
+	private int mergeRuns(int u, int[] members, int from, int to, long base){
+		int size = to - from;
+		if(mergeUser.length < size){
+			mergeUser = new int[size];
+			mergeIndex = new int[size];
+			mergeKey = new long[size];
+		}
+		int[] mu = mergeUser;
+		int[] mi = mergeIndex;
+		long[] mk = mergeKey;
+		int m = 0;
+		for(int i = from; i < to; i++){
+			int v = members[i];
+			int count = histCount[v];
+			if(count > 0){
+				mu[m] = v;
+				mi[m] = count - 1;
+				mk[m] = histKeyAt(v, count - 1);
+				m++;
+			}
+		}
+		quickSort(mk, mu, mi, 0, m-1);
+
+		int pos = ringSize;
+		while(m > 0 && pos > 0){
+			int v = mu[m-1];
+			int index = mi[m-1];
+			long next = m > 1 ? mk[m-2] : Long.MIN_VALUE;
+			//the first purchase of the run: the earliest one after next, binary searched
+			int lo = 0;
+			int hi = index;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(histKeyAt(v, mid) > next){
+					hi = mid;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			int first = Math.max(lo, index - pos + 1);
+			for(int i = index; i >= first; i--){
+				pos--;
+				snHist.set(base + pos, histKeyAt(v, i), histPriceAt(v, i), v);
+			}
+			rangeSums(v, first, index + 1);
+			snSum[u] += runSum;
+			long sqLo = snSquareSumLo[u] + runSquareSumLo;
+			snSquareSumHi[u] += runSquareSumHi + (Long.compareUnsigned(sqLo, runSquareSumLo) < 0 ? 1 : 0);
+			snSquareSumLo[u] = sqLo;
+			if(first > 0){
+				mi[m-1] = first - 1;
+				mk[m-1] = histKeyAt(v, first - 1);
+				int i = m-1;
+				while(i > 0 && mk[i] < mk[i-1]){
+					swap(mk, mu, mi, i, i-1);
+					i--;
+				}
+			} else {
+				m--;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Rebuilds only the part of a flagged user's history that a change of friends affected.
+	 * A flagged user with a history keeps receiving purchases, from whoever is in their
+	 * social network at the time of each purchase. So their history is still exact for every
+	 * member who has stayed in their social network since the last rebuild: it holds all of
+	 * that member's purchases back to its oldest entry.
+	 *
+	 * Members who left have their entries dropped. Members who may have joined (or left and
+	 * joined again) are found from the friendships added since the last rebuild: any path
+	 * that brings a user into the social network passes through an added friendship, so
+	 * such a user is within D-1 of one of its ends. Their entries are dropped too, and their
+	 * purchases since the oldest entry are merged back in from their personal histories.
+	 * Everyone else in the social network is left as it is. If dropping entries leaves
+	 * fewer than T, older purchases are merged in from the whole social network, but only
+	 * those older than the oldest entry that was kept.
+	 *
+	 * The rebuild is only partial when few friendships were added (at most
+	 * PARTIAL_REBUILD_LIMIT) and at most half of the social network may have joined;
+	 * otherwise a full rebuild is cheaper.
+	 * @param u A user ID, with a history
+	 * @param pm An array holding the user's social network, without the user (not sn)
+	 * @param size The size of the social network, without the user
+	 * @return False if a full rebuild should be done instead
+	 */
+	private boolean partialRebuild(int u, int[] pm, int size){
+		long changes = addedLogCount - snBuiltAt[u];
+		if(changes > PARTIAL_REBUILD_LIMIT){
+			return false;
+		}
+		if(markStamp > Integer.MAX_VALUE - 4){
+			Arrays.fill(mark, 0);
+			markStamp = 0;
+		}
+		int member = markStamp + 2;//marks a member who has stayed
+		int joined = markStamp + 3;//marks a member who may have joined
+		markStamp = joined;
+		for(int i = 0; i < size; i++){
+			mark[pm[i]] = member;
+		}
+		int suspects = 0;
+		if(changes > 0){
+			int ends = 0;
+			for(long c = snBuiltAt[u]; c < addedLogCount; c++){
+				int i = (int)(c % ADDED_LOG_SIZE);
+				if(ends + 2 > endpoints.length){
+					endpoints = Arrays.copyOf(endpoints, endpoints.length*2);
+				}
+				endpoints[ends++] = addedLog[2*i];
+				endpoints[ends++] = addedLog[2*i + 1];
+			}
+			int reached = socialNetwork(endpoints, ends, degree() - 1);
+			for(int i = 0; i < reached; i++){
+				int x = sn[i];
+				if(mark[x] == member){
+					mark[x] = joined;
+					suspects++;
+				}
+			}
+			if(suspects*2 > size){
+				return false;
+			}
+		}
+
+		int T = ringSize;
+		int count = snCount[u];
+		long oldest = count == T ? snHist.key(snIndex(u, 0)) : Long.MIN_VALUE;//older purchases were dropped
+		int most = count + suspects*T;
+		if(candidateKey.length < most){
+			int length = Math.max(most, candidateKey.length*2);
+			candidateKey = new long[length];
+			candidateUser = new int[length];
+			candidateIndex = new int[length];
+			candidatePrice = new long[length];
+		}
+		int c = 0;
+		for(int i = 0; i < count; i++){
+			long index = snIndex(u, i);
+			int buyer = snHist.user(index);
+			if(mark[buyer] == member){
+				candidateKey[c] = snHist.key(index);
+				candidateUser[c] = buyer;
+				candidateIndex[c] = c;
+				candidatePrice[c] = snHist.price(index);
+				c++;
+			}
+		}
+		for(int i = 0; i < size; i++){
+			int v = pm[i];
+			if(mark[v] != joined){
+				continue;
+			}
+			for(int k = histCount[v] - 1; k >= 0; k--){
+				long key = histKeyAt(v, k);
+				if(key < oldest){
+					break;
+				}
+				candidateKey[c] = key;
+				candidateUser[c] = v;
+				candidateIndex[c] = c;
+				candidatePrice[c] = histPriceAt(v, k);
+				c++;
+			}
+		}
+		quickSort(candidateKey, candidateUser, candidateIndex, 0, c-1);
+		int taken = Math.min(c, T);
+		int older = 0;
+		if(taken < T && oldest != Long.MIN_VALUE){
+			older = mergeLatest(pm, 0, size, T - taken, oldest);
+		}
+
+		long base = (long)snSlot[u]*T;
+		snSum[u] = 0;
+		snSquareSumHi[u] = 0;
+		snSquareSumLo[u] = 0;
+		int pos = T;
+		for(int i = c - 1; i >= c - taken; i--){
+			pos--;
+			long price = candidatePrice[candidateIndex[i]];
+			snHist.set(base + pos, candidateKey[i], price, candidateUser[i]);
+			addToSums(u, price);
+		}
+		for(int i = 0; i < older; i++){
+			pos--;
+			snHist.set(base + pos, mergedKey[i], mergedPrice[i], mergedUser[i]);
+			addToSums(u, mergedPrice[i]);
+		}
+		snHead[u] = pos == T ? 0 : pos;
+		snCount[u] = T - pos;
+		snChange[u] = false;
+		snBuiltAt[u] = addedLogCount;
+		if(orderStats != null){
+			mirrorWindow(u);
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the latest purchases in the personal histories of the given users, and leaves
+	 * them in mergedKey, mergedPrice and mergedUser, latest first.
+	 *
+	 * The merge keeps the latest unused purchase of each user in the scratch arrays,
+	 * sorted earliest first. The last one is taken, replaced by the purchase before it
+	 * in the same history, and moved back down to its sorted place.
+	 * @param members An array of user IDs
+	 * @param from The index of the first user
+	 * @param to The index after the last user
+	 * @param limit The maximum number of purchases to find
+	 * @param before Only purchases with order keys below this are found
+	 * @return The number of purchases found
+	 */
+	int mergeLatest(int[] members, int from, int to, int limit, long before){
+		int size = to - from;
+		if(mergeUser.length < size){
+			mergeUser = new int[size];
+			mergeIndex = new int[size];
+			mergeKey = new long[size];
+		}
+		if(mergedKey.length < limit){
+			mergedKey = new long[limit];
+			mergedPrice = new long[limit];
+			mergedUser = new int[limit];
+		}
+		int[] mu = mergeUser;
+		int[] mi = mergeIndex;
+		long[] mk = mergeKey;
+		int m = 0;
+		for(int i = from; i < to; i++){
+			int v = members[i];
+			int last = histCount[v] - 1;
+			while(last >= 0 && histKeyAt(v, last) >= before){
+				last--;
+			}
+			if(last >= 0){
+				mu[m] = v;
+				mi[m] = last;
+				mk[m] = histKeyAt(v, last);
+				m++;
+			}
+		}
+		quickSort(mk, mu, mi, 0, m-1);
+
+		int found = 0;
+		while(m > 0 && found < limit){
+			int v = mu[m-1];
+			int index = mi[m-1];
+			mergedKey[found] = mk[m-1];
+			mergedPrice[found] = histPriceAt(v, index);
+			mergedUser[found] = v;
+			found++;
+			if(index > 0){
+				mi[m-1] = index - 1;
+				mk[m-1] = histKeyAt(v, index - 1);
+				//move to correct location
+				int i = m-1;
+				while(i > 0 && mk[i] < mk[i-1]){
+					swap(mk, mu, mi, i, i-1);
+					i--;
+				}
+			} else {
+				m--;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Looks for a shared window over the same social network as the user's, and joins it.
+	 * If there is none, but another user with a private window had the same social network
+	 * at their last rebuild (and has not been flagged since), the two of them start a shared
+	 * window. Social networks are matched by a hash (see SharedWindows.hash), and a match
+	 * is then checked member by member.
+	 * @param u A user ID
+	 * @param members An array holding the user's social network, without the user
+	 * @param from The index of the first member
+	 * @param to The index after the last member
+	 * @return True if the user now reads from a shared window
+	 */
+	private boolean joinSharedWindow(int u, int[] members, int from, int to){
+		long h = SharedWindows.hash(u);
+		for(int i = from; i < to; i++){
+			h += SharedWindows.hash(members[i]);
+		}
+		long oldHash = snBallHash[u];
+		if(oldHash != h){
+			if(ballOwners.get(oldHash) == u){
+				ballOwners.remove(oldHash);
+			}
+		}
+		int g = shared.find(h);
+		int c = ballOwners.get(h);
+		boolean candidate = c >= 0 && c != u && !snChange[c] && snGroup[c] < 0 && snSlot[c] >= 0 && snBallHash[c] == h;
+		if(g < 0 && !candidate){
+			ballOwners.put(h, u);
+			snBallHash[u] = h;
+			return false;
+		}
+
+		int size = to - from + 1;
+		if(ball.length < size){
+			ball = new int[Math.max(size, ball.length*2)];
+		}
+		ball[0] = u;
+		System.arraycopy(members, from, ball, 1, size - 1);
+		Arrays.sort(ball, 0, size);
+		if(g >= 0 && shared.matches(g, ball, size)){
+			joinGroup(u, g);
+			return true;
+		}
+		if(!candidate || Arrays.binarySearch(ball, 0, size, c) < 0){
+			ballOwners.put(h, u);
+			snBallHash[u] = h;
+			return false;
+		}
+		//check the candidate's social network against ours
+		int cSize = socialNetwork(c, degree());
+		boolean same = cSize == size;
+		for(int i = 0; same && i < cSize; i++){
+			same = Arrays.binarySearch(ball, 0, size, sn[i]) >= 0;
+		}
+		if(!same){
+			ballOwners.put(h, u);
+			snBallHash[u] = h;
+			return false;
+		}
+		ballOwners.remove(h);
+		g = shared.create(this, h, ball, size);
+		joinGroup(c, g);
+		joinGroup(u, g);
+		return true;
+	}
+
+	/**
+	 * Joins the user to their component's window, if their component is the social network
+	 * of each of its users: that is, if its diameter is at most D. The window is created on
+	 * first use, from the histories of the whole component, and every user of the component
+	 * joins it at once. From then on a purchase in the component is pushed to that window
+	 * only, with no crawl, and friendships added within the component change nothing, until
+	 * a friendship joining it to another component or removed from it ends the window.
+	 *
+	 * The diameter bound kept by Components is used where it is small enough. Otherwise the
+	 * component is tested directly, by multi-source crawls of degree D from all its users
+	 * (64 at a time), at most once each time it changes. A component that may have split is
+	 * split first. Components larger than Components.LIMIT are left to the usual rebuild.
+	 * @param u A user ID
+	 * @return True if the user now reads from a component window
+	 */
+	private boolean joinComponentWindow(int u){
+		if(components == null || shared == null){
+			return false;
+		}
+		Components c = components;
+		int r = c.find(u);
+		if(c.split[r]){
+			if(c.size[r] > Components.LIMIT){
+				return false;
+			}
+			r = resplitComponent(r, u);
+		}
+		if(c.window[r] < 0){
+			if(c.size[r] < 2 || c.size[r] > Components.LIMIT || c.blocked[r]){
+				return false;
+			}
+			if(c.diameter[r] > degree()){
+				if(c.tested[r]){
+					return false;
+				}
+				c.tested[r] = true;
+				if(!componentCovered(r)){
+					return false;
+				}
+				c.diameter[r] = degree();
+			}
+			createComponentWindow(r);
+		}
+		return true;
+	}
+
+	private void createComponentWindow(int r){
+		int size = components.size[r];
+		if(componentMembers.length < size){
+			componentMembers = new int[Math.max(size, componentMembers.length*2)];
+		}
+		int[] members = componentMembers;
+		components.members(r, members);
+		Arrays.sort(members, 0, size);
+		long h = 0;
+		for(int i = 0; i < size; i++){
+			h += SharedWindows.hash(members[i]);
+		}
+		int g = shared.create(this, h, members, size);
+		for(int i = 0; i < size; i++){
+			int x = members[i];
+			int old = snGroup[x];
+			if(old >= 0){
+				snGroup[x] = -1;
+				shared.leave(old);
+			}
+			joinGroup(x, g);
+			snChange[x] = false;
+			snBuiltAt[x] = addedLogCount;
+		}
+		components.window[r] = g;
+	}
+
+	/**
+	 * Checks that every user of a component is within D of every other.
+	 * @param r The root of the component
+	 * @return True if the component is the social network of each of its users
+	 */
+	private boolean componentCovered(int r){
+		int size = components.size[r];
+		if(componentMembers.length < size){
+			componentMembers = new int[Math.max(size, componentMembers.length*2)];
+		}
+		components.members(r, componentMembers);
+		for(int from = 0; from < size; from += 64){
+			int count = Math.min(64, size - from);
+			System.arraycopy(componentMembers, from, coverSources, 0, count);
+			int reached = socialNetworks(coverSources, count, degree());
+			if(reached != size){
+				return false;
+			}
+			long all = count == 64 ? -1L : (1L << count) - 1;
+			for(int i = 0; i < reached; i++){
+				if(msMask[i] != all){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a component that may have split since a friendship was removed. Its users
+	 * are made components of their own, then each one not yet placed is crawled from to
+	 * find their (new) component. The crawl gives the eccentricity e of that user, and
+	 * the diameter of the component is at most 2e.
+	 * @param r The root of the component
+	 * @param u A user of the component
+	 * @return The root of the user's component afterwards
+	 */
+	private int resplitComponent(int r, int u){
+		Components c = components;
+		int size = c.size[r];
+		if(componentMembers.length < size){
+			componentMembers = new int[Math.max(size, componentMembers.length*2)];
+		}
+		int[] members = componentMembers;
+		c.members(r, members);
+		for(int i = 0; i < size; i++){
+			c.reset(members[i]);
+		}
+		if(markStamp > Integer.MAX_VALUE - 4){
+			Arrays.fill(mark, 0);
+			markStamp = 0;
+		}
+		int placed = ++markStamp;
+		for(int i = 0; i < size; i++){
+			int x = members[i];
+			if(mark[x] == placed){
+				continue;
+			}
+			mark[x] = placed;
+			int reached = socialNetwork(x, size);
+			int eccentricity = 0;
+			while(snLevels[eccentricity + 1] < reached){
+				eccentricity++;
+			}
+			for(int j = 1; j < reached; j++){
+				mark[sn[j]] = placed;
+				c.attach(sn[j], x);
+			}
+			c.diameter[x] = 2*eccentricity;
+		}
+		return c.find(u);
+	}
+
+	/**
+	 * Ends a component's window, if it has one, since the component has changed. Its users
+	 * leave the window and are flagged.
+	 * @param r The root of the component
+	 */
+	private void dissolveComponent(int r){
+		int g = components.window[r];
+		if(g < 0){
+			return;
+		}
+		components.window[r] = -1;
+		int size = components.size[r];
+		if(componentMembers.length < size){
+			componentMembers = new int[Math.max(size, componentMembers.length*2)];
+		}
+		components.members(r, componentMembers);
+		for(int i = 0; i < size; i++){
+			int x = componentMembers[i];
+			if(snGroup[x] == g){
+				snGroup[x] = -1;
+				snChange[x] = true;
+				shared.leave(g);
+			}
+		}
+	}
+
+	private void joinGroup(int u, int g){
+		if(snSlot[u] >= 0){
+			releaseSNSlot(u);
+		}
+		snGroup[u] = g;
+		shared.join(g);
+	}
+
+	/**
+	 * Hands out a ring slot for a user's social network history. Without a limit (see
+	 * setSNMemoryLimit) a new slot is added when none are free. With a limit, once every
+	 * slot is in use the slot of a user who has not been checked recently is taken back,
+	 * in CLOCK order: the hand sweeps the slots, clearing the mark of each slot that was
+	 * used since the last sweep and taking the first slot that was not. The user whose
+	 * slot is taken is flagged, so their history is rebuilt when they next need it.
+	 * @param u The user the slot is for
+	 * @return A slot
+	 */
+	private int allocateSNSlot(int u){
+		int slot;
+		if(freeSNSlotCount > 0){
+			slot = freeSNSlots[--freeSNSlotCount];
+		} else if(snSlotLimit == 0 || snSlots < snSlotLimit){
+			slot = snSlots++;
+			snHist.ensure((long)snSlots*ringSize);
+			if(slot == slotOwner.length){
+				int length = Math.max(16, slot*2);
+				slotOwner = Arrays.copyOf(slotOwner, length);
+				slotUsed = Arrays.copyOf(slotUsed, length);
+			}
+		} else {
+			while(slotUsed[clockHand]){
+				slotUsed[clockHand] = false;
+				clockHand = clockHand + 1 == snSlots ? 0 : clockHand + 1;
+			}
+			slot = clockHand;
+			clockHand = clockHand + 1 == snSlots ? 0 : clockHand + 1;
+			int owner = slotOwner[slot];
+			snSlot[owner] = -1;
+			snCount[owner] = 0;
+			snChange[owner] = true;
+			snEvictions++;
+			if(metrics != null){
+				metrics.snEvictions++;
+			}
+			if(orderStats != null){
+				orderStats.clear(owner);
+			}
+		}
+		slotOwner[slot] = u;
+		snSlot[u] = slot;
+		return slot;
+	}
+
+	/**
+	 * Gives a user's ring slot back.
+	 * @param u A user with a slot
+	 */
+	private void releaseSNSlot(int u){
+		int slot = snSlot[u];
+		if(freeSNSlotCount == freeSNSlots.length){
+			freeSNSlots = Arrays.copyOf(freeSNSlots, freeSNSlotCount*2);
+		}
+		freeSNSlots[freeSNSlotCount++] = slot;
+		slotOwner[slot] = -1;
+		slotUsed[slot] = false;
+		snSlot[u] = -1;
+		snCount[u] = 0;
+		if(orderStats != null){
+			orderStats.clear(u);
+		}
+	}
+
+	/**
+	 * Instance of quicksort on parallel arrays. Sorts keys earlier to later.
+	 * @param keys The order keys to be sorted
+	 * @param users An array parallel to keys
+	 * @param indices An array parallel to keys
+	 * @param lo The lower bound for the segment to be sorted.
+	 * @param hi The upper bound for the segment to be sorted.
+	 */
+	protected static void quickSort(long[] keys, int[] users, int[] indices, int lo, int hi){
+		while(lo < hi){
+			int p = partition(keys, users, indices, lo, hi);
+			if(p - lo < hi - p){//recurse on the smaller side to keep the stack shallow
+				quickSort(keys, users, indices, lo, p-1);
+				lo = p+1;
+			} else {
+				quickSort(keys, users, indices, p+1, hi);
+				hi = p-1;
+			}
+		}
+	}
+
+	private static int partition(long[] keys, int[] users, int[] indices, int lo, int hi){
+		swap(keys, users, indices, (lo + hi) >>> 1, hi);
+		long pivot = keys[hi];
+		int i = lo - 1;
+		for(int j = lo; j <= hi; j++){
+			if(keys[j] <= pivot){
+				i++;
+				if(i != j){
+					swap(keys, users, indices, i, j);
+				}
+			}
+		}
+		return i;
+	}
+
+	static void swap(long[] keys, int[] users, int[] indices, int i, int j){
+		long k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		int t = users[i];
+		users[i] = users[j];
+		users[j] = t;
+		t = indices[i];
+		indices[i] = indices[j];
+		indices[j] = t;
+	}
+
+
+	/**
+	 * Determines if the purchase is an outlier. It is an outlier if it is greater than 3
+	 * standard deviations above the mean of the social network's purchase history.
+	 * If the social network's purchase history is strictly smaller than 2, then there is
+	 * not enough information and the purchase is not flagged as an outlier (returns False).
+	 *
+	 * The mean and standard deviation are computed from the exact sum and sum of squares
+	 * of the history (see Cents), so the comparison is done without any rounding.
+	 *
+	 * The method builds the social network purchase history if needed before running the statistics.
+	 * With a time window (see setWindowMinutes), the purchases that have left it are
+	 * dropped from the history first (see expire). Another rule can be selected (see
+	 * setOutlierRule). With metrics on (see enableMetrics), the check is counted and timed.
+	 *
+	 * @param u The ID of the user who made the purchase
+	 * @param price The price in cents
+	 * @return True if the purchase is an outlier.
+	 */
+	public boolean checkForOutlier(int u, long price){
+		if(metrics == null){
+			return check(u, price);
+		}
+		metrics.kind = Event.PURCHASE;
+		long start = System.nanoTime();
+		boolean outlier = check(u, price);
+		metrics.checkNanos.record(System.nanoTime() - start);
+		metrics.checks++;
+		if(outlier){
+			metrics.flags++;
+		}
+		return outlier;
+	}
+
+	private boolean check(int u, long price){
+		long cutoff = windowCutoff();
+		if(snChange[u]){
+			if(metrics != null){
+				long start = System.nanoTime();
+				buildSNPurchaseHistory(u);
+				metrics.rebuildNanos.record(System.nanoTime() - start);
+				metrics.checksRebuilt++;
+			} else {
+				buildSNPurchaseHistory(u);
+			}
+		}
+		int g = snGroup[u];
+		if(g >= 0 && !shared.window(this, g, u)){
+			//the user made so many of the shared window's purchases that it does not reach
+			//back far enough; they keep a private window until they are next flagged
+			if(components != null && components.window[components.find(u)] == g){
+				int r = components.find(u);
+				dissolveComponent(r);//the others would no longer receive the user's purchases
+				components.blocked[r] = true;
+			} else {
+				flagSN(u);
+			}
+			int size = socialNetwork(u, degree());
+			buildPrivateHistory(u, sn, 1, size);
+		}
+
+		if(snSlot[u] >= 0){
+			slotUsed[snSlot[u]] = true;
+			if(cutoff != Long.MIN_VALUE){
+				expire(u, cutoff);
+			}
+		}
+
+		int histSize = snCount[u];
+		if(histSize < 2){
+			return false;//not enough purchases in history to determine outlier
+		}
+
+		mean[u] = Cents.mean(histSize, snSum[u]);
+		sd[u] = Cents.sd(histSize, snSum[u], snSquareSumHi[u], snSquareSumLo[u]);
+
+		if(rule == MEDIAN_MAD){
+			return orderStats.isMADOutlier(u, price, multiplierNum, multiplierDen);
+		} else if(rule == PERCENTILE){
+			return price > orderStats.percentile(u, percentile);
+		}
+		return Cents.isOutlier(price, histSize, snSum[u], snSquareSumHi[u], snSquareSumLo[u], multiplierNum, multiplierDen);
+	}
+
+
+	/**
+	 * Moves the clock forward to the given time, if it is later than the current time.
+	 * Each network keeps its own clock, so that several logs can be run at once.
+	 * @param time A time in milliseconds
+	 */
+	void tick(long time){
+		if(time > currentTime){
+			currentTime = time;
+			purchaseNum = 0;
+		}
+	}
+
+	/**
+	 * Moves the clock forward and numbers a purchase made at the given time.
+	 * Purchases are numbered each second to preserve order (see Purchase.orderKey).
+	 * @param time A time in milliseconds
+	 * @return The purchase number of the purchase
+	 */
+	int nextPurchaseNum(long time){
+		tick(time);
+		return purchaseNum++;
+	}
+
+	/**
+	 * Gives the current time: the latest time of an event applied so far.
+	 * @return A time in milliseconds
+	 */
+	long now(){
+		return currentTime;
+	}
+
+	/**
+	 * Gives the smallest order key in the time window (see setWindowMinutes): purchases made
+	 * less than that many minutes before the current time (see now) are in the window.
+	 * @return An order key, or Long.MIN_VALUE if there is no time window
+	 */
+	long windowCutoff(){
+		if(windowMinutes == 0){
+			return Long.MIN_VALUE;
+		}
+		return Purchase.orderKey(currentTime - windowMinutes*60000L + 1000, 0);
+	}
+
+	/**
+	 * Drops the purchases that have left the time window from a user's history. The history
+	 * is in key order, so they are all at its front, and each purchase is dropped at most
+	 * once: the cost is amortized over the pushes, and a user who makes no purchases is
+	 * never visited. Purchases that should have been dropped earlier are harmless, since
+	 * the history is only read here, right after this is called. Rebuilds (partial ones
+	 * included) may bring in purchases from before the cutoff; they are older than every
+	 * purchase in the window, so they end up at the front too.
+	 * @param u A user with a history
+	 * @param cutoff The smallest order key in the window
+	 */
+	private void expire(int u, long cutoff){
+		int T = ringSize;
+		long base = (long)snSlot[u]*T;
+		int count = snCount[u];
+		int pos = snHead[u];
+		while(count > 0 && snHist.key(base + pos) < cutoff){
+			removeFromSums(u, snHist.price(base + pos));
+			if(orderStats != null){
+				orderStats.remove(u, snHist.price(base + pos), snHist.key(base + pos));
+			}
+			pos = pos + 1 == T ? 0 : pos + 1;
+			count--;
+		}
+		snHead[u] = pos;
+		snCount[u] = count;
+	}
+
+	/**
+	 * The order key of the i-th oldest purchase in a user's personal history.
+	 * @param u A user ID
+	 * @param i An index below histCount[u]
+	 * @return A long
+	 */
+	long histKeyAt(int u, int i){
+		return hist.key(histIndex(u, i));
+	}
+	long histPriceAt(int u, int i){
+		return hist.price(histIndex(u, i));
+	}
+	private long histIndex(int u, int i){
+		int T = ringSize;
+		int pos = histHead[u] + i;
+		if(pos >= T){
+			pos -= T;
+		}
+		return (long)histSlot[u]*T + pos;
+	}
+
+	/**
+	 * The index in the social network slabs of the i-th oldest purchase
+	 * in a user's social network history.
+	 * @param u A user ID
+	 * @param i An index below snCount[u]
+	 * @return An index into snHist
+	 */
+	long snIndex(int u, int i){
+		int T = ringSize;
+		int pos = snHead[u] + i;
+		if(pos >= T){
+			pos -= T;
+		}
+		return (long)snSlot[u]*T + pos;
+	}
+
+	/**
+	 * Releases the storage of the network, if it is outside the heap.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		for(Object storage : new Object[]{friends, hist, snHist}){
+			if(storage instanceof Closeable){
+				((Closeable)storage).close();
+			}
+		}
+	}
+
+	/**
+	 * Gives D, the number of degrees in a social network.
+	 * @return An integer, at least 1
+	 */
+	int degree(){
+		if(degree == 0){
+			degree = Event.D;
+		}
+		return degree;
+	}
+
+	/**
+	 * Gives T, the number of purchases in a window, fixed when the first ring is handed out.
+	 * @return An integer, at least 2
+	 */
+	int ringSize(){
+		if(ringSize == 0){
+			fixRingSize(Event.T);
+		}
+		return ringSize;
+	}
+
+	private void fixRingSize(int T){
+		ringSize = T;
+		if(ringSize >= LARGE_T){
+			chunksPerRing = (ringSize + CHUNK - 1)/CHUNK;
+		}
+	}
+
+	private void addToChunk(int slot, int pos, long price, boolean add){
+		int c = slot*chunksPerRing + pos/CHUNK;
+		if(add){
+			chunkSum[c] += price;
+			chunkSquareSumHi[c] = Cents.addSquareHi(chunkSquareSumHi[c], chunkSquareSumLo[c], price);
+			chunkSquareSumLo[c] = Cents.addSquareLo(chunkSquareSumLo[c], price);
+		} else {
+			chunkSum[c] -= price;
+			chunkSquareSumHi[c] = Cents.subtractSquareHi(chunkSquareSumHi[c], chunkSquareSumLo[c], price);
+			chunkSquareSumLo[c] = Cents.subtractSquareLo(chunkSquareSumLo[c], price);
+		}
+	}
+
+	/**
+	 * Totals a range of a user's personal history into runSum and the run sum of squares,
+	 * in large-T mode. Whole chunks inside the range are added from their summaries, and
+	 * only the purchases in the chunks at either end are read one by one.
+	 * @param u A user ID
+	 * @param from The index of the first purchase, counted from the oldest
+	 * @param to The index after the last purchase
+	 */
+	private void rangeSums(int u, int from, int to){
+		runSum = 0;
+		runSquareSumHi = 0;
+		runSquareSumLo = 0;
+		int T = ringSize;
+		int start = histHead[u] + from;
+		if(start >= T){
+			start -= T;
+		}
+		int length = to - from;
+		if(start + length > T){//wraps around the end of the ring
+			rangeSumsAt(u, start, T);
+			rangeSumsAt(u, 0, start + length - T);
+		} else {
+			rangeSumsAt(u, start, start + length);
+		}
+	}
+
+	private void rangeSumsAt(int u, int from, int to){
+		int slot = histSlot[u];
+		long base = (long)slot*ringSize;
+		int pos = from;
+		while(pos < to){
+			if(pos % CHUNK == 0 && pos + CHUNK <= to){
+				int c = slot*chunksPerRing + pos/CHUNK;
+				addToRun(chunkSum[c], chunkSquareSumHi[c], chunkSquareSumLo[c]);
+				pos += CHUNK;
+			} else {
+				long price = hist.price(base + pos);
+				runSum += price;
+				runSquareSumHi = Cents.addSquareHi(runSquareSumHi, runSquareSumLo, price);
+				runSquareSumLo = Cents.addSquareLo(runSquareSumLo, price);
+				pos++;
+			}
+		}
+	}
+
+	private void addToRun(long sum, long sqHi, long sqLo){
+		runSum += sum;
+		long lo = runSquareSumLo + sqLo;
+		runSquareSumHi += sqHi + (Long.compareUnsigned(lo, sqLo) < 0 ? 1 : 0);
+		runSquareSumLo = lo;
 	}
-	
-	
-	
 
 }
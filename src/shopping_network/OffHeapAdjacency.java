@@ -0,0 +1,166 @@
+package shopping_network;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Friend lists stored outside the Java heap, in OffHeapMemory.
+ * 
+ * Each user has a 16-byte header at offset 16*ID in the header region: the offset of
+ * their block of friends (8 bytes), the number of friends (4 bytes) and the capacity
+ * of the block (4 bytes). A capacity of 0 means the user has no block yet.
+ * 
+ * Friends are kept in the order they were added.
+ * Blocks live in a second region and hold 4, 8, 16, ... friend IDs. When a block fills
+ * up, the friends are copied to a block of twice the size and the old block is put on
+ * a free list for its size, to be reused by the next user who needs a block of that size.
+ * A free block stores the offset of the next free block of its size in its first 8 bytes.
+ * @author Kevin
+ *
+ */
+public class OffHeapAdjacency extends Adjacency implements Closeable {
+	
+	private static final int MIN_CAPACITY = 4;
+	private static final int HEADER_BYTES = 16;
+	
+	private final OffHeapMemory headers;
+	private final OffHeapMemory blocks;
+	private final long[] freeBlocks = new long[32];//by log2(capacity); -1 when empty
+	private int numUsers = 0;
+	
+	/**
+	 * Creates friend lists backed by direct buffers.
+	 */
+	public OffHeapAdjacency(){
+		this(null);
+	}
+	
+	/**
+	 * Creates friend lists backed by files in the given directory,
+	 * or by direct buffers if the directory is null.
+	 * @param directory A directory, or null
+	 */
+	public OffHeapAdjacency(File directory){
+		headers = new OffHeapMemory(directory == null ? null : new File(directory, "friend_headers.bin"), OffHeapMemory.DEFAULT_CHUNK_BITS);
+		blocks = new OffHeapMemory(directory == null ? null : new File(directory, "friends.bin"), OffHeapMemory.DEFAULT_CHUNK_BITS);
+		for(int i = 0; i < freeBlocks.length; i++){
+			freeBlocks[i] = -1;
+		}
+	}
+	
+	@Override
+	public void expand(int numUsers){
+		if(numUsers > this.numUsers){
+			headers.ensure((long)numUsers*HEADER_BYTES);
+			this.numUsers = numUsers;
+		}
+	}
+	
+	@Override
+	public int degree(int u){
+		return headers.getInt((long)u*HEADER_BYTES + 8);
+	}
+	
+	@Override
+	public int neighbor(int u, int i){
+		return blocks.getInt(headers.getLong((long)u*HEADER_BYTES) + 4L*i);
+	}
+	
+	@Override
+	public int neighbors(int u, int[] buffer){
+		long header = (long)u*HEADER_BYTES;
+		long block = headers.getLong(header);
+		int count = headers.getInt(header + 8);
+		for(int i = 0; i < count; i++){
+			buffer[i] = blocks.getInt(block + 4L*i);
+		}
+		return count;
+	}
+	
+	@Override
+	public int firstNeighborIn(int u, long[] bits){
+		long header = (long)u*HEADER_BYTES;
+		long block = headers.getLong(header);
+		int count = headers.getInt(header + 8);
+		for(int i = 0; i < count; i++){
+			int v = blocks.getInt(block + 4L*i);
+			if((bits[v >>> 6] & (1L << v)) != 0){
+				return v;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public boolean contains(int u, int v){
+		long header = (long)u*HEADER_BYTES;
+		long block = headers.getLong(header);
+		int count = headers.getInt(header + 8);
+		for(int i = 0; i < count; i++){
+			if(blocks.getInt(block + 4L*i) == v){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public void add(int u, int v){
+		long header = (long)u*HEADER_BYTES;
+		long block = headers.getLong(header);
+		int count = headers.getInt(header + 8);
+		int capacity = headers.getInt(header + 12);
+		if(count == capacity){
+			int newCapacity = capacity == 0 ? MIN_CAPACITY : capacity*2;
+			long newBlock = allocateBlock(newCapacity);
+			if(capacity > 0){
+				blocks.copyInts(block, newBlock, count);
+				freeBlock(block, capacity);
+			}
+			block = newBlock;
+			headers.putLong(header, block);
+			headers.putInt(header + 12, newCapacity);
+		}
+		blocks.putInt(block + 4L*count, v);
+		headers.putInt(header + 8, count + 1);
+	}
+	
+	@Override
+	public boolean remove(int u, int v){
+		long header = (long)u*HEADER_BYTES;
+		long block = headers.getLong(header);
+		int count = headers.getInt(header + 8);
+		for(int i = 0; i < count; i++){
+			if(blocks.getInt(block + 4L*i) == v){
+				blocks.copyInts(block + 4L*(i+1), block + 4L*i, count-i-1);//keeps the friends in the order they were added
+				headers.putInt(header + 8, count - 1);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private long allocateBlock(int capacity){
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		long block = freeBlocks[sizeClass];
+		if(block >= 0){
+			freeBlocks[sizeClass] = blocks.getLong(block);
+			return block;
+		}
+		return blocks.allocate(4L*capacity);
+	}
+	
+	private void freeBlock(long block, int capacity){
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		blocks.putLong(block, freeBlocks[sizeClass]);
+		freeBlocks[sizeClass] = block;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		headers.close();
+		blocks.close();
+	}
+	
+}
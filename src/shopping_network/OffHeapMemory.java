@@ -0,0 +1,181 @@
+package shopping_network;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A growable region of memory outside the Java heap, addressed by long offsets.
+ * The region is split into chunks of a fixed power-of-two size, each of which is either
+ * a direct ByteBuffer or a section of a memory-mapped file. Chunks are only created
+ * when an offset inside them is first needed, and are zero-filled when created.
+ *
+ * Nothing stored here is seen by the garbage collector, so the size of the region
+ * has no effect on GC pauses. With a file, the region can also be larger than the
+ * physical memory of the machine; the operating system pages it in and out.
+ *
+ * Reads and writes must not straddle two chunks. Since every value is read at an
+ * offset that is a multiple of its size, and chunks are a power of two in size,
+ * this is only a concern for allocate, which never returns a block that straddles.
+ * @author Kevin
+ *
+ */
+public class OffHeapMemory implements Closeable {
+
+	public static final int DEFAULT_CHUNK_BITS = 26;//64MB chunks
+
+	private final int chunkBits;
+	private final long chunkSize;
+	private final long chunkMask;
+	private final FileChannel channel;//null for direct buffers
+	private final RandomAccessFile file;
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	private int numChunks = 0;
+	private long allocated = 0;//bump pointer for allocate
+
+	/**
+	 * Creates a region backed by direct buffers.
+	 */
+	public OffHeapMemory(){
+		this(null, DEFAULT_CHUNK_BITS);
+	}
+
+	/**
+	 * Creates a region backed by the given file, or by direct buffers if the file is null.
+	 * An existing file is truncated.
+	 * @param backingFile A file, or null
+	 * @param chunkBits The log (base 2) of the chunk size, between 12 and 30
+	 */
+	public OffHeapMemory(File backingFile, int chunkBits){
+		if(chunkBits < 12 || chunkBits > 30){
+			throw new IllegalArgumentException("Chunk size must be between 2^12 and 2^30 bytes: 2^"+chunkBits);
+		}
+		this.chunkBits = chunkBits;
+		this.chunkSize = 1L << chunkBits;
+		this.chunkMask = chunkSize - 1;
+		if(backingFile == null){
+			file = null;
+			channel = null;
+		} else {
+			try {
+				file = new RandomAccessFile(backingFile, "rw");
+				file.setLength(0);
+				channel = file.getChannel();
+			} catch(IOException e){
+				throw new IllegalStateException("Cannot open backing file: "+backingFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that every offset below the given size can be read and written.
+	 * @param bytes A size in bytes
+	 */
+	public void ensure(long bytes){
+		if(bytes <= 0){
+			return;
+		}
+		int needed = (int)((bytes - 1) >>> chunkBits) + 1;
+		if(needed <= numChunks){
+			return;
+		}
+		if(needed > chunks.length){
+			chunks = Arrays.copyOf(chunks, Math.max(needed, chunks.length*2));
+		}
+		for(int i = numChunks; i < needed; i++){
+			chunks[i] = newChunk(i);
+		}
+		numChunks = needed;
+	}
+
+	private ByteBuffer newChunk(int index){
+		ByteBuffer b;
+		if(channel == null){
+			b = ByteBuffer.allocateDirect((int)chunkSize);
+		} else {
+			try {
+				b = channel.map(FileChannel.MapMode.READ_WRITE, index*chunkSize, chunkSize);
+			} catch(IOException e){
+				throw new IllegalStateException("Cannot map chunk "+index+" of the backing file", e);
+			}
+		}
+		return b.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Allocates a block of the given size, aligned to 8 bytes, that does not straddle chunks.
+	 * Blocks are never given back to this object; callers that reuse blocks keep their own free lists.
+	 * @param bytes A size in bytes, at most the chunk size
+	 * @return The offset of the block
+	 */
+	public long allocate(long bytes){
+		if(bytes > chunkSize){
+			throw new IllegalArgumentException("Block of "+bytes+" bytes is larger than a chunk ("+chunkSize+" bytes)");
+		}
+		long offset = (allocated + 7) & ~7L;
+		if((offset & chunkMask) + bytes > chunkSize){
+			offset = (offset | chunkMask) + 1;//skip to the start of the next chunk
+		}
+		allocated = offset + bytes;
+		ensure(allocated);
+		return offset;
+	}
+
+	public int getInt(long offset){
+		return chunks[(int)(offset >>> chunkBits)].getInt((int)(offset & chunkMask));
+	}
+	public void putInt(long offset, int value){
+		chunks[(int)(offset >>> chunkBits)].putInt((int)(offset & chunkMask), value);
+	}
+	public long getLong(long offset){
+		return chunks[(int)(offset >>> chunkBits)].getLong((int)(offset & chunkMask));
+	}
+	public void putLong(long offset, long value){
+		chunks[(int)(offset >>> chunkBits)].putLong((int)(offset & chunkMask), value);
+	}
+
+	/**
+	 * Copies ints within the region. The source and destination may overlap.
+	 * @param from The offset of the first int to copy
+	 * @param to The offset of the first int to write
+	 * @param count The number of ints
+	 */
+	public void copyInts(long from, long to, int count){
+		if(to < from){
+			for(int i = 0; i < count; i++){
+				putInt(to + 4L*i, getInt(from + 4L*i));
+			}
+		} else {
+			for(int i = count - 1; i >= 0; i--){
+				putInt(to + 4L*i, getInt(from + 4L*i));
+			}
+		}
+	}
+
+	/**
+	 * Gives the number of bytes currently reserved, which is a whole number of chunks.
+	 * @return A long
+	 */
+	public long getReservedBytes(){
+		return numChunks*chunkSize;
+	}
+
+	/**
+	 * Releases the region. Direct buffers are freed once they are collected, and
+	 * mapped chunks once they are collected and the file is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		chunks = new ByteBuffer[0];
+		numChunks = 0;
+		if(file != null){
+			file.close();
+		}
+	}
+
+}
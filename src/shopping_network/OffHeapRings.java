@@ -0,0 +1,74 @@
+package shopping_network;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Purchase rings stored outside the Java heap, in OffHeapMemory.
+ * Keys, prices and users are kept in separate regions (8, 8 and 4 bytes per entry),
+ * so entry i is at offset 8*i or 4*i of its region and never straddles chunks.
+ * @author Kevin
+ *
+ */
+public class OffHeapRings extends Rings implements Closeable {
+	
+	private final OffHeapMemory keys;
+	private final OffHeapMemory prices;
+	private final OffHeapMemory users;//null without users
+	
+	/**
+	 * Creates rings backed by files in the given directory, or by direct buffers
+	 * if the directory is null. The files are named after the given prefix.
+	 * @param withUsers True if the purchaser of each entry is kept
+	 * @param directory A directory, or null
+	 * @param prefix A file name prefix
+	 */
+	public OffHeapRings(boolean withUsers, File directory, String prefix){
+		super(withUsers);
+		keys = new OffHeapMemory(directory == null ? null : new File(directory, prefix+"_keys.bin"), OffHeapMemory.DEFAULT_CHUNK_BITS);
+		prices = new OffHeapMemory(directory == null ? null : new File(directory, prefix+"_prices.bin"), OffHeapMemory.DEFAULT_CHUNK_BITS);
+		users = withUsers ? new OffHeapMemory(directory == null ? null : new File(directory, prefix+"_users.bin"), OffHeapMemory.DEFAULT_CHUNK_BITS) : null;
+	}
+	
+	@Override
+	public void ensure(long entries){
+		keys.ensure(8*entries);
+		prices.ensure(8*entries);
+		if(withUsers){
+			users.ensure(4*entries);
+		}
+	}
+	
+	@Override
+	public long key(long i){
+		return keys.getLong(8*i);
+	}
+	@Override
+	public long price(long i){
+		return prices.getLong(8*i);
+	}
+	@Override
+	public int user(long i){
+		return users.getInt(4*i);
+	}
+	
+	@Override
+	public void set(long i, long key, long price, int user){
+		keys.putLong(8*i, key);
+		prices.putLong(8*i, price);
+		if(withUsers){
+			users.putInt(4*i, user);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		keys.close();
+		prices.close();
+		if(users != null){
+			users.close();
+		}
+	}
+	
+}
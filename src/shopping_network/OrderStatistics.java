@@ -0,0 +1,345 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics over the social network windows of users, for the robust outlier
+ * rules (see Network.setOutlierRule): the median, the median absolute deviation, and
+ * percentiles of the prices in a window.
+ *
+ * Each user's window is mirrored in a treap: a binary search tree on (price, order key),
+ * which keeps entries distinct, with random priorities that keep it balanced in
+ * expectation. Every node keeps the size of its subtree, so the k-th smallest price and
+ * the number of prices up to a value are found in one walk down the tree. A push into the
+ * window is an insert, and the entry it pushes out (or that leaves the time window) is a
+ * removal, all in O(log T). A rebuilt window is mirrored afresh.
+ *
+ * The nodes of every treap live in one pool of parallel arrays, as in Network, with freed
+ * nodes kept on a free list (linked through left).
+ * @author Kevin
+ *
+ */
+class OrderStatistics {
+
+	//per node
+	private int[] left = new int[0];
+	private int[] right = new int[0];
+	private int[] size = new int[0];
+	private int[] priority = new int[0];
+	private long[] price = new long[0];
+	private long[] key = new long[0];
+	private int numNodes = 0;
+	private int free = -1;
+
+	private int[] root = new int[0];//per user, -1 for an empty window
+	private int[] stack = new int[64];//scratch for clear
+	private int seed = 0x2545F491;
+
+	/**
+	 * Adds users with empty windows, up to the given number of users.
+	 * @param numUsers The new number of users
+	 */
+	void expand(int numUsers){
+		int old = root.length;
+		if(numUsers > old){
+			root = Arrays.copyOf(root, Math.max(numUsers, old*2));
+			Arrays.fill(root, old, root.length, -1);
+		}
+	}
+
+	/**
+	 * Gives the number of prices in a user's window.
+	 * @param u A user ID
+	 * @return An integer
+	 */
+	int size(int u){
+		int r = root[u];
+		return r < 0 ? 0 : size[r];
+	}
+
+	/**
+	 * Empties a user's window.
+	 * @param u A user ID
+	 */
+	void clear(int u){
+		int r = root[u];
+		if(r < 0){
+			return;
+		}
+		root[u] = -1;
+		int top = 0;
+		stack[top++] = r;
+		while(top > 0){
+			int x = stack[--top];
+			if(top + 2 > stack.length){
+				stack = Arrays.copyOf(stack, stack.length*2);
+			}
+			if(left[x] >= 0){
+				stack[top++] = left[x];
+			}
+			if(right[x] >= 0){
+				stack[top++] = right[x];
+			}
+			left[x] = free;
+			free = x;
+		}
+	}
+
+	/**
+	 * Adds a purchase to a user's window.
+	 * @param u A user ID
+	 * @param p The price in cents
+	 * @param k The order key of the purchase
+	 */
+	void insert(int u, long p, long k){
+		int x = newNode(p, k);
+		root[u] = insertInto(root[u], x);
+	}
+
+	private int insertInto(int t, int x){
+		if(t < 0){
+			return x;
+		}
+		if(priority[x] > priority[t]){
+			split(t, price[x], key[x]);
+			left[x] = splitLeft;
+			right[x] = splitRight;
+			update(x);
+			return x;
+		}
+		if(less(price[x], key[x], t)){
+			left[t] = insertInto(left[t], x);
+		} else {
+			right[t] = insertInto(right[t], x);
+		}
+		size[t]++;
+		return t;
+	}
+
+	private int splitLeft;
+	private int splitRight;
+
+	/**
+	 * Splits a treap into the entries below (p, k) and the rest, left in splitLeft and splitRight.
+	 */
+	private void split(int t, long p, long k){
+		if(t < 0){
+			splitLeft = -1;
+			splitRight = -1;
+			return;
+		}
+		if(less(price[t], key[t], p, k)){
+			split(right[t], p, k);
+			right[t] = splitLeft;
+			update(t);
+			splitLeft = t;
+		} else {
+			split(left[t], p, k);
+			left[t] = splitRight;
+			update(t);
+			splitRight = t;
+		}
+	}
+
+	/**
+	 * Removes a purchase from a user's window. It must be in the window.
+	 * @param u A user ID
+	 * @param p The price in cents
+	 * @param k The order key of the purchase
+	 */
+	void remove(int u, long p, long k){
+		root[u] = removeFrom(root[u], p, k);
+	}
+
+	private int removeFrom(int t, long p, long k){
+		if(price[t] == p && key[t] == k){
+			int merged = merge(left[t], right[t]);
+			left[t] = free;
+			free = t;
+			return merged;
+		}
+		if(less(p, k, t)){
+			left[t] = removeFrom(left[t], p, k);
+		} else {
+			right[t] = removeFrom(right[t], p, k);
+		}
+		size[t]--;
+		return t;
+	}
+
+	private int merge(int a, int b){
+		if(a < 0){
+			return b;
+		}
+		if(b < 0){
+			return a;
+		}
+		if(priority[a] > priority[b]){
+			right[a] = merge(right[a], b);
+			update(a);
+			return a;
+		}
+		left[b] = merge(a, left[b]);
+		update(b);
+		return b;
+	}
+
+	/**
+	 * Gives the k-th smallest price in a user's window.
+	 * @param u A user ID
+	 * @param k An index below size(u), 0 for the smallest
+	 * @return A price in cents
+	 */
+	long select(int u, int k){
+		int t = root[u];
+		while(true){
+			int l = left[t] < 0 ? 0 : size[left[t]];
+			if(k < l){
+				t = left[t];
+			} else if(k == l){
+				return price[t];
+			} else {
+				k -= l + 1;
+				t = right[t];
+			}
+		}
+	}
+
+	/**
+	 * Gives the number of prices in a user's window that are at most the given price.
+	 * @param u A user ID
+	 * @param p A price in cents
+	 * @return An integer
+	 */
+	int countAtMost(int u, long p){
+		int t = root[u];
+		int count = 0;
+		while(t >= 0){
+			if(price[t] <= p){
+				count += (left[t] < 0 ? 0 : size[left[t]]) + 1;
+				t = right[t];
+			} else {
+				t = left[t];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gives a percentile of the prices in a user's window, by nearest rank: the smallest
+	 * price such that at least the given fraction of the window is at most that price.
+	 * @param u A user ID, with a window that is not empty
+	 * @param percentile A percentile, above 0 and at most 100
+	 * @return A price in cents
+	 */
+	long percentile(int u, double percentile){
+		int n = size(u);
+		int rank = (int)Math.ceil(percentile/100*n);
+		return select(u, Math.min(n, Math.max(1, rank)) - 1);
+	}
+
+	/**
+	 * Determines if a price is more than kNum/kDen scaled median absolute deviations above the
+	 * median of a user's window (the robust z-score; the MAD is scaled by 1.4826 so that
+	 * it matches the standard deviation of normally distributed prices). The median and
+	 * the MAD are worked out exactly in quarter cents, and the comparison is done in
+	 * integers (with the scale factor to 4 decimal places).
+	 *
+	 * The deviations below the median, read from the median down, and those above it,
+	 * read from the median up, are two sorted sequences; the median deviation is found by
+	 * a binary search for how many come from each (see kthDeviation).
+	 * @param u A user ID, with at least one price in their window
+	 * @param x A price in cents
+	 * @param kNum The numerator of the multiplier, small and positive
+	 * @param kDen The denominator of the multiplier, small and positive
+	 * @return True if x > median + (kNum/kDen)*1.4826*MAD
+	 */
+	boolean isMADOutlier(int u, long x, long kNum, long kDen){
+		int n = size(u);
+		long m2 = n % 2 == 1 ? 2*select(u, n/2) : select(u, n/2 - 1) + select(u, n/2);//twice the median
+		if(2*x <= m2){
+			return false;
+		}
+		//deviations are doubled: |2*price - m2|
+		int below = countAtMost(u, Math.floorDiv(m2, 2));//prices at or below the median
+		long mad4 = n % 2 == 1 ? 2*kthDeviation(u, n, below, m2, n/2)
+				: kthDeviation(u, n, below, m2, n/2 - 1) + kthDeviation(u, n, below, m2, n/2);//four times the MAD
+		//4*(x - median) = 2*(2x - m2) against k*1.4826*4*MAD
+		return 2*(2*x - m2)*10000*kDen > kNum*14826*mad4;
+	}
+
+	/**
+	 * The i-th smallest doubled deviation from the median.
+	 * @param u A user ID
+	 * @param n The size of the user's window
+	 * @param below The number of prices at or below the median
+	 * @param m2 Twice the median
+	 * @param i An index below n
+	 * @return A doubled deviation
+	 */
+	private long kthDeviation(int u, int n, int below, long m2, int i){
+		//take j from below (a) and i + 1 - j from above (b), where a[j] = m2 - 2*select(below-1-j)
+		//and b[j] = 2*select(below+j) - m2 are both increasing
+		int lo = Math.max(0, i + 1 - (n - below));
+		int hi = Math.min(i + 1, below);
+		while(lo < hi){
+			int j = (lo + hi) >>> 1;//take j from a; then a[j] against b[i - j]
+			if(m2 - 2*select(u, below - 1 - j) < 2*select(u, below + i - j) - m2){
+				lo = j + 1;
+			} else {
+				hi = j;
+			}
+		}
+		//lo from a and i + 1 - lo from b; the answer is the larger of the last taken of each
+		long result = Long.MIN_VALUE;
+		if(lo > 0){
+			result = m2 - 2*select(u, below - lo);
+		}
+		if(i + 1 - lo > 0){
+			result = Math.max(result, 2*select(u, below + i - lo) - m2);
+		}
+		return result;
+	}
+
+	private int newNode(long p, long k){
+		int x;
+		if(free >= 0){
+			x = free;
+			free = left[x];
+		} else {
+			x = numNodes++;
+			if(x == left.length){
+				int length = Math.max(64, x*2);
+				left = Arrays.copyOf(left, length);
+				right = Arrays.copyOf(right, length);
+				size = Arrays.copyOf(size, length);
+				priority = Arrays.copyOf(priority, length);
+				price = Arrays.copyOf(price, length);
+				key = Arrays.copyOf(key, length);
+			}
+		}
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		left[x] = -1;
+		right[x] = -1;
+		size[x] = 1;
+		priority[x] = seed;
+		price[x] = p;
+		key[x] = k;
+		return x;
+	}
+
+	private void update(int t){
+		size[t] = 1 + (left[t] < 0 ? 0 : size[left[t]]) + (right[t] < 0 ? 0 : size[right[t]]);
+	}
+
+	private boolean less(long p, long k, int t){
+		return less(p, k, price[t], key[t]);
+	}
+
+	private static boolean less(long p1, long k1, long p2, long k2){
+		return p1 < p2 || (p1 == p2 && k1 < k2);
+	}
+
+}
@@ -0,0 +1,862 @@
+package shopping_network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Profiles a dataset, and suggests the Detector options that suit it.
+ *
+ * The logs are split into chunks at line breaks, and the chunks are read and parsed in
+ * parallel (see LogChunks, so the profile reads exactly what the detector reads). Each chunk counts its events by type and by time
+ * bucket, its runs of events in the same second, and its runs of consecutive purchases and
+ * of consecutive befriends and unfriends (the runs Burst applies together); runs that cross
+ * a chunk boundary are joined when the chunks are merged. Users are counted in a BitSet,
+ * so there is no limit on their IDs.
+ *
+ * Each chunk also keeps its befriends and unfriends, which are then replayed in order into
+ * a HeapAdjacency. At the start of the stream phase, this gives the degree distribution,
+ * the connected components, and the social network sizes (of the D in the batch log) of a
+ * random sample of users, crawled in parallel. The sampled users are tracked through the
+ * stream: the stream chunks keep their purchases too, and at each one the buyer's social
+ * network is crawled again and compared (by size and an order-independent hash) with the
+ * one at their previous purchase. The replay also measures how much of each run of
+ * befriends and unfriends cancels out (see --coalesce-edges).
+ *
+ * The suggestions follow from these (see suggest): --bursts when purchases come in runs,
+ * --coalesce-edges when befriends and unfriends do, shared and component windows when most
+ * social networks are their whole component, and --sn-memory or --compressed-friends when
+ * histories or friend lists would take a large part of the heap.
+ * @author Kevin
+ *
+ */
+public class Profiler {
+
+	static final String[] TYPES = Replay.TYPES;
+
+	//thresholds for the suggestions (see suggest)
+	static final double BURST_RUN = 4;//mean purchases per run
+	static final double COALESCE_RUN = 4;//mean befriends and unfriends per run
+	static final double COALESCE_CANCELLED = 0.1;//share of them that cancel out
+	static final double COVERED = 0.5;//share of social networks that are their whole component
+	static final double HEAP_SHARE = 0.5;//share of the heap that histories or friend lists may take
+
+	private final ExecutorService pool;
+	private final int threads;
+	private final long bucketMillis;
+
+	/**
+	 * The statistics of one chunk of a log.
+	 */
+	static final class Chunk {
+
+		final long[] counts = new long[3];//by Event type
+		final TreeMap<Long, long[]> mix = new TreeMap<Long, long[]>();//events by type, per time bucket
+		long firstTime = -1;
+		long lastTime = -1;
+		long outOfOrder = 0;//events earlier than the event before them
+		final BitSet users = new BitSet();
+		final Runs seconds = new Runs(1);//runs of events in the same second
+		final Runs kinds = new Runs(2);//runs of purchases (0), and of befriends and unfriends (1)
+		final EventBuffer kept = new EventBuffer();//befriends and unfriends, and purchases of tracked users
+		final BitSet runStarts = new BitSet();//kept befriends and unfriends that follow a purchase
+		private byte lastType = -1;
+
+		void add(byte type, long time, int id1, long value, BitSet tracked){
+			counts[type]++;
+			if(lastTime < 0){
+				firstTime = time;
+			} else if(time < lastTime){
+				outOfOrder++;
+			}
+			lastTime = time;
+			users.set(id1);
+			seconds.add(time/1000);
+			kinds.add(type == Event.PURCHASE ? 0 : 1);
+			if(type != Event.PURCHASE){
+				users.set((int)value);
+				if(lastType == Event.PURCHASE){
+					runStarts.set(kept.size);
+				}
+				kept.add(type, time, id1, value);
+			} else if(tracked != null && tracked.get(id1)){
+				kept.add(type, time, id1, value);
+			}
+			lastType = type;
+		}
+
+		boolean isEmpty(){
+			return lastTime < 0;
+		}
+
+		boolean endsWithPurchase(){
+			return lastType == Event.PURCHASE;
+		}
+
+	}
+
+	/**
+	 * Lengths of runs of equal keys in a sequence that is seen in pieces. The runs at either
+	 * end of a piece are kept open, as they may go on into the next piece (see append); the
+	 * others are recorded in a Histogram per kind of key.
+	 */
+	static final class Runs {
+
+		final Histogram[] closed;
+		long firstKey;
+		long firstLength;
+		long lastKey;
+		long lastLength;
+		boolean single = true;//the first run is also the last
+		boolean empty = true;
+
+		/**
+		 * @param kinds 1 to record all runs together, or the number of keys (0 to kinds-1),
+		 *              to record the runs of each key apart
+		 */
+		Runs(int kinds){
+			closed = new Histogram[kinds];
+			for(int i = 0; i < kinds; i++){
+				closed[i] = new Histogram();
+			}
+		}
+
+		void add(long key){
+			if(empty){
+				firstKey = lastKey = key;
+				firstLength = lastLength = 1;
+				empty = false;
+			} else if(key == lastKey){
+				lastLength++;
+				if(single){
+					firstLength++;
+				}
+			} else {
+				if(!single){
+					close(lastKey, lastLength);
+				}
+				single = false;
+				lastKey = key;
+				lastLength = 1;
+			}
+		}
+
+		/**
+		 * Adds the runs of the next piece of the sequence.
+		 * @param next Runs
+		 */
+		void append(Runs next){
+			if(next.empty){
+				return;
+			}
+			for(int i = 0; i < closed.length; i++){
+				closed[i].add(next.closed[i]);
+			}
+			if(empty){
+				firstKey = next.firstKey;
+				firstLength = next.firstLength;
+				lastKey = next.lastKey;
+				lastLength = next.lastLength;
+				single = next.single;
+				empty = false;
+				return;
+			}
+			if(lastKey == next.firstKey){
+				long joined = lastLength + next.firstLength;
+				if(next.single){
+					lastLength = joined;
+					if(single){
+						firstLength = joined;
+					}
+					return;
+				}
+				if(single){
+					firstLength = joined;
+				} else {
+					close(lastKey, joined);
+				}
+			} else {
+				if(!single){
+					close(lastKey, lastLength);
+				}
+				if(next.single){
+					single = false;
+					lastKey = next.firstKey;
+					lastLength = next.firstLength;
+					return;
+				}
+				close(next.firstKey, next.firstLength);
+			}
+			single = false;
+			lastKey = next.lastKey;
+			lastLength = next.lastLength;
+		}
+
+		/**
+		 * Closes the runs at either end, once the whole sequence has been seen.
+		 */
+		void finish(){
+			if(empty){
+				return;
+			}
+			if(!single){
+				close(firstKey, firstLength);
+			}
+			close(lastKey, lastLength);
+			empty = true;
+		}
+
+		private void close(long key, long length){
+			closed[closed.length == 1 ? 0 : (int)key].record(length);
+		}
+
+	}
+
+	/**
+	 * The whole profile.
+	 */
+	static final class Profile {
+		int D;
+		int T;
+		final long[][] counts = new long[2][3];//by phase and Event type
+		final TreeMap<Long, long[]> mix = new TreeMap<Long, long[]>();
+		long firstTime = -1;
+		long lastTime = -1;
+		long outOfOrder = 0;
+		final BitSet batchUsers = new BitSet();
+		final BitSet users = new BitSet();
+		final Runs seconds = new Runs(1);//in the stream
+		final Runs kinds = new Runs(2);//in the stream
+		long friendships = 0;//at the start of the stream
+		final Histogram startDegrees = new Histogram();
+		final Histogram endDegrees = new Histogram();
+		final Histogram components = new Histogram();//sizes of components with a friendship
+		final Histogram balls = new Histogram();//sampled social network sizes at the start of the stream
+		long sampled = 0;
+		long covered = 0;//sampled users whose social network is their whole component
+		final Histogram purchaseBalls = new Histogram();//social network sizes at tracked purchases
+		long comparisons = 0;//tracked purchases with an earlier one by the same buyer
+		long changed = 0;//of those, where the social network had changed
+		long quiet = 0;//of those, with no befriend or unfriend at all in between
+		long edgeRuns = 0;
+		long edgeEvents = 0;
+		long netChanges = 0;//befriends and unfriends left once each run is reduced to its net change
+	}
+
+	private Profiler(int threads, long bucketMillis){
+		this.threads = threads;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.bucketMillis = bucketMillis;
+	}
+
+	/**
+	 * Usage:
+	 *   java shopping_network.Profiler <dataset directory> [options]
+	 * Options:
+	 *   --threads=<n>         threads that read the logs and crawl [the number of processors]
+	 *   --samples=<n>         users whose social networks are measured and tracked [1000]
+	 *   --seed=<s>            the seed of the sample [1]
+	 *   --bucket-minutes=<m>  the time buckets of the event mix [60]
+	 *   --json=<file>         also write the profile and the suggested options as JSON
+	 * The suggested options are printed last, ready to be given to Detector.
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length < 1){
+			throw new IllegalArgumentException("Please give the dataset directory, followed by any options.");
+		}
+		File dataset = new File(args[0]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		int samples = 1000;
+		long seed = 1;
+		long bucketMinutes = 60;
+		File json = null;
+		for(int i = 1; i < args.length; i++){
+			if(args[i].startsWith("--threads=")){
+				threads = Integer.parseInt(args[i].substring("--threads=".length()));
+			} else if(args[i].startsWith("--samples=")){
+				samples = Integer.parseInt(args[i].substring("--samples=".length()));
+			} else if(args[i].startsWith("--seed=")){
+				seed = Long.parseLong(args[i].substring("--seed=".length()));
+			} else if(args[i].startsWith("--bucket-minutes=")){
+				bucketMinutes = Long.parseLong(args[i].substring("--bucket-minutes=".length()));
+			} else if(args[i].startsWith("--json=")){
+				json = new File(args[i].substring("--json=".length()));
+			} else {
+				throw new IllegalArgumentException("Unknown option: \""+args[i]+"\"");
+			}
+		}
+		if(threads < 1 || samples < 1 || bucketMinutes < 1){
+			throw new IllegalArgumentException("Threads, samples and bucket minutes must be positive");
+		}
+
+		Profiler profiler = new Profiler(threads, bucketMinutes*60000);
+		Profile p;
+		long start = System.nanoTime();
+		try {
+			p = profiler.profile(new File(dataset, "batch_log.json"), new File(dataset, "stream_log.json"), samples, seed);
+		} finally {
+			profiler.pool.shutdown();
+		}
+		List<String> reasons = new ArrayList<String>();
+		List<String> suggested = suggest(p, Runtime.getRuntime().maxMemory(), reasons);
+		System.out.print(report(p, profiler.bucketMillis, suggested, reasons));
+		System.out.printf(Locale.ROOT, "Profiled in %.1f s with %d threads%n", (System.nanoTime() - start)/1e9, threads);
+		if(json != null){
+			try(Writer w = new FileWriter(json)){
+				w.write(json(dataset, p, profiler.bucketMillis, suggested, reasons));
+			}
+		}
+	}
+
+	/**
+	 * Profiles a pair of logs.
+	 * @param batchLog The batch log, which starts with D and T
+	 * @param streamLog The stream log
+	 * @param samples The number of users to sample
+	 * @param seed The seed of the sample
+	 * @return A Profile
+	 * @throws IOException
+	 */
+	Profile profile(File batchLog, File streamLog, int samples, long seed) throws IOException{
+		Profile p = new Profile();
+		try(BufferedReader br = new BufferedReader(new FileReader(batchLog))){
+			String line = br.readLine();
+			if(line == null){
+				throw new IllegalArgumentException("The batch log is empty: "+batchLog);
+			}
+			Event.setParameters(line);
+			p.D = Event.D;
+			p.T = Event.T;
+		}
+
+		List<Chunk> batch = scan(batchLog, true, null);
+		HeapAdjacency friends = new HeapAdjacency();
+		int numUsers = 0;
+		for(Chunk c : batch){
+			merge(p, c, 0);
+			p.batchUsers.or(c.users);
+			numUsers = Math.max(numUsers, c.users.length());
+			friends.expand(numUsers);
+			for(int i = 0; i < c.kept.size; i++){
+				p.friendships += applyEdge(friends, c.kept.type[i], c.kept.id1[i], (int)c.kept.value[i]);
+			}
+		}
+		batch = null;
+		for(int u = p.batchUsers.nextSetBit(0); u >= 0; u = p.batchUsers.nextSetBit(u + 1)){
+			p.startDegrees.record(friends.degree(u));
+		}
+		int[] sample = sample(p.batchUsers, samples, seed);
+		measureBalls(p, friends, numUsers, sample);
+		BitSet tracked = new BitSet();
+		for(int u : sample){
+			tracked.set(u);
+		}
+
+		List<Chunk> stream = scan(streamLog, false, tracked);
+		for(Chunk c : stream){
+			numUsers = Math.max(numUsers, c.users.length());
+		}
+		friends.expand(numUsers);
+		replayStream(p, friends, numUsers, stream);
+		for(Chunk c : stream){
+			merge(p, c, 1);
+			p.seconds.append(c.seconds);
+			p.kinds.append(c.kinds);
+		}
+		p.seconds.finish();
+		p.kinds.finish();
+		for(int u = p.users.nextSetBit(0); u >= 0; u = p.users.nextSetBit(u + 1)){
+			p.endDegrees.record(friends.degree(u));
+		}
+		return p;
+	}
+
+	private void merge(Profile p, Chunk c, int phase){
+		if(c.isEmpty()){
+			return;
+		}
+		for(int t = 0; t < 3; t++){
+			p.counts[phase][t] += c.counts[t];
+		}
+		for(Map.Entry<Long, long[]> e : c.mix.entrySet()){
+			long[] into = p.mix.computeIfAbsent(e.getKey(), k -> new long[3]);
+			for(int t = 0; t < 3; t++){
+				into[t] += e.getValue()[t];
+			}
+		}
+		if(p.lastTime >= 0 && c.firstTime < p.lastTime){
+			p.outOfOrder++;
+		}
+		if(p.firstTime < 0){
+			p.firstTime = c.firstTime;
+		}
+		p.lastTime = c.lastTime;
+		p.outOfOrder += c.outOfOrder;
+		p.users.or(c.users);
+	}
+
+	/**
+	 * Applies a befriend or unfriend, ignoring a befriend of friends and an unfriend of
+	 * users who are not friends, as Network does.
+	 * @return The change in the number of friendships: 1, -1 or 0
+	 */
+	private static int applyEdge(Adjacency friends, byte type, int u, int v){
+		if(type == Event.BEFRIEND){
+			if(friends.contains(u, v)){
+				return 0;
+			}
+			friends.add(u, v);
+			friends.add(v, u);
+			return 1;
+		}
+		if(friends.remove(u, v)){
+			friends.remove(v, u);
+			return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Picks up to the given number of distinct users at random.
+	 */
+	static int[] sample(BitSet users, int samples, long seed){
+		int[] all = new int[users.cardinality()];
+		int k = 0;
+		for(int u = users.nextSetBit(0); u >= 0; u = users.nextSetBit(u + 1)){
+			all[k++] = u;
+		}
+		int count = Math.min(samples, all.length);
+		Random random = new Random(seed);
+		for(int i = 0; i < count; i++){
+			int j = i + random.nextInt(all.length - i);
+			int swap = all[i];
+			all[i] = all[j];
+			all[j] = swap;
+		}
+		return Arrays.copyOf(all, count);
+	}
+
+	/**
+	 * Labels the components of the graph, and crawls the social networks of the sampled
+	 * users in parallel.
+	 */
+	private void measureBalls(Profile p, Adjacency friends, int numUsers, int[] sample) throws IOException{
+		int[] component = new int[numUsers];
+		Arrays.fill(component, -1);
+		int[] componentSize = new int[16];
+		int[] queue = new int[Math.max(1, numUsers)];
+		int count = 0;
+		for(int s = 0; s < numUsers; s++){
+			if(component[s] >= 0 || friends.degree(s) == 0){
+				continue;
+			}
+			if(count == componentSize.length){
+				componentSize = Arrays.copyOf(componentSize, count*2);
+			}
+			component[s] = count;
+			queue[0] = s;
+			int size = 1;
+			for(int head = 0; head < size; head++){
+				int u = queue[head];
+				for(int i = 0; i < friends.degree(u); i++){
+					int v = friends.neighbor(u, i);
+					if(component[v] < 0){
+						component[v] = count;
+						queue[size++] = v;
+					}
+				}
+			}
+			componentSize[count++] = size;
+			p.components.record(size);
+		}
+		final int[] sizes = componentSize;
+
+		List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+		List<Histogram> histograms = new ArrayList<Histogram>();
+		int per = (sample.length + threads - 1)/threads;
+		for(int from = 0; from < sample.length; from += per){
+			int start = from;
+			int end = Math.min(sample.length, from + per);
+			Histogram h = new Histogram();
+			histograms.add(h);
+			parts.add(pool.submit(() -> {
+				Crawler crawler = new Crawler(friends, numUsers);
+				long covered = 0;
+				for(int i = start; i < end; i++){
+					int u = sample[i];
+					int size = crawler.crawl(u, p.D);
+					h.record(size);
+					if(size > 0 && size == sizes[component[u]] - 1){
+						covered++;
+					}
+				}
+				return new long[]{end - start, covered};
+			}));
+		}
+		for(int i = 0; i < parts.size(); i++){
+			long[] part = LogChunks.get(parts.get(i));
+			p.sampled += part[0];
+			p.covered += part[1];
+			p.balls.add(histograms.get(i));
+		}
+	}
+
+	/**
+	 * Replays the befriends and unfriends of the stream, and the purchases of the tracked
+	 * users, in order.
+	 */
+	private void replayStream(Profile p, Adjacency friends, int numUsers, List<Chunk> stream){
+		Crawler crawler = new Crawler(friends, numUsers);
+		HashMap<Integer, long[]> previous = new HashMap<Integer, long[]>();//per tracked user: size, hash, edge events
+		HashMap<Long, Boolean> run = new HashMap<Long, Boolean>();//pairs of the current run, and if they were friends
+		long runEvents = 0;
+		long edgeEvents = 0;
+		for(Chunk c : stream){
+			EventBuffer kept = c.kept;
+			for(int i = 0; i < kept.size; i++){
+				int u = kept.id1[i];
+				if(kept.type[i] == Event.PURCHASE){
+					runEvents = endRun(p, friends, run, runEvents);
+					int size = crawler.crawl(u, p.D);
+					long hash = crawler.hash(size);
+					p.purchaseBalls.record(size);
+					long[] before = previous.get(u);
+					if(before != null){
+						p.comparisons++;
+						if(before[0] != size || before[1] != hash){
+							p.changed++;
+						}
+						if(before[2] == edgeEvents){
+							p.quiet++;
+						}
+					}
+					previous.put(u, new long[]{size, hash, edgeEvents});
+					continue;
+				}
+				if(c.runStarts.get(i)){//a run that starts a chunk goes on from the last one, unless that ended with a purchase
+					runEvents = endRun(p, friends, run, runEvents);
+				}
+				int v = (int)kept.value[i];
+				long pair = ((long)Math.min(u, v) << 32) | Math.max(u, v);
+				run.putIfAbsent(pair, friends.contains(u, v));
+				runEvents++;
+				edgeEvents++;
+				applyEdge(friends, kept.type[i], u, v);
+			}
+			if(c.endsWithPurchase()){
+				runEvents = endRun(p, friends, run, runEvents);
+			}
+		}
+		endRun(p, friends, run, runEvents);
+	}
+
+	private static long endRun(Profile p, Adjacency friends, HashMap<Long, Boolean> run, long runEvents){
+		if(runEvents == 0){
+			return 0;
+		}
+		p.edgeRuns++;
+		p.edgeEvents += runEvents;
+		for(Map.Entry<Long, Boolean> e : run.entrySet()){
+			long pair = e.getKey();
+			if(friends.contains((int)(pair >>> 32), (int)pair) != e.getValue()){
+				p.netChanges++;
+			}
+		}
+		run.clear();
+		return 0;
+	}
+
+	/**
+	 * A breadth-first crawl of the users within a degree of a user, with marks that need
+	 * no clearing between crawls. Each thread has its own.
+	 */
+	static final class Crawler {
+
+		private final Adjacency friends;
+		private final int[] mark;
+		private int[] found = new int[16];
+		private int stamp = 0;
+
+		Crawler(Adjacency friends, int numUsers){
+			this.friends = friends;
+			this.mark = new int[numUsers];
+		}
+
+		/**
+		 * Finds the users within the given degree of u, not u.
+		 * @return Their number
+		 */
+		int crawl(int u, int degree){
+			if(stamp == Integer.MAX_VALUE){
+				Arrays.fill(mark, 0);
+				stamp = 0;
+			}
+			stamp++;
+			mark[u] = stamp;
+			int size = degree > 0 ? visit(u, 0) : 0;
+			int start = 0;
+			for(int k = 1; k < degree && start < size; k++){
+				int end = size;
+				for(int i = start; i < end; i++){
+					size = visit(found[i], size);
+				}
+				start = end;
+			}
+			return size;
+		}
+
+		private int visit(int x, int size){
+			int count = friends.degree(x);
+			for(int j = 0; j < count; j++){
+				int y = friends.neighbor(x, j);
+				if(mark[y] != stamp){
+					mark[y] = stamp;
+					if(size == found.length){
+						found = Arrays.copyOf(found, size*2);
+					}
+					found[size++] = y;
+				}
+			}
+			return size;
+		}
+
+		/**
+		 * Gives an order-independent hash of the users found by the last crawl.
+		 */
+		long hash(int size){
+			long h = 0;
+			for(int i = 0; i < size; i++){
+				long x = found[i]*0x9E3779B97F4A7C15L;
+				h += x ^ (x >>> 31);
+			}
+			return h;
+		}
+
+	}
+
+	/**
+	 * Reads a log in chunks, in parallel (see LogChunks).
+	 * @param log A log file
+	 * @param header True if its first line is D and T, which is skipped
+	 * @param tracked Users whose purchases are kept, or null
+	 * @return The chunks, in order
+	 * @throws IOException
+	 */
+	List<Chunk> scan(File log, boolean header, BitSet tracked) throws IOException{
+		return LogChunks.read(pool, threads, log, header, bytes -> new Chunk(), (c, one) -> {
+			long[] bucket = c.mix.computeIfAbsent(Math.floorDiv(one.time[0], bucketMillis), k -> new long[3]);
+			bucket[one.type[0]]++;
+			c.add(one.type[0], one.time[0], one.id1[0], one.value[0], tracked);
+		});
+	}
+
+	/**
+	 * Suggests Detector options for a profile.
+	 * @param p A Profile
+	 * @param maxHeap The largest heap the detector will have, in bytes
+	 * @param reasons A list to add the reason for each suggestion (or against it) to
+	 * @return The options
+	 */
+	static List<String> suggest(Profile p, long maxHeap, List<String> reasons){
+		List<String> options = new ArrayList<String>();
+		double purchaseRun = p.kinds.closed[0].getMean();
+		double edgeRun = p.kinds.closed[1].getMean();
+		double cancelled = p.edgeEvents == 0 ? 0 : 1 - (double)p.netChanges/p.edgeEvents;
+		if(purchaseRun >= BURST_RUN){
+			options.add("--bursts");
+			reasons.add(String.format(Locale.ROOT, "--bursts: stream purchases come in runs of %.1f on average, which share one crawl", purchaseRun));
+		} else if(edgeRun >= COALESCE_RUN || cancelled >= COALESCE_CANCELLED){
+			options.add("--coalesce-edges");
+			reasons.add(String.format(Locale.ROOT, "--coalesce-edges: befriends and unfriends come in runs of %.1f on average,"
+					+ " and %.0f%% of them cancel out", edgeRun, 100*cancelled));
+		} else {
+			reasons.add(String.format(Locale.ROOT, "no --bursts: runs are short (%.1f purchases, %.1f befriends and unfriends)",
+					purchaseRun, edgeRun));
+		}
+		double covered = p.sampled == 0 ? 0 : (double)p.covered/p.sampled;
+		if(covered >= COVERED){
+			options.add("--share-windows");
+			options.add("--component-windows");
+			reasons.add(String.format(Locale.ROOT, "--share-windows --component-windows: %.0f%% of sampled social networks"
+					+ " are their whole component", 100*covered));
+		} else {
+			reasons.add(String.format(Locale.ROOT, "no shared windows: only %.0f%% of sampled social networks are their whole component",
+					100*covered));
+		}
+		long users = p.users.cardinality();
+		double histories = (double)users*p.T*16;//an order key and a price per purchase
+		if(histories > HEAP_SHARE*maxHeap){
+			long mb = Math.max(1, (long)(HEAP_SHARE*maxHeap/2/(1024*1024)));
+			options.add("--sn-memory="+mb);
+			reasons.add(String.format(Locale.ROOT, "--sn-memory=%d: full social network histories would take %.0f MB of a %d MB heap",
+					mb, histories/(1024*1024), maxHeap/(1024*1024)));
+		}
+		double friendLists = (double)p.friendships*2*4 + (double)users*32;//an int per direction, and an array per user
+		if(friendLists > HEAP_SHARE*maxHeap){
+			options.add("--compressed-friends");
+			reasons.add(String.format(Locale.ROOT, "--compressed-friends: friend lists would take %.0f MB of a %d MB heap",
+					friendLists/(1024*1024), maxHeap/(1024*1024)));
+		}
+		return options;
+	}
+
+	/**
+	 * Writes a profile as text.
+	 */
+	static String report(Profile p, long bucketMillis, List<String> suggested, List<String> reasons){
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "D = %d, T = %d, from %s to %s%n", p.D, p.T, time(p.firstTime), time(p.lastTime)));
+		String[] phases = {"Batch", "Stream"};
+		for(int phase = 0; phase < 2; phase++){
+			long[] c = p.counts[phase];
+			long total = c[0] + c[1] + c[2];
+			s.append(String.format(Locale.ROOT, "%-7s %d events: %s%n", phases[phase]+":", total, mix(c)));
+		}
+		s.append(String.format(Locale.ROOT, "Users: %d (%d in the batch), %d events out of time order%n",
+				p.users.cardinality(), p.batchUsers.cardinality(), p.outOfOrder));
+		s.append(String.format(Locale.ROOT, "Event mix per %d minutes:%n", bucketMillis/60000));
+		for(Map.Entry<Long, long[]> e : p.mix.entrySet()){
+			s.append("  ").append(time(e.getKey()*bucketMillis)).append("  ").append(mix(e.getValue())).append(System.lineSeparator());
+		}
+		s.append(String.format(Locale.ROOT, "Friendships at the start of the stream: %d%n", p.friendships));
+		s.append("Degrees at the start of the stream: ").append(distribution(p.startDegrees)).append(System.lineSeparator());
+		s.append("Degrees at the end of the stream:   ").append(distribution(p.endDegrees)).append(System.lineSeparator());
+		s.append("Component sizes: ").append(distribution(p.components)).append(System.lineSeparator());
+		s.append(String.format(Locale.ROOT, "Social networks of %d sampled users (D = %d): %s; %d are their whole component%n",
+				p.sampled, p.D, distribution(p.balls), p.covered));
+		s.append("Social networks at their purchases: ").append(distribution(p.purchaseBalls)).append(System.lineSeparator());
+		s.append(String.format(Locale.ROOT, "Social network changed between purchases: %d of %d (%s); no befriend or unfriend in between: %d%n",
+				p.changed, p.comparisons, percent(p.changed, p.comparisons), p.quiet));
+		s.append("Stream runs of events in the same second: ").append(distribution(p.seconds.closed[0])).append(System.lineSeparator());
+		s.append("Stream runs of purchases: ").append(distribution(p.kinds.closed[0])).append(System.lineSeparator());
+		s.append("Stream runs of befriends and unfriends: ").append(distribution(p.kinds.closed[1])).append(System.lineSeparator());
+		s.append(String.format(Locale.ROOT, "Befriends and unfriends left after coalescing each run: %d of %d (%s)%n",
+				p.netChanges, p.edgeEvents, percent(p.netChanges, p.edgeEvents)));
+		for(String reason : reasons){
+			s.append("  ").append(reason).append(System.lineSeparator());
+		}
+		s.append("Suggested options: ").append(String.join(" ", suggested)).append(System.lineSeparator());
+		return s.toString();
+	}
+
+	/**
+	 * Writes a profile as JSON: the suggested options and reasons, the event mix, and every
+	 * other figure flat, as Replay writes its metrics.
+	 */
+	static String json(File dataset, Profile p, long bucketMillis, List<String> suggested, List<String> reasons){
+		Map<String, Double> m = new LinkedHashMap<String, Double>();
+		m.put("D", (double)p.D);
+		m.put("T", (double)p.T);
+		String[] phases = {"batch", "stream"};
+		for(int phase = 0; phase < 2; phase++){
+			for(int t = 0; t < 3; t++){
+				m.put(phases[phase]+"."+TYPES[t]+"s", (double)p.counts[phase][t]);
+			}
+		}
+		m.put("users", (double)p.users.cardinality());
+		m.put("batchUsers", (double)p.batchUsers.cardinality());
+		m.put("outOfOrder", (double)p.outOfOrder);
+		m.put("friendships", (double)p.friendships);
+		put(m, "startDegree", p.startDegrees);
+		put(m, "endDegree", p.endDegrees);
+		put(m, "componentSize", p.components);
+		put(m, "socialNetworkSize", p.balls);
+		m.put("sampled", (double)p.sampled);
+		m.put("coveredByComponent", (double)p.covered);
+		put(m, "purchaseSocialNetworkSize", p.purchaseBalls);
+		m.put("purchasePairs", (double)p.comparisons);
+		m.put("socialNetworkChanged", (double)p.changed);
+		m.put("noEdgeEventsBetween", (double)p.quiet);
+		put(m, "sameSecondRun", p.seconds.closed[0]);
+		put(m, "purchaseRun", p.kinds.closed[0]);
+		put(m, "edgeRun", p.kinds.closed[1]);
+		m.put("edgeEvents", (double)p.edgeEvents);
+		m.put("edgeNetChanges", (double)p.netChanges);
+
+		StringBuilder s = new StringBuilder();
+		s.append("{\n");
+		s.append("  \"dataset\": \"").append(dataset.getPath().replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		s.append("  \"suggestedOptions\": \"").append(String.join(" ", suggested)).append("\",\n");
+		s.append("  \"reasons\": [");
+		for(int i = 0; i < reasons.size(); i++){
+			s.append(i == 0 ? "\n" : ",\n").append("    \"").append(reasons.get(i).replace("\"", "\\\"")).append('"');
+		}
+		s.append("\n  ],\n");
+		s.append("  \"bucketMinutes\": ").append(bucketMillis/60000).append(",\n");
+		s.append("  \"mix\": [");
+		int i = 0;
+		for(Map.Entry<Long, long[]> e : p.mix.entrySet()){
+			long[] c = e.getValue();
+			s.append(i++ == 0 ? "\n" : ",\n").append("    {\"start\": \"").append(time(e.getKey()*bucketMillis))
+					.append("\", \"purchases\": ").append(c[0]).append(", \"befriends\": ").append(c[1])
+					.append(", \"unfriends\": ").append(c[2]).append('}');
+		}
+		s.append("\n  ],\n");
+		s.append("  \"metrics\": {\n");
+		i = 0;
+		for(Map.Entry<String, Double> e : m.entrySet()){
+			double v = e.getValue();
+			s.append("    \"").append(e.getKey()).append("\": ");
+			s.append(v == Math.rint(v) ? Long.toString((long)v) : String.format(Locale.ROOT, "%.3f", v));
+			s.append(++i == m.size() ? "\n" : ",\n");
+		}
+		s.append("  }\n");
+		s.append("}\n");
+		return s.toString();
+	}
+
+	private static void put(Map<String, Double> m, String name, Histogram h){
+		m.put(name+".count", (double)h.getCount());
+		m.put(name+".mean", h.getMean());
+		m.put(name+".p50", (double)h.percentile(50));
+		m.put(name+".p90", (double)h.percentile(90));
+		m.put(name+".p99", (double)h.percentile(99));
+		m.put(name+".max", (double)h.getMax());
+	}
+
+	private static String distribution(Histogram h){
+		if(h.getCount() == 0){
+			return "none";
+		}
+		return String.format(Locale.ROOT, "%d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d", h.getCount(), h.getMean(),
+				h.percentile(50), h.percentile(90), h.percentile(99), h.getMax());
+	}
+
+	private static String mix(long[] c){
+		long total = c[0] + c[1] + c[2];
+		return String.format(Locale.ROOT, "%d purchases (%s), %d befriends (%s), %d unfriends (%s)",
+				c[0], percent(c[0], total), c[1], percent(c[1], total), c[2], percent(c[2], total));
+	}
+
+	private static String percent(long part, long whole){
+		return whole == 0 ? "-" : String.format(Locale.ROOT, "%.1f%%", 100.0*part/whole);
+	}
+
+	private static String time(long millis){
+		if(millis < 0){
+			return "-";
+		}
+		String t = new Timestamp(millis).toString();
+		return t.substring(0, t.length() - 2);
+	}
+
+}
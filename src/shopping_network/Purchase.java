@@ -14,7 +14,7 @@ public class Purchase {
 	 */
 	
 	private int userID; //The user who made the purchase.
-	private double price; //The price of the purchase;
+	private long price; //The price of the purchase, in cents.
 	private Timestamp timestamp; //The time of the purchase
 	private int purchaseNum; //Supplementary variable to the timestamp.
 	//purchaseNum increments on the purchases made within a given second.
@@ -22,11 +22,11 @@ public class Purchase {
 	/**
 	 * Generates a Purchase object with the given specifications.
 	 * @param userID The ID of the user who made the purchase.
-	 * @param price The price of the purchase.
+	 * @param price The price of the purchase, in cents.
 	 * @param timestamp The time at which the purchase was made.
 	 * @param purchaseNum Supplementary information to the timestamp.
 	 */
-	public Purchase(int userID, double price, Timestamp timestamp, int purchaseNum){
+	public Purchase(int userID, long price, Timestamp timestamp, int purchaseNum){
 		this.userID = userID;
 		this.price = price;
 		this.timestamp = timestamp;
@@ -37,7 +37,11 @@ public class Purchase {
 	public int getUserID(){
 		return userID;
 	}
-	public double getPrice(){
+	/**
+	 * Gets the price of the purchase in cents; see Cents.
+	 * @return A long
+	 */
+	public long getPrice(){
 		return price;
 	}
 	public Timestamp getTimestamp(){
@@ -47,6 +51,65 @@ public class Purchase {
 		return purchaseNum;
 	}
 	
+	/**
+	 * Gives the order key of the purchase; see orderKey(long, int).
+	 * @return A long
+	 */
+	public long getOrderKey(){
+		return orderKey(timestamp.getTime(), purchaseNum);
+	}
+	
+	/*
+	 * Order keys let purchases be stored and compared as a single long, so that
+	 * histories don't need to hold Purchase objects. The timestamp in seconds is
+	 * stored in the upper bits and the purchase number in the lower 24 bits.
+	 * Comparing two keys gives the same answer as comparePurchases, as long as
+	 * fewer than 2^24 purchases are made in a single second.
+	 */
+	private static final int PURCHASE_NUM_BITS = 24;
+	
+	/**
+	 * Combines a time and a purchase number into a single order key.
+	 * @param time A time in milliseconds, as given by Timestamp.getTime()
+	 * @param purchaseNum Supplementary information to the timestamp
+	 * @return A long
+	 */
+	public static long orderKey(long time, int purchaseNum){
+		if(purchaseNum >>> PURCHASE_NUM_BITS != 0){
+			throw new IllegalStateException("Too many purchases within one second: "+purchaseNum);
+		}
+		return (Math.floorDiv(time, 1000) << PURCHASE_NUM_BITS) | purchaseNum;
+	}
+	
+	/**
+	 * Gives the time (in milliseconds) stored in an order key.
+	 * @param key An order key
+	 * @return A long
+	 */
+	public static long keyTime(long key){
+		return (key >> PURCHASE_NUM_BITS)*1000;
+	}
+	
+	/**
+	 * Gives the purchase number stored in an order key.
+	 * @param key An order key
+	 * @return An integer
+	 */
+	public static int keyPurchaseNum(long key){
+		return (int)(key & ((1 << PURCHASE_NUM_BITS) - 1));
+	}
+	
+	/**
+	 * Rebuilds a purchase from the values kept in a history.
+	 * @param userID The ID of the user who made the purchase.
+	 * @param price The price of the purchase, in cents.
+	 * @param key The order key of the purchase.
+	 * @return A Purchase
+	 */
+	public static Purchase fromKey(int userID, long price, long key){
+		return new Purchase(userID, price, new Timestamp(keyTime(key)), keyPurchaseNum(key));
+	}
+	
 	/**
 	 * Determines which purchase was made first. Returns true if p1 was made before p2.
 	 * Also returns True If the purchases are made at the same time,
@@ -0,0 +1,200 @@
+package shopping_network;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The detector written as plainly as possible, to check the engine against (see
+ * Differential). It keeps to the specification and has none of the engine's shortcuts:
+ * friends are sets, each user keeps a list of their last T purchases, and every purchase
+ * in the stream crawls its buyer's social network and merges the histories of its users
+ * from scratch. The mean and standard deviation are computed exactly with BigIntegers.
+ * Nothing here is meant to be fast; it is meant to stay as it is, so that it does not
+ * change along with the engine. For the same reason it keeps its own record of a
+ * purchase, orders purchases by arrival, and writes flags itself, rather than using
+ * Purchase and Event.writePurchaseFlag: a mistake there would otherwise be made by both
+ * engines, and the flags would still match.
+ *
+ * The window of a purchase is the last T purchases made by users within D of the buyer
+ * (not the buyer), in the order the purchases arrived; with a time window (see
+ * Network.setWindowMinutes), those of them made less than that many minutes before the
+ * latest event. A purchase is flagged if the window has at least 2 purchases and the
+ * amount is more than k standard deviations above their mean (3 unless another multiplier
+ * is given). Timestamps are assumed not to go backwards, as they are in the logs.
+ * @author Kevin
+ *
+ */
+class ReferenceEngine {
+
+	private final int D;
+	private final int T;
+	private final int windowMinutes;
+	private final long multiplierNum;
+	private final long multiplierDen;
+
+	private final HashMap<Integer, HashSet<Integer>> friends = new HashMap<Integer, HashSet<Integer>>();
+	private final HashMap<Integer, LinkedList<Bought>> purchases = new HashMap<Integer, LinkedList<Bought>>();
+	private long currentTime = 0;
+	private long arrivals = 0;//purchases made so far
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+
+	/**
+	 * A purchase, as the reference engine keeps it.
+	 */
+	private static final class Bought {
+		final int user;
+		final long price;//in cents
+		final long time;//in milliseconds
+		final long arrival;//the purchases made before this one
+
+		Bought(int user, long price, long time, long arrival){
+			this.user = user;
+			this.price = price;
+			this.time = time;
+			this.arrival = arrival;
+		}
+	}
+
+	/**
+	 * @param D The number of degrees in a social network
+	 * @param T The number of purchases in a window
+	 * @param windowMinutes The time window in minutes, or 0 for none
+	 * @param multiplierNum The numerator of the multiplier k
+	 * @param multiplierDen The denominator of the multiplier k
+	 */
+	ReferenceEngine(int D, int T, int windowMinutes, long multiplierNum, long multiplierDen){
+		this.D = D;
+		this.T = T;
+		this.windowMinutes = windowMinutes;
+		this.multiplierNum = multiplierNum;
+		this.multiplierDen = multiplierDen;
+	}
+
+	/**
+	 * Applies an event.
+	 * @param type Event.PURCHASE, Event.BEFRIEND or Event.UNFRIEND
+	 * @param time The time in milliseconds
+	 * @param id1 The buyer, or the first user
+	 * @param value The amount in cents, or the second user
+	 * @param streaming True in the stream phase, where purchases are checked
+	 * @return A flag, or null
+	 */
+	String apply(byte type, long time, int id1, long value, boolean streaming){
+		currentTime = Math.max(currentTime, time);
+		if(type == Event.BEFRIEND){
+			friendsOf(id1).add((int)value);
+			friendsOf((int)value).add(id1);
+			return null;
+		}
+		if(type == Event.UNFRIEND){
+			friendsOf(id1).remove((int)value);
+			friendsOf((int)value).remove(id1);
+			return null;
+		}
+		Bought p = new Bought(id1, value, time, arrivals++);
+		LinkedList<Bought> own = purchasesOf(id1);
+		own.add(p);
+		if(own.size() > T){
+			own.removeFirst();
+		}
+		return streaming ? check(p) : null;
+	}
+
+	private String check(Bought p){
+		ArrayList<Bought> all = new ArrayList<Bought>();
+		for(int v : socialNetwork(p.user)){
+			all.addAll(purchasesOf(v));
+		}
+		all.sort(Comparator.comparingLong(b -> b.arrival));
+		List<Bought> window = all.subList(Math.max(0, all.size() - T), all.size());
+		BigInteger n = BigInteger.ZERO;
+		BigInteger sum = BigInteger.ZERO;
+		BigInteger squares = BigInteger.ZERO;
+		for(Bought q : window){
+			if(windowMinutes > 0 && currentTime - q.time >= windowMinutes*60000L){
+				continue;
+			}
+			BigInteger x = BigInteger.valueOf(q.price);
+			n = n.add(BigInteger.ONE);
+			sum = sum.add(x);
+			squares = squares.add(x.multiply(x));
+		}
+		if(n.intValue() < 2){
+			return null;
+		}
+		//with V = n*squares - sum^2 and k = num/den, the amount x is flagged if n*x - sum > k*sqrt(V),
+		//that is if (n*x - sum)^2 * den^2 > num^2 * V
+		BigInteger variance = n.multiply(squares).subtract(sum.multiply(sum));
+		BigInteger d = n.multiply(BigInteger.valueOf(p.price)).subtract(sum);
+		BigInteger num = BigInteger.valueOf(multiplierNum);
+		BigInteger den = BigInteger.valueOf(multiplierDen);
+		if(d.signum() <= 0 || d.multiply(d).multiply(den.multiply(den)).compareTo(variance.multiply(num.multiply(num))) <= 0){
+			return null;
+		}
+		long mean = sum.divide(n).longValueExact();
+		long sd = variance.sqrt().divide(n).longValueExact();
+		return flag(p, mean, sd);
+	}
+
+	/**
+	 * Writes the flag of a purchase, as a line of flagged_purchases.json.
+	 */
+	private static String flag(Bought p, long mean, long sd){
+		String timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(p.time), ZoneId.systemDefault()).format(TIMESTAMP);
+		return String.format(Locale.ROOT, "{\"event_type\":\"purchase\", \"timestamp\":\"%s\", \"id\": \"%d\", "
+				+ "\"amount\": \"%s\", \"mean\": \"%s\", \"sd\": \"%s\"}",
+				timestamp, p.user, dollars(p.price), dollars(mean), dollars(sd));
+	}
+
+	/**
+	 * Writes an amount in cents as dollars, with two decimal places.
+	 */
+	private static String dollars(long cents){
+		return BigDecimal.valueOf(cents, 2).toPlainString();
+	}
+
+	/**
+	 * Gives everyone within D of a user, not the user, by breadth-first search.
+	 */
+	private List<Integer> socialNetwork(int u){
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		seen.add(u);
+		ArrayList<Integer> level = new ArrayList<Integer>();
+		level.add(u);
+		for(int k = 0; k < D && !level.isEmpty(); k++){
+			ArrayList<Integer> next = new ArrayList<Integer>();
+			for(int v : level){
+				for(int w : friendsOf(v)){
+					if(seen.add(w)){
+						next.add(w);
+					}
+				}
+			}
+			found.addAll(next);
+			level = next;
+		}
+		return found;
+	}
+
+	private HashSet<Integer> friendsOf(int u){
+		return friends.computeIfAbsent(u, k -> new HashSet<Integer>());
+	}
+
+	private LinkedList<Bought> purchasesOf(int u){
+		return purchases.computeIfAbsent(u, k -> new LinkedList<Bought>());
+	}
+
+}
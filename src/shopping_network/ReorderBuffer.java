@@ -0,0 +1,294 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Puts stream events back in time order before they reach the engine.
+ *
+ * The engine assumes that timestamps never go backwards: purchases are numbered within
+ * each second as they arrive, and histories are kept in order of those numbers. Events
+ * that arrive a little out of order are held here until they are safe to release. The
+ * watermark is the latest time seen so far; an event is released once its time is at
+ * least maxLateness behind the watermark, on the assumption that nothing older is still
+ * to come. Events with the same time are released in the order they arrived, so a
+ * stream that is already in order passes through unchanged.
+ *
+ * Held events are kept in a binary min-heap on (time, arrival number), stored in parallel
+ * primitive arrays. At most capacity events are held: once full, the earliest is released
+ * early to make room, so memory stays bounded however far ahead the watermark runs.
+ *
+ * An event older than one already released cannot be put in order. It is either dropped
+ * (DROP) or given the time of the latest event released and applied next (ADJUST), so
+ * it is counted just after the events it should have preceded.
+ *
+ * Counters report how many events arrived out of order, how far, and how many were late,
+ * dropped or released early, along with the time each event was held (see getMeanHoldNanos).
+ * @author Kevin
+ *
+ */
+public class ReorderBuffer {
+
+	public static final int DROP = 0;
+	public static final int ADJUST = 1;
+
+	private final long maxLateness;//in milliseconds
+	private final int capacity;
+	private final int latePolicy;
+
+	//the heap, in parallel arrays
+	private byte[] type = new byte[16];
+	private long[] time = new long[16];
+	private int[] id1 = new int[16];
+	private long[] value = new long[16];
+	private long[] arrival = new long[16];//arrival number, for ties
+	private long[] heldSince = new long[16];//System.nanoTime() on arrival
+	private int size = 0;
+
+	private long arrivals = 0;
+	private long watermark = Long.MIN_VALUE;
+	private long released = Long.MIN_VALUE;//the time of the latest event released
+
+	private long outOfOrder = 0;
+	private long maxDisorder = 0;//in milliseconds
+	private long late = 0;
+	private long dropped = 0;
+	private long forced = 0;
+	private long releasedCount = 0;
+	private long totalHoldNanos = 0;
+	private long maxHoldNanos = 0;
+
+	/**
+	 * @param maxLateness How far behind the watermark an event may arrive, in milliseconds
+	 * @param capacity The most events held at once
+	 * @param latePolicy DROP or ADJUST, for events that arrive too late to be put in order
+	 */
+	public ReorderBuffer(long maxLateness, int capacity, int latePolicy){
+		if(maxLateness < 0 || capacity < 1){
+			throw new IllegalArgumentException("Lateness must not be negative and capacity must be positive");
+		}
+		if(latePolicy != DROP && latePolicy != ADJUST){
+			throw new IllegalArgumentException("Unknown late event policy: "+latePolicy);
+		}
+		this.maxLateness = maxLateness;
+		this.capacity = capacity;
+		this.latePolicy = latePolicy;
+	}
+
+	/**
+	 * Marks everything up to the given time as already applied, such as the end of the
+	 * batch phase. Later events older than this are late.
+	 * @param t A time in milliseconds
+	 */
+	public void advanceTo(long t){
+		if(t > released){
+			released = t;
+		}
+		if(t > watermark){
+			watermark = t;
+		}
+	}
+
+	/**
+	 * Takes an event, and adds every event that is now safe to release to the back of the
+	 * given list, in time order.
+	 * @param type The type of the event
+	 * @param t The time in milliseconds
+	 * @param id1 The first user ID
+	 * @param value The amount in cents or the second user ID
+	 * @param out A list of events to add to
+	 */
+	public void offer(byte type, long t, int id1, long value, EventBuffer out){
+		if(t < watermark){
+			outOfOrder++;
+			maxDisorder = Math.max(maxDisorder, watermark - t);
+		} else {
+			watermark = t;
+		}
+		if(t < released){
+			late++;
+			if(latePolicy == DROP){
+				dropped++;
+				return;
+			}
+			t = released;
+		}
+		push(type, t, id1, value);
+		if(size > capacity){
+			forced++;
+			poll(out);
+		}
+		release(out);
+	}
+
+	/**
+	 * Releases every event still held, in time order.
+	 * @param out A list of events to add to
+	 */
+	public void flush(EventBuffer out){
+		while(size > 0){
+			poll(out);
+		}
+	}
+
+	private void release(EventBuffer out){
+		long limit = watermark - maxLateness;
+		while(size > 0 && time[0] <= limit){
+			poll(out);
+		}
+	}
+
+	private void push(byte ty, long t, int a, long v){
+		if(size == type.length){
+			int length = size*2;
+			type = Arrays.copyOf(type, length);
+			time = Arrays.copyOf(time, length);
+			id1 = Arrays.copyOf(id1, length);
+			value = Arrays.copyOf(value, length);
+			arrival = Arrays.copyOf(arrival, length);
+			heldSince = Arrays.copyOf(heldSince, length);
+		}
+		long seq = arrivals++;
+		long now = System.nanoTime();
+		int i = size++;
+		while(i > 0){//move parents down into the hole until the new event fits
+			int parent = (i - 1) >>> 1;
+			if(!before(t, seq, parent)){
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		set(i, ty, t, a, v, seq, now);
+	}
+
+	private void poll(EventBuffer out){
+		out.add(type[0], time[0], id1[0], value[0]);
+		if(time[0] > released){
+			released = time[0];
+		}
+		long held = System.nanoTime() - heldSince[0];
+		releasedCount++;
+		totalHoldNanos += held;
+		maxHoldNanos = Math.max(maxHoldNanos, held);
+
+		int last = --size;
+		if(last == 0){
+			return;
+		}
+		//sift the last event down from the root
+		byte ty = type[last];
+		long t = time[last];
+		int a = id1[last];
+		long v = value[last];
+		long seq = arrival[last];
+		long since = heldSince[last];
+		int i = 0;
+		while(true){
+			int child = 2*i + 1;
+			if(child >= last){
+				break;
+			}
+			if(child + 1 < last && before(time[child + 1], arrival[child + 1], child)){
+				child++;
+			}
+			if(!before(time[child], arrival[child], t, seq)){
+				break;
+			}
+			move(child, i);
+			i = child;
+		}
+		set(i, ty, t, a, v, seq, since);
+	}
+
+	private boolean before(long t, long seq, int j){
+		return before(t, seq, time[j], arrival[j]);
+	}
+
+	private static boolean before(long t1, long seq1, long t2, long seq2){
+		return t1 < t2 || (t1 == t2 && seq1 < seq2);
+	}
+
+	private void move(int from, int to){
+		type[to] = type[from];
+		time[to] = time[from];
+		id1[to] = id1[from];
+		value[to] = value[from];
+		arrival[to] = arrival[from];
+		heldSince[to] = heldSince[from];
+	}
+
+	private void set(int i, byte ty, long t, int a, long v, long seq, long since){
+		type[i] = ty;
+		time[i] = t;
+		id1[i] = a;
+		value[i] = v;
+		arrival[i] = seq;
+		heldSince[i] = since;
+	}
+
+	/**
+	 * Gives the number of events held right now.
+	 * @return An integer
+	 */
+	public int getHeld(){
+		return size;
+	}
+
+	/**
+	 * Gives the number of events that arrived with a time before the watermark.
+	 * @return A long
+	 */
+	public long getOutOfOrder(){
+		return outOfOrder;
+	}
+
+	/**
+	 * Gives the furthest any event arrived behind the watermark, in milliseconds.
+	 * A lateness bound at least this large would have put every event in order.
+	 * @return A long
+	 */
+	public long getMaxDisorder(){
+		return maxDisorder;
+	}
+
+	/**
+	 * Gives the number of events that arrived after a later event was released.
+	 * @return A long
+	 */
+	public long getLate(){
+		return late;
+	}
+
+	/**
+	 * Gives the number of late events dropped (see DROP).
+	 * @return A long
+	 */
+	public long getDropped(){
+		return dropped;
+	}
+
+	/**
+	 * Gives the number of events released early because the buffer was full.
+	 * @return A long
+	 */
+	public long getForced(){
+		return forced;
+	}
+
+	/**
+	 * Gives the mean time an event was held before release, in nanoseconds.
+	 * @return A double
+	 */
+	public double getMeanHoldNanos(){
+		return releasedCount == 0 ? 0 : (double)totalHoldNanos/releasedCount;
+	}
+
+	/**
+	 * Gives the longest time an event was held before release, in nanoseconds.
+	 * @return A long
+	 */
+	public long getMaxHoldNanos(){
+		return maxHoldNanos;
+	}
+
+}
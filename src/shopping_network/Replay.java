@@ -0,0 +1,467 @@
+package shopping_network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a dataset through the detector from end to end and reports how long it took,
+ * as JSON, optionally failing if it is slower than a stored baseline.
+ *
+ * Each iteration runs the batch and stream phases on a fresh network, set up with the
+ * same options as Detector, and reads the logs from disk as Detector does; flags are
+ * counted rather than written. The first iterations warm up the JVM and are not reported.
+ * For each phase, the report gives:
+ *  - the wall time (the median over the reported iterations) and events per second;
+ *  - percentiles of the time taken by each event (p50, p99, p99.9 and the maximum), by
+ *    event type, from a Histogram of all reported iterations; with --bursts,
+ *    --coalesce-edges or --max-lateness, an event's time is that of the call that took
+ *    it, which may apply events held back earlier;
+ *  - bytes allocated, per event and per second (by this thread, which runs everything),
+ *    and the number and time of garbage collections.
+ * The number of flags and a hash of them are reported too, to show that every iteration
+ * did the same work.
+ *
+ * Metrics are written flat ("stream.purchase.p99Nanos": ...) so that a baseline, which is
+ * simply an earlier report, can be read back with a pattern (see readMetrics).
+ * @author Kevin
+ *
+ */
+public class Replay {
+
+	static final String[] TYPES = {"purchase", "befriend", "unfriend"};
+	static final int MIN_GATED_EVENTS = 1000;//fewer events of a type give percentiles too noisy to gate on
+
+	/**
+	 * The timings of one phase of one iteration.
+	 */
+	static final class Phase {
+		long wallNanos;
+		long events;
+		long allocatedBytes;
+		long gcCount;
+		long gcMillis;
+		final Histogram[] latency = {new Histogram(), new Histogram(), new Histogram()};//by Event type
+	}
+
+	private long flags;
+	private int flagHash;
+
+	/**
+	 * Usage:
+	 *   java shopping_network.Replay <dataset directory> [replay options] [Detector options]
+	 * Replay options:
+	 *   --warmup=<n>          iterations run first and not reported [2]
+	 *   --iterations=<n>      iterations reported [3]
+	 *   --generate=<k=v,...>  first write the dataset with WorkloadGenerator, with the given
+	 *                         options (such as users=1000000,graph=power-law)
+	 *   --json=<file>         write the report to a file rather than to standard output
+	 *   --baseline=<file>     compare with an earlier report, and exit with status 1 if any
+	 *                         gated metric is worse by more than the threshold
+	 *   --threshold=<percent> [10]
+	 * Any other options are given to Detector (see Detector.main).
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length < 1){
+			throw new IllegalArgumentException("Please give the dataset directory, followed by any options.");
+		}
+		File dataset = new File(args[0]);
+		int warmup = 2;
+		int iterations = 3;
+		String generate = null;
+		File json = null;
+		File baseline = null;
+		double threshold = 10;
+		List<String> detectorArgs = new ArrayList<String>();
+		for(int i = 1; i < args.length; i++){
+			if(args[i].startsWith("--warmup=")){
+				warmup = Integer.parseInt(args[i].substring("--warmup=".length()));
+			} else if(args[i].startsWith("--iterations=")){
+				iterations = Integer.parseInt(args[i].substring("--iterations=".length()));
+			} else if(args[i].startsWith("--generate=")){
+				generate = args[i].substring("--generate=".length());
+			} else if(args[i].startsWith("--json=")){
+				json = new File(args[i].substring("--json=".length()));
+			} else if(args[i].startsWith("--baseline=")){
+				baseline = new File(args[i].substring("--baseline=".length()));
+			} else if(args[i].startsWith("--threshold=")){
+				threshold = Double.parseDouble(args[i].substring("--threshold=".length()));
+			} else {
+				detectorArgs.add(args[i]);
+			}
+		}
+		if(warmup < 0 || iterations < 1){
+			throw new IllegalArgumentException("There must be at least one iteration, and no negative warm-up");
+		}
+		Detector.Options options = Detector.Options.parse(detectorArgs.toArray(new String[0]), 0);
+
+		if(generate != null){
+			WorkloadGenerator g = new WorkloadGenerator();
+			for(String setting : generate.split(",")){
+				if(!setting.isEmpty()){
+					g.set("--"+setting);
+				}
+			}
+			dataset.mkdirs();
+			g.write(dataset);
+		}
+		String batchPath = dataset + File.separator + "batch_log.json";
+		String streamPath = dataset + File.separator + "stream_log.json";
+
+		Replay replay = new Replay();
+		Phase[][] results = new Phase[iterations][];
+		for(int i = 0; i < warmup + iterations; i++){
+			Phase[] phases = replay.run(options, batchPath, streamPath);
+			if(i >= warmup){
+				results[i - warmup] = phases;
+			}
+			System.err.printf("%s %d: batch %.1f ms, stream %.1f ms, %d flags%n", i < warmup ? "Warm-up" : "Iteration",
+					i < warmup ? i + 1 : i - warmup + 1, phases[0].wallNanos/1e6, phases[1].wallNanos/1e6, replay.flags);
+		}
+
+		Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+		StringBuilder report = new StringBuilder();
+		report.append("{\n");
+		report.append("  \"dataset\": \"").append(escape(dataset.getPath())).append("\",\n");
+		report.append("  \"generate\": ").append(generate == null ? "null" : "\""+escape(generate)+"\"").append(",\n");
+		report.append("  \"options\": \"").append(escape(String.join(" ", detectorArgs))).append("\",\n");
+		report.append("  \"warmup\": ").append(warmup).append(",\n");
+		report.append("  \"iterations\": ").append(iterations).append(",\n");
+		report.append("  \"flags\": ").append(replay.flags).append(",\n");
+		report.append("  \"flagHash\": ").append(replay.flagHash).append(",\n");
+		report.append("  \"wallMillis\": {");
+		String[] names = {"batch", "stream"};
+		for(int p = 0; p < 2; p++){
+			report.append(p == 0 ? "" : ", ").append('"').append(names[p]).append("\": [");
+			for(int i = 0; i < iterations; i++){
+				report.append(i == 0 ? "" : ", ").append(format(results[i][p].wallNanos/1e6));
+			}
+			report.append(']');
+			summarize(names[p], results, p, metrics);
+		}
+		report.append("},\n");
+		report.append("  \"metrics\": {\n");
+		int m = 0;
+		for(Map.Entry<String, Double> e : metrics.entrySet()){
+			report.append("    \"").append(e.getKey()).append("\": ").append(format(e.getValue()));
+			report.append(++m == metrics.size() ? "\n" : ",\n");
+		}
+		report.append("  }\n");
+		report.append("}\n");
+
+		if(json != null){
+			try(Writer w = new FileWriter(json)){
+				w.write(report.toString());
+			}
+		} else {
+			System.out.print(report);
+		}
+
+		if(baseline != null){
+			List<String> regressions = compare(readMetrics(baseline), metrics, threshold);
+			for(String r : regressions){
+				System.err.println("Regression: "+r);
+			}
+			if(!regressions.isEmpty()){
+				System.exit(1);
+			}
+			System.err.println("No regressions beyond "+threshold+"% of "+baseline);
+		}
+	}
+
+	/**
+	 * Runs the batch and stream phases once, on a fresh network.
+	 * @param options The options for the network
+	 * @param batchPath The file path for the batch log
+	 * @param streamPath The file path for the stream log
+	 * @return The timings of the batch phase and of the stream phase
+	 * @throws IOException
+	 */
+	Phase[] run(Detector.Options options, String batchPath, String streamPath) throws IOException{
+		flags = 0;
+		flagHash = 0;
+		Phase batch = new Phase();
+		Phase stream = new Phase();
+		Network n = options.newNetwork();
+		try {
+			start(batch);
+			try(BufferedReader br = new BufferedReader(new FileReader(batchPath))){
+				String line = br.readLine();
+				if(line != null){
+					Event.setParameters(line);
+					while((line = br.readLine()) != null){
+						long t = System.nanoTime();
+						Event.parseEvent(n, line, false);
+						record(batch, line, System.nanoTime() - t);
+					}
+				}
+			}
+			n.startStreaming();
+			stop(batch);
+
+			start(stream);
+			try(BufferedReader br = new BufferedReader(new FileReader(streamPath))){
+				streamPhase(n, options, br, stream);
+			}
+			stop(stream);
+		} finally {
+			n.close();
+		}
+		return new Phase[]{batch, stream};
+	}
+
+	/**
+	 * The stream phase of Detector.networkUpdates, timing each event.
+	 */
+	private void streamPhase(Network n, Detector.Options options, BufferedReader br, Phase stream) throws IOException{
+		ReorderBuffer reorder = options.newReorderBuffer();
+		Burst burst = options.runs == Detector.NO_RUNS ? null : new Burst(n, options.runs == Detector.ALL_RUNS);
+		ArrayList<String> out = new ArrayList<String>();
+		String line;
+		if(reorder != null){
+			reorder.advanceTo(n.now());
+			EventBuffer incoming = new EventBuffer(1);
+			EventBuffer ready = new EventBuffer();
+			while((line = br.readLine()) != null){
+				long t = System.nanoTime();
+				incoming.clear();
+				if(Event.parseEvent(line, incoming)){
+					reorder.offer(incoming.type[0], incoming.time[0], incoming.id1[0], incoming.value[0], ready);
+					for(int i = 0; i < ready.size; i++){
+						if(burst != null){
+							burst.offer(ready.type[i], ready.time[i], ready.id1[i], ready.value[i], out);
+						} else {
+							count(ready.apply(n, i, true));
+						}
+					}
+					ready.clear();
+				}
+				record(stream, line, System.nanoTime() - t);
+				countAll(out);
+			}
+			reorder.flush(ready);
+			for(int i = 0; i < ready.size; i++){
+				if(burst != null){
+					burst.offer(ready.type[i], ready.time[i], ready.id1[i], ready.value[i], out);
+				} else {
+					count(ready.apply(n, i, true));
+				}
+			}
+			if(burst != null){
+				burst.flush(out);
+			}
+			countAll(out);
+		} else if(burst != null){
+			while((line = br.readLine()) != null){
+				long t = System.nanoTime();
+				burst.offer(line, out);
+				record(stream, line, System.nanoTime() - t);
+				countAll(out);
+			}
+			burst.flush(out);
+			countAll(out);
+		} else {
+			while((line = br.readLine()) != null){
+				long t = System.nanoTime();
+				String s = Event.parseEvent(n, line, true);
+				record(stream, line, System.nanoTime() - t);
+				count(s);
+			}
+		}
+	}
+
+	private void count(String flag){
+		if(flag != null){
+			flags++;
+			flagHash = 31*flagHash + flag.hashCode();
+		}
+	}
+
+	private void countAll(ArrayList<String> out){
+		for(int i = 0; i < out.size(); i++){
+			count(out.get(i));
+		}
+		out.clear();
+	}
+
+	/**
+	 * Records the time taken by the event on a line, by its type: the character after
+	 * {"event_type":" tells the three apart.
+	 */
+	private static void record(Phase phase, String line, long nanos){
+		if(line.length() < 16){
+			return;
+		}
+		char c = line.charAt(15);
+		int type = c == 'p' ? Event.PURCHASE : c == 'b' ? Event.BEFRIEND : Event.UNFRIEND;
+		phase.latency[type].record(nanos);
+		phase.events++;
+	}
+
+	private static void start(Phase phase){
+		phase.allocatedBytes = -allocatedBytes();
+		phase.gcCount = -gcCount();
+		phase.gcMillis = -gcMillis();
+		phase.wallNanos = -System.nanoTime();
+	}
+
+	private static void stop(Phase phase){
+		phase.wallNanos += System.nanoTime();
+		phase.allocatedBytes += allocatedBytes();
+		phase.gcCount += gcCount();
+		phase.gcMillis += gcMillis();
+	}
+
+	private static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean)bean).getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+
+	private static long gcCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis(){
+		long millis = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * Works out the metrics of one phase over the reported iterations.
+	 */
+	private static void summarize(String name, Phase[][] results, int p, Map<String, Double> metrics){
+		int iterations = results.length;
+		long[] wall = new long[iterations];
+		long events = 0;
+		long allocated = 0;
+		long gcCount = 0;
+		long gcMillis = 0;
+		long totalWall = 0;
+		Histogram[] latency = {new Histogram(), new Histogram(), new Histogram()};
+		for(int i = 0; i < iterations; i++){
+			Phase phase = results[i][p];
+			wall[i] = phase.wallNanos;
+			totalWall += phase.wallNanos;
+			events = phase.events;
+			allocated += phase.allocatedBytes;
+			gcCount += phase.gcCount;
+			gcMillis += phase.gcMillis;
+			for(int t = 0; t < TYPES.length; t++){
+				latency[t].add(phase.latency[t]);
+			}
+		}
+		Arrays.sort(wall);
+		double median = iterations % 2 == 1 ? wall[iterations/2] : (wall[iterations/2 - 1] + wall[iterations/2])/2.0;
+		metrics.put(name+".wallMillis", median/1e6);
+		metrics.put(name+".events", (double)events);
+		metrics.put(name+".eventsPerSecond", median == 0 ? 0 : events/(median/1e9));
+		metrics.put(name+".allocatedBytesPerEvent", events == 0 ? 0 : (double)allocated/(events*iterations));
+		metrics.put(name+".allocationMBPerSecond", totalWall == 0 ? 0 : allocated/1e6/(totalWall/1e9));
+		metrics.put(name+".gcCount", (double)gcCount/iterations);
+		metrics.put(name+".gcMillis", (double)gcMillis/iterations);
+		for(int t = 0; t < TYPES.length; t++){
+			String prefix = name+"."+TYPES[t];
+			metrics.put(prefix+".count", (double)latency[t].getCount()/iterations);
+			metrics.put(prefix+".meanNanos", latency[t].getMean());
+			metrics.put(prefix+".p50Nanos", (double)latency[t].percentile(50));
+			metrics.put(prefix+".p99Nanos", (double)latency[t].percentile(99));
+			metrics.put(prefix+".p999Nanos", (double)latency[t].percentile(99.9));
+			metrics.put(prefix+".maxNanos", (double)latency[t].getMax());
+		}
+	}
+
+	/**
+	 * Compares metrics with a baseline. The gated metrics are each phase's wall time,
+	 * events per second and bytes allocated per event, and the p50 and p99 of each event
+	 * type with at least MIN_GATED_EVENTS events. The tail beyond p99 and GC counts vary
+	 * too much from run to run to gate on.
+	 * @param baseline The metrics of the baseline
+	 * @param metrics The metrics of this run
+	 * @param threshold How much worse a metric may be, in percent
+	 * @return A description of each regression
+	 */
+	static List<String> compare(Map<String, Double> baseline, Map<String, Double> metrics, double threshold){
+		List<String> regressions = new ArrayList<String>();
+		for(String phase : new String[]{"batch", "stream"}){
+			check(regressions, baseline, metrics, phase+".wallMillis", false, threshold);
+			check(regressions, baseline, metrics, phase+".eventsPerSecond", true, threshold);
+			check(regressions, baseline, metrics, phase+".allocatedBytesPerEvent", false, threshold);
+			for(String type : TYPES){
+				Double count = baseline.get(phase+"."+type+".count");
+				if(count != null && count >= MIN_GATED_EVENTS){
+					check(regressions, baseline, metrics, phase+"."+type+".p50Nanos", false, threshold);
+					check(regressions, baseline, metrics, phase+"."+type+".p99Nanos", false, threshold);
+				}
+			}
+		}
+		return regressions;
+	}
+
+	private static void check(List<String> regressions, Map<String, Double> baseline, Map<String, Double> metrics,
+			String name, boolean higherIsBetter, double threshold){
+		Double before = baseline.get(name);
+		Double after = metrics.get(name);
+		if(before == null || after == null || before <= 0){
+			return;
+		}
+		double change = (after - before)/before*100;
+		if(higherIsBetter ? change < -threshold : change > threshold){
+			regressions.add(String.format(Locale.ROOT, "%s went from %s to %s (%+.1f%%)", name, format(before), format(after), change));
+		}
+	}
+
+	private static final Pattern METRIC = Pattern.compile("\"((?:batch|stream)\\.[A-Za-z0-9.]+)\":\\s*(-?[0-9.Ee+-]+)");
+
+	/**
+	 * Reads the metrics of a report written by main.
+	 * @param report A report file
+	 * @return The metrics, by name
+	 * @throws IOException
+	 */
+	static Map<String, Double> readMetrics(File report) throws IOException{
+		Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+		Matcher m = METRIC.matcher(new String(Files.readAllBytes(report.toPath()), "UTF-8"));
+		while(m.find()){
+			metrics.put(m.group(1), Double.parseDouble(m.group(2)));
+		}
+		return metrics;
+	}
+
+	private static String format(double v){
+		if(v == Math.rint(v) && Math.abs(v) < 1e15){
+			return Long.toString((long)v);
+		}
+		return String.format(Locale.ROOT, "%.3f", v);
+	}
+
+	private static String escape(String s){
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,40 @@
+package shopping_network;
+
+/**
+ * Stores fixed-size purchase rings for a Network. Entries are addressed by a single
+ * long index; the network gives ring slot s the indices s*T through s*T + T - 1 and
+ * keeps track of where each ring starts and how full it is.
+ * 
+ * Each entry holds a purchase's order key and its price in cents. Rings created with
+ * users also hold the ID of the purchaser (this is used for social network histories).
+ * @author Kevin
+ *
+ */
+public abstract class Rings {
+	
+	protected final boolean withUsers;
+	
+	protected Rings(boolean withUsers){
+		this.withUsers = withUsers;
+	}
+	
+	/**
+	 * Makes room for entries with indices below the given number.
+	 * @param entries A long
+	 */
+	public abstract void ensure(long entries);
+	
+	public abstract long key(long i);
+	public abstract long price(long i);
+	public abstract int user(long i);
+	
+	/**
+	 * Writes an entry.
+	 * @param i An index
+	 * @param key The order key of the purchase
+	 * @param price The price in cents
+	 * @param user The purchaser; ignored unless the rings were created with users
+	 */
+	public abstract void set(long i, long key, long price, int user);
+	
+}
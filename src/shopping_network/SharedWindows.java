@@ -0,0 +1,446 @@
+package shopping_network;
+
+import java.util.Arrays;
+
+/**
+ * Social network windows shared between users whose social networks are identical.
+ *
+ * In a tightly knit group, many users have exactly the same social network (counting
+ * themselves). Each of them would otherwise keep their own window, receive the same
+ * pushes, and do their own rebuilds. Instead, such users read from one shared window:
+ * the latest purchases made by anyone in the social network, the group's own users
+ * included. A user's own window is the latest T purchases in it that are not their own,
+ * so each read subtracts the user's own purchases from the shared one.
+ *
+ * A shared window holds up to 2T purchases, so that a user's window can be found in it
+ * as long as they made no more than T of the purchases it spans. Each entry also keeps
+ * the running sum and sum of squares up to and including itself, so the sums over a
+ * user's window are the difference of two running sums, less the user's own purchases
+ * in that span. These are found by looking up the keys of the user's personal history
+ * (the window is in key order), latest first, so a read costs a binary search for each
+ * of the user's own purchases in the window rather than a pass over the window.
+ *
+ * A window is only ever read by users who are not flagged: a user who is flagged leaves
+ * the window at once (see Network.flagSN), and a window with no users is freed. So every
+ * user of a window has the same, up-to-date social network, and a purchase by anyone in
+ * it reaches the window through a push to any of its users.
+ *
+ * Windows are kept on the heap, in slabs carved into rings of 2T (as in Network).
+ *
+ * What sharing saves is the pushes and the rebuilds; memory only drops for large groups.
+ * An entry here takes 44 bytes (the key, the price, the buyer, and the running sum and
+ * 128-bit sum of squares), so a window of 2T entries takes about 88T bytes, where each
+ * private window it replaces took 20T (the key, the price and the buyer). A window for two users costs more than their two private windows did, and a
+ * window saves memory only once five or more users read from it.
+ * @author Kevin
+ *
+ */
+class SharedWindows {
+
+	private final int T;
+	private final int R;//ring size, 2T
+
+	//per window
+	private int numWindows = 0;
+	private int[] users = new int[0];//the number of users reading from the window
+	private long[] hash = new long[0];
+	private int[][] ball = new int[0][];//the social network, sorted
+	private int[] head = new int[0];
+	private int[] count = new int[0];
+	private boolean[] truncated = new boolean[0];//true if older purchases were left out or dropped
+	private long[] baseSum = new long[0];//the running sums before the oldest entry
+	private long[] baseSquareSumHi = new long[0];
+	private long[] baseSquareSumLo = new long[0];
+	private int[] lastFanOut = new int[0];
+	private int[] freeWindows = new int[16];
+	private int freeCount = 0;
+	private final LongIntMap byHash = new LongIntMap();
+
+	//per entry, window g at g*R through g*R + R - 1
+	private long[] keys = new long[0];
+	private long[] prices = new long[0];
+	private int[] buyers = new int[0];
+	private long[] sums = new long[0];//running sums, up to and including the entry
+	private long[] squareSumsHi = new long[0];
+	private long[] squareSumsLo = new long[0];
+
+	private int fanOut = 0;
+
+	/**
+	 * @param T The number of purchases in a window
+	 */
+	SharedWindows(int T){
+		this.T = T;
+		this.R = 2*T;
+	}
+
+	/**
+	 * A hash of a user ID. The hash of a social network is the sum of the hashes of its
+	 * users, so it does not depend on the order of a crawl.
+	 * @param u A user ID
+	 * @return A long
+	 */
+	static long hash(int u){
+		long z = (u + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Finds the window for a social network with the given hash.
+	 * @param h A hash (see hash)
+	 * @return A window, or -1
+	 */
+	int find(long h){
+		return byHash.get(h);
+	}
+
+	/**
+	 * Checks a window's social network against the given one.
+	 * @param g A window
+	 * @param sortedBall A social network, sorted, its user included
+	 * @param size The size of the social network
+	 * @return True if they are the same
+	 */
+	boolean matches(int g, int[] sortedBall, int size){
+		int[] b = ball[g];
+		if(b.length != size){
+			return false;
+		}
+		for(int i = 0; i < size; i++){
+			if(b[i] != sortedBall[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a window for the given social network, filled from the personal histories
+	 * of everyone in it. The window starts with no users (see join).
+	 * @param n The network
+	 * @param h The hash of the social network
+	 * @param sortedBall The social network, sorted
+	 * @param size The size of the social network
+	 * @return The new window
+	 */
+	int create(Network n, long h, int[] sortedBall, int size){
+		int g;
+		if(freeCount > 0){
+			g = freeWindows[--freeCount];
+		} else {
+			g = numWindows++;
+			if(g == users.length){
+				grow(Math.max(4, g*2));
+			}
+		}
+		hash[g] = h;
+		ball[g] = Arrays.copyOf(sortedBall, size);
+		users[g] = 0;
+		lastFanOut[g] = fanOut;
+		byHash.put(h, g);
+
+		int m = n.mergeLatest(sortedBall, 0, size, R, Long.MAX_VALUE);
+		long base = (long)g*R;
+		long sum = 0;
+		long sqHi = 0;
+		long sqLo = 0;
+		for(int i = 0; i < m; i++){
+			int pos = (int)(base + i);
+			long price = n.mergedPrice[m - 1 - i];//merged latest first
+			keys[pos] = n.mergedKey[m - 1 - i];
+			prices[pos] = price;
+			buyers[pos] = n.mergedUser[m - 1 - i];
+			sum += price;
+			sqHi = Cents.addSquareHi(sqHi, sqLo, price);
+			sqLo = Cents.addSquareLo(sqLo, price);
+			sums[pos] = sum;
+			squareSumsHi[pos] = sqHi;
+			squareSumsLo[pos] = sqLo;
+		}
+		head[g] = 0;
+		count[g] = m;
+		truncated[g] = m == R;
+		baseSum[g] = 0;
+		baseSquareSumHi[g] = 0;
+		baseSquareSumLo[g] = 0;
+		return g;
+	}
+
+	private void grow(int windows){
+		users = Arrays.copyOf(users, windows);
+		hash = Arrays.copyOf(hash, windows);
+		ball = Arrays.copyOf(ball, windows);
+		head = Arrays.copyOf(head, windows);
+		count = Arrays.copyOf(count, windows);
+		truncated = Arrays.copyOf(truncated, windows);
+		baseSum = Arrays.copyOf(baseSum, windows);
+		baseSquareSumHi = Arrays.copyOf(baseSquareSumHi, windows);
+		baseSquareSumLo = Arrays.copyOf(baseSquareSumLo, windows);
+		lastFanOut = Arrays.copyOf(lastFanOut, windows);
+		int entries = Math.multiplyExact(windows, R);
+		keys = Arrays.copyOf(keys, entries);
+		prices = Arrays.copyOf(prices, entries);
+		buyers = Arrays.copyOf(buyers, entries);
+		sums = Arrays.copyOf(sums, entries);
+		squareSumsHi = Arrays.copyOf(squareSumsHi, entries);
+		squareSumsLo = Arrays.copyOf(squareSumsLo, entries);
+	}
+
+	void join(int g){
+		users[g]++;
+	}
+
+	/**
+	 * Removes a user from a window. A window with no users left is freed.
+	 * @param g A window
+	 */
+	void leave(int g){
+		if(--users[g] > 0){
+			return;
+		}
+		if(byHash.get(hash[g]) == g){
+			byHash.remove(hash[g]);
+		}
+		ball[g] = null;
+		if(freeCount == freeWindows.length){
+			freeWindows = Arrays.copyOf(freeWindows, freeCount*2);
+		}
+		freeWindows[freeCount++] = g;
+	}
+
+	/**
+	 * Starts pushing a new purchase. Each window takes the purchase at most once until
+	 * the next call, however many of its users are in the buyer's social network.
+	 */
+	void beginFanOut(){
+		fanOut++;
+	}
+
+	/**
+	 * Adds a purchase to the back of a window, dropping the oldest entry if it is full.
+	 * @param g A window
+	 * @param key The order key of the purchase
+	 * @param price The price in cents
+	 * @param buyer The ID of the user who made the purchase
+	 */
+	void push(int g, long key, long price, int buyer){
+		if(lastFanOut[g] == fanOut){
+			return;
+		}
+		lastFanOut[g] = fanOut;
+		long base = (long)g*R;
+		int c = count[g];
+		if(c == R){
+			int oldest = (int)(base + head[g]);
+			baseSum[g] = sums[oldest];
+			baseSquareSumHi[g] = squareSumsHi[oldest];
+			baseSquareSumLo[g] = squareSumsLo[oldest];
+			head[g] = head[g] + 1 == R ? 0 : head[g] + 1;
+			truncated[g] = true;
+			c--;
+		}
+		long sum;
+		long sqHi;
+		long sqLo;
+		if(c == 0){
+			sum = baseSum[g];
+			sqHi = baseSquareSumHi[g];
+			sqLo = baseSquareSumLo[g];
+		} else {
+			int last = index(g, c - 1);
+			sum = sums[last];
+			sqHi = squareSumsHi[last];
+			sqLo = squareSumsLo[last];
+		}
+		int pos = index(g, c);
+		keys[pos] = key;
+		prices[pos] = price;
+		buyers[pos] = buyer;
+		sums[pos] = sum + price;
+		squareSumsHi[pos] = Cents.addSquareHi(sqHi, sqLo, price);
+		squareSumsLo[pos] = Cents.addSquareLo(sqLo, price);
+		count[g] = c + 1;
+	}
+
+	/**
+	 * The index in the slabs of the i-th oldest entry of a window.
+	 */
+	private int index(int g, int i){
+		int pos = head[g] + i;
+		if(pos >= R){
+			pos -= R;
+		}
+		return g*R + pos;
+	}
+
+	/**
+	 * Finds the entry of a window with the given key.
+	 * @return Its position, counted from the oldest, or -1
+	 */
+	private int position(int g, long key){
+		int lo = 0;
+		int hi = count[g] - 1;
+		while(lo <= hi){
+			int mid = (lo + hi) >>> 1;
+			long k = keys[index(g, mid)];
+			if(k < key){
+				lo = mid + 1;
+			} else if(k > key){
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the number of entries of a window with keys below the given one.
+	 */
+	private int lowerBound(int g, long key){
+		int lo = 0;
+		int hi = count[g];
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(keys[index(g, mid)] < key){
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Finds where a user's window starts within a shared window: the position such that
+	 * from there to the end there are T purchases not made by the user (or as many as
+	 * there are). The user's own purchases in that span are totalled into the out array.
+	 * With a time window (see Network.windowCutoff), the span starts no earlier than the
+	 * first entry in the time window. If an entry before the cutoff is still held, no
+	 * entry after it can have been dropped, so the window reaches back far enough.
+	 * @param n The network
+	 * @param g A window
+	 * @param u A user of the window
+	 * @param own An array of length 4, set to the number, sum and 128-bit sum of squares
+	 *            of the user's purchases in the span
+	 * @return The position, counted from the oldest, or -1 if the window does not reach back far enough
+	 */
+	private int start(Network n, int g, int u, long[] own){
+		int end = count[g];
+		long cutoff = n.windowCutoff();
+		int lower = cutoff == Long.MIN_VALUE ? 0 : lowerBound(g, cutoff);
+		int mine = 0;
+		long sum = 0;
+		long sqHi = 0;
+		long sqLo = 0;
+		int k;
+		for(k = n.histCount[u] - 1; k >= 0; k--){
+			int pos = position(g, n.histKeyAt(u, k));
+			if(pos < 0 || pos < end - T - mine || pos < lower){
+				break;
+			}
+			long price = n.histPriceAt(u, k);
+			mine++;
+			sum += price;
+			sqHi = Cents.addSquareHi(sqHi, sqLo, price);
+			sqLo = Cents.addSquareLo(sqLo, price);
+		}
+		own[0] = mine;
+		own[1] = sum;
+		own[2] = sqHi;
+		own[3] = sqLo;
+		if(k < 0 && mine == T){
+			return -1;//the span may hold purchases of the user's that have left their personal history
+		}
+		int start = Math.max(end - T - mine, lower);
+		if(start < 0){
+			if(truncated[g]){
+				return -1;
+			}
+			start = 0;
+		}
+		return start;
+	}
+
+	private final long[] own = new long[4];
+
+	/**
+	 * Works out the sums of a user's window from a shared window, and stores them in
+	 * the user's columns of the network (snCount, snSum and the sum of squares).
+	 * @param n The network
+	 * @param g A window
+	 * @param u A user of the window
+	 * @return False if the shared window does not reach back far enough for this user
+	 */
+	boolean window(Network n, int g, int u){
+		int start = start(n, g, u, own);
+		if(start < 0){
+			return false;
+		}
+		int end = count[g];
+		long sum;
+		long sqHi;
+		long sqLo;
+		if(start == 0){
+			sum = baseSum[g];
+			sqHi = baseSquareSumHi[g];
+			sqLo = baseSquareSumLo[g];
+		} else {
+			int before = index(g, start - 1);
+			sum = sums[before];
+			sqHi = squareSumsHi[before];
+			sqLo = squareSumsLo[before];
+		}
+		if(end == start){
+			n.snCount[u] = 0;
+			n.snSum[u] = 0;
+			n.snSquareSumHi[u] = 0;
+			n.snSquareSumLo[u] = 0;
+			return true;
+		}
+		int last = index(g, end - 1);
+		//(running sums at the end) - (running sums before the start) - (the user's own)
+		long lo = squareSumsLo[last] - sqLo;
+		long hi = squareSumsHi[last] - sqHi - (Long.compareUnsigned(squareSumsLo[last], sqLo) < 0 ? 1 : 0);
+		long ownHi = own[2];
+		long ownLo = own[3];
+		hi = hi - ownHi - (Long.compareUnsigned(lo, ownLo) < 0 ? 1 : 0);
+		lo = lo - ownLo;
+		n.snCount[u] = end - start - (int)own[0];
+		n.snSum[u] = sums[last] - sum - own[1];
+		n.snSquareSumHi[u] = hi;
+		n.snSquareSumLo[u] = lo;
+		return true;
+	}
+
+	/**
+	 * Lists a user's window, earliest first, as parallel arrays.
+	 * @param n The network
+	 * @param g A window
+	 * @param u A user of the window
+	 * @param outKeys An array of length at least T
+	 * @param outPrices An array of length at least T
+	 * @param outBuyers An array of length at least T
+	 * @return The number of purchases, or -1 if the shared window does not reach back far enough
+	 */
+	int list(Network n, int g, int u, long[] outKeys, long[] outPrices, int[] outBuyers){
+		int start = start(n, g, u, new long[4]);
+		if(start < 0){
+			return -1;
+		}
+		int m = 0;
+		for(int i = start; i < count[g]; i++){
+			int pos = index(g, i);
+			if(buyers[pos] != u){
+				outKeys[m] = keys[pos];
+				outPrices[m] = prices[pos];
+				outBuyers[m] = buyers[pos];
+				m++;
+			}
+		}
+		return m;
+	}
+
+}
@@ -11,7 +11,6 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,6 +51,8 @@ public class Testing {
 	 * Other observations: There are exactly 10000 users with IDs 0 through 9999.
 	 * Based on the total number of edges, each user has about 10 friends.
 	 * 
+	 * See Profiler for a fuller profile of a dataset of any size.
+	 * 
 	 * @param filePath A String.
 	 * @throws IOException
 	 */
@@ -136,6 +137,7 @@ public class Testing {
 	 * Generates a sample network for further analysis.
 	 * 
 	 * Observations: All 10000 users are active.
+	 * This assumes IDs below 10000; Profiler counts users of any ID.
 	 * 
 	 * @param filePath
 	 * @throws IOException
@@ -269,6 +271,7 @@ public class Testing {
 			}
 		}
 		br.close();
+		n.startStreaming();
 		
 		if(displayStats > 0){
 			System.out.println("Now running stream...");
@@ -304,7 +307,7 @@ public class Testing {
 		LinkedList<Purchase> purchases = u.getPurchases();
 		System.out.print("Purchases: ");
 		for(Purchase p : purchases){
-			System.out.print(p.getPrice()+", ");
+			System.out.print(Cents.format(p.getPrice())+", ");
 		}
 		System.out.println();
 	}
@@ -353,10 +356,9 @@ public class Testing {
 	
 	public static void sortingTest(int numElements){
 		ArrayList<Purchase> testPur = new ArrayList<Purchase>();
-		ArrayList<ListIterator<Purchase>> testAlip = new ArrayList<ListIterator<Purchase>>();
 		
 		Timestamp t1 = new Timestamp(0);
-		Timestamp t2 = new Timestamp(numElements);
+		Timestamp t2 = new Timestamp(numElements*1000);
 		
 		//ArrayList<Integer> permutation = new ArrayList<Integer>();
 		for(int i = 0; i < numElements; i++){
@@ -364,29 +366,29 @@ public class Testing {
 			testPur.add(p);
 		}
 		Collections.shuffle(testPur);
+		long[] keys = new long[numElements];
+		int[] users = new int[numElements];
+		int[] indices = new int[numElements];//parallel to keys; checks that the arrays move together
 		for(int i = 0; i < numElements; i++){
-			ArrayList<Purchase> temp = new ArrayList<Purchase>();
 			Purchase p = testPur.get(i);
-			temp.add(p);
-			ListIterator<Purchase> lTemp = temp.listIterator(1);
-			testAlip.add(lTemp);
+			keys[i] = p.getOrderKey();
+			indices[i] = p.getPurchaseNum();
 			
 			long l = p.getPurchaseNum() + p.getTimestamp().getTime();
 			System.out.print(l + " ");
 		}
 		System.out.println("sorting...");
-		User.quickSort(testPur, testAlip, 0, numElements-1);
+		Network.quickSort(keys, users, indices, 0, numElements-1);
 		
 		for(int i = 0; i < numElements; i++){
-			Purchase p = testPur.get(i);
-			long l = p.getPurchaseNum() + p.getTimestamp().getTime();
+			long l = Purchase.keyPurchaseNum(keys[i]) + Purchase.keyTime(keys[i]);
 			System.out.print(l + " ");
 		}
-		System.out.println("now checking list iterators...");
+		System.out.println("now checking parallel arrays...");
 		for(int i = 0; i < numElements; i++){
-			Purchase p = testAlip.get(i).previous();
-			long l = p.getPurchaseNum() + p.getTimestamp().getTime();
-			System.out.print(l + " ");
+			if(indices[i] != Purchase.keyPurchaseNum(keys[i])){
+				System.out.print("mismatch at "+i+" ");
+			}
 		}
 		
 		
@@ -2,25 +2,31 @@ package shopping_network;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 /**
- * This object stores information about a user. Particularly, it stores their ID,
- * a list of friends, a list of their recent purchases, and a list of recent purchases
- * of users within their social network.
+ * A view of a single user in a Network. Particularly, it gives their ID,
+ * a list of friends, a list of their recent purchases, and the state of the list
+ * of recent purchases of users within their social network.
+ * 
+ * The user's state is stored in the Network's arrays, not in this object, so a User
+ * is cheap to create and two Users with the same ID and network are interchangeable.
+ * The event path works on user IDs directly and never creates Users; the methods that
+ * return lists here build them on each call and are meant for testing.
  * @author Kevin
  *
  */
 public class User {
 	
-	private int id;
-	private ArrayList<User> friends = new ArrayList<User>();
+	private final Network network;
+	private final int id;
 	
 	/**
-	 * Constructs a user with the given ID.
+	 * Constructs a view of the user with the given ID.
+	 * @param network The network storing the user.
 	 * @param id A non-negative integer.
 	 */
-	public User(int id){
+	public User(Network network, int id){
+		this.network = network;
 		this.id = id;
 	}
 	
@@ -40,18 +46,7 @@ public class User {
 	 * @param u Another user.
 	 */
 	public void addFriend(User u, boolean streaming){
-		for(User v : friends){
-			if(u == v){
-				return;
-			}
-		}
-		if(streaming){
-			ArrayList<User> sn = socialNetwork(Event.D - 1);
-			for(User w : sn){
-				w.flagSN();//flags sufficiently close users that there is a change in their social network
-			}
-		}
-		friends.add(u);
+		network.addFriend(id, u.id, streaming);
 	}
 	
 	/**
@@ -61,58 +56,22 @@ public class User {
 	 * @param u Another user.
 	 */
 	public void removeFriend(User u, boolean streaming){
-		for(int i = 0; i < friends.size(); i++){
-			if(friends.get(i) == u){
-				friends.remove(i);
-				
-				if(streaming){
-					ArrayList<User> sn = socialNetwork(Event.D - 1);
-					for(User w : sn){
-						w.flagSN();
-					}
-				}
-				return;
-			}
-		}
+		network.removeFriend(id, u.id, streaming);
 	}
 	/**
 	 * Gets a list of the user's friends.
 	 * @return An ArrayList of Users.
 	 */
 	protected ArrayList<User> getFriends(){
+		ArrayList<User> friends = new ArrayList<User>();
+		for(int i = 0; i < network.friends.degree(id); i++){
+			friends.add(new User(network, network.friends.neighbor(id, i)));
+		}
 		return friends;
 	}
 	
-
-	private int crawlDegree = -1;//used in a s.n. crawl, then reset back to -1
-	/**
-	 * Gets the crawlDegree variable, which is used in a social network crawl.
-	 * So, in a degree 3 search, the originating user is assigned
-	 * crawl degree 3, their friends are assigned 2, friends of friends are assigned 1,
-	 * and friends of friends of friends are assigned 0.
-	 * @return An integer.
-	 */
-	private int getCrawlDegree(){
-		return crawlDegree;
-	}
-	/**
-	 * Sets the crawlDegree variable, for use in a social network crawl. 
-	 * @param degree
-	 */
-	private void setCrawlDegree(int degree){
-		crawlDegree = degree;
-	}
-	
 	/**
-	 * Generates a user's social network for a given degree.
-	 * The crawl iterates on a list of users, each with an assigned degree.
-	 * It begins with the list consisting of the original user; the input is their
-	 * assigned degree. At each iteration, friends of the current user are added to
-	 * the back of the list with degree one less than the current user. Friends already
-	 * on the list will have already been assigned a degree and will be ignored. The
-	 * iterations continue until they reach the end of the list or they arrive at a user
-	 * with degree 0 (all later users on the list will also have degree 0).
-	 * 
+	 * Generates a user's social network for a given degree; see Network.socialNetwork.
 	 * This social network includes the original user as the first element. To use the
 	 * social network without the original user, remove index 0 or otherwise ignore it.
 	 * 
@@ -120,31 +79,14 @@ public class User {
 	 * @return An ArrayList of Users.
 	 */
 	public ArrayList<User> socialNetwork(int degree){
-		crawlDegree = degree;
-		ArrayList<User> sn = new ArrayList<User>();
-		sn.add(this);
-		int i = 0;
-		while(i < sn.size()){
-			if(sn.get(i).getCrawlDegree() == 0){
-				break;
-			}
-			for(User u : sn.get(i).friends){
-				if(u.getCrawlDegree() == -1){
-					u.setCrawlDegree(sn.get(i).getCrawlDegree() - 1);
-					sn.add(u);
-				}
-				
-			}
-			i++;
-		}
-		for(User u : sn){
-			u.setCrawlDegree(-1);
+		int size = network.socialNetwork(id, degree);
+		ArrayList<User> sn = new ArrayList<User>(size);
+		for(int i = 0; i < size; i++){
+			sn.add(new User(network, network.sn[i]));
 		}
 		return sn;
 	}
 	
-	private LinkedList<Purchase> purchases = new LinkedList<Purchase>();
-	
 	/**
 	 * Adds a user's purchase to their personal history.
 	 * Also adds the purchase to the network histories of the
@@ -152,226 +94,87 @@ public class User {
 	 * @param p A new purchase.
 	 */
 	public void addPurchase(Purchase p, boolean streaming){
-		purchases.add(p);
-		while(purchases.size() > Event.T){
-			purchases.removeFirst();
-		}
-		if(streaming){
-			ArrayList<User> sn = socialNetwork(Event.D);
-			for(int i = 1; i < sn.size(); i++){
-				sn.get(i).addSNPurchase(p);
-			}
-		}
-		
+		network.addPurchase(id, p.getOrderKey(), p.getPrice(), streaming);
 	}
 	
 	/**
-	 * Gets the purchase history for the user.
+	 * Gets the purchase history for the user, earliest first.
 	 * @return A list of purchases.
 	 */
 	protected LinkedList<Purchase> getPurchases(){
-		return purchases;
-	}
-	
-	
-	
-	
-	private LinkedList<Purchase> snPurchases = new LinkedList<Purchase>();//social network purchases
-	private boolean snChange = true;//flags a change that may impact the user's social network
-	//if true, the user should rebuild their friends' purchase histories when needed
-	
-	/*
-	 * Idea: Rather than rebuilding the entire purchase history, only rebuild the affected portion.
-	 * ... This would be a headache to implement and probably wouldn't save much time.
-	 */
-	private double snPurchaseSum = 0;//used for mean and standard deviation
-	private double snPurchaseSquareSum = 0;//used for standard deviation
-	
-	public void flagSN(){
-		snChange = true;
-	}
-	public boolean snIsFlagged(){
-		return snChange;
-	}
-	
-	/**
-	 * Adds a purchase to the social network purchase history of the user,
-	 * and updates analytics variables appropriately.
-	 * @param p A new purchase
-	 */
-	protected void addSNPurchase(Purchase p){
-		if(snChange){
-			return;//pointless to add to a list that will be rebuilt from scratch
-		}
-		snPurchases.add(p);
-		snPurchaseSum += p.getPrice();
-		snPurchaseSquareSum += p.getPrice()*p.getPrice();
-		while(snPurchases.size() > Event.T){
-			double temp = snPurchases.getFirst().getPrice();
-			snPurchaseSum -= temp;
-			snPurchaseSquareSum -= temp*temp;
-			snPurchases.removeFirst();
+		LinkedList<Purchase> purchases = new LinkedList<Purchase>();
+		for(int i = 0; i < network.histCount[id]; i++){
+			purchases.add(Purchase.fromKey(id, network.histPriceAt(id, i), network.histKeyAt(id, i)));
 		}
+		return purchases;
 	}
 	
 	/**
-	 * Builds (or rebuilds) the social network purchase history of the user.
-	 * First, it crawls and generates the social network. Then it finds the most recent
-	 * purchases and builds them
+	 * Gets the social network purchase history for the user, earliest first.
+	 * The history may be out of date if the user is flagged.
+	 * @return A list of purchases.
 	 */
-	protected void buildSNPurchaseHistory(){
-		ArrayList<User> sn = socialNetwork(Event.D);
-		//We create iterators for the individual purchase histories in the social network
-		ArrayList<ListIterator<Purchase>> alip = new ArrayList<ListIterator<Purchase>>();
-		ArrayList<Purchase> ap = new ArrayList<Purchase>();//keeps track of current item in each iterator
-		for(int i = 1; i < sn.size(); i++){//we have i=1 because the current user is at index 0
-			LinkedList<Purchase> temp = sn.get(i).getPurchases();
-			ListIterator<Purchase> temp2 = temp.listIterator(temp.size());
-			if(temp2.hasPrevious()){
-				ap.add(temp2.previous());
-				alip.add(temp2);
-			}
-		}
-		
-		//we next sort ap by time, earliest first. Sorting alip in parallel.
-		
-		quickSort(ap, alip, 0, ap.size()-1);
-		
-		//Now, the last element in ap is the most recent purchase. It is added to the linkedlist
-		//and its respective iterator is triggered. The purchase is replaced in ap (if an older
-		//one exists for the respective user), and the new purchase is moved to its proper
-		//location in ap. Actions done on ap are done on alip as well.
-		
-		
+	protected LinkedList<Purchase> getSNPurchases(){
 		LinkedList<Purchase> purchases = new LinkedList<Purchase>();
-		
-		while(ap.size() > 0 && purchases.size() < Event.T){
-			purchases.addFirst(ap.get(ap.size()-1));//adds latest purchase to history
-			ListIterator<Purchase> temp = alip.get(alip.size()-1);
-			if(temp.hasPrevious()){
-				ap.set(ap.size()-1, temp.previous());
-				//move to correct location in ap, alip...
-				int i = ap.size()-1;
-				while(i > 0){
-					if(Purchase.comparePurchases(ap.get(i), ap.get(i-1))){
-						Purchase t1 = ap.get(i);//swap
-						ListIterator<Purchase> t2 = alip.get(i);
-						ap.set(i, ap.get(i-1));
-						alip.set(i, alip.get(i-1));
-						ap.set(i-1, t1);
-						alip.set(i-1, t2);
-						i--;
-					} else {
-						break;
-					}
-				}
-			} else {
-				alip.remove(alip.size()-1);
-				ap.remove(ap.size()-1);	
+		int g = network.snGroup[id];
+		if(g >= 0){
+			int T = network.ringSize();
+			long[] keys = new long[T];
+			long[] prices = new long[T];
+			int[] buyers = new int[T];
+			int m = network.shared.list(network, g, id, keys, prices, buyers);
+			for(int i = 0; i < m; i++){
+				purchases.add(Purchase.fromKey(buyers[i], prices[i], keys[i]));
 			}
-			
+			return purchases;
 		}
-		
-		snPurchases = purchases;//TODO: check this bahemoth
-		snChange = false;
-		snPurchaseSum = 0;
-		snPurchaseSquareSum = 0;
-		for(Purchase p : snPurchases){
-			snPurchaseSum += p.getPrice();
-			snPurchaseSquareSum += p.getPrice()*p.getPrice();
+		for(int i = 0; i < network.snCount[id]; i++){
+			long index = network.snIndex(id, i);
+			purchases.add(Purchase.fromKey(network.snHist.user(index), network.snHist.price(index), network.snHist.key(index)));
 		}
-		
+		return purchases;
 	}
 	
+	public void flagSN(){
+		network.flagSN(id);
+	}
+	public boolean snIsFlagged(){
+		return network.snChange[id];
+	}
 	
 	/**
-	 * Instance of quicksort. Sorts elements earlier to later.
-	 * @param ap An ArrayList of Purchases
-	 * @param alip An ArrayList of iterators, parallel to ap.
-	 * @param lo The lower bound for the segment to be sorted.
-	 * @param hi The upper bound for the segment to be sorted.
+	 * Builds (or rebuilds) the social network purchase history of the user.
 	 */
-	protected static void quickSort(ArrayList<Purchase> ap, ArrayList<ListIterator<Purchase>> alip, int lo, int hi){
-		if(lo < hi){
-			int p = partition(ap, alip, lo, hi);
-			quickSort(ap, alip, lo, p-1);
-			quickSort(ap, alip, p+1, hi);
-		}
-	}
-	
-	private static int partition(ArrayList<Purchase> ap, ArrayList<ListIterator<Purchase>> alip, int lo, int hi){
-		Purchase pivot = ap.get(hi);
-		int i = lo - 1;
-		for(int j = lo; j <= hi; j++){
-			if(Purchase.comparePurchases(ap.get(j),pivot)){
-				i++;
-				if(i != j){
-					Purchase temp = ap.get(i);//swap objects at indices i and j
-					ListIterator<Purchase> temp2 = alip.get(i);
-					ap.set(i, ap.get(j));
-					alip.set(i, alip.get(j));
-					ap.set(j, temp);
-					alip.set(j, temp2);
-				}
-			}
-		}
-		return i;
+	protected void buildSNPurchaseHistory(){
+		network.buildSNPurchaseHistory(id);
 	}
 	
-	
-	
-	double mean = 0;//mean and standard deviation are updated when a purchase is checked
-	double sd = 0;
-		
 	/**
-	 * Determines if the purchase is an outlier. It is an outlier if it is greater than 3
-	 * standard deviations above the mean of the social network's purchase history.
-	 * If the social network's purchase history is strictly smaller than 2, then there is
-	 * not enough information and the purchase is not flagged as an outlier (returns False).
-	 * 
-	 * The mean and standard deviation are computed from snPurchaseSum and snPurchaseSquareSum,
-	 * two variables that count the sum of prices of purchases in the purchase history,
-	 * and the sum of the squares of the prices.
-	 * 
-	 * The method builds the social network purchase history if needed before running the statistics.
-	 * 
+	 * Determines if the purchase is an outlier; see Network.checkForOutlier.
 	 * @param p A purchase
 	 * @return True if the purchase is an outlier.
 	 */
 	public boolean checkForOutlier(Purchase p){
-		if(snChange){
-			buildSNPurchaseHistory();
-		}
-		
-		int histSize = snPurchases.size();
-		if(histSize < 2){
-			return false;//not enough purchases in history to determine outlier
-		}
-		
-		mean = snPurchaseSum/histSize;
-		sd = Math.sqrt((snPurchaseSquareSum/histSize) - (mean*mean));
-		
-		return p.getPrice() > mean + 3*sd;
-		
+		return network.checkForOutlier(id, p.getPrice());
 	}
 	
 	/**
 	 * Returns the mean of the most recent purchases in the user's social network.
 	 * The mean is only updated after checkForOutlier is called; this method is
 	 * meant to be used sparingly.
-	 * @return A double
+	 * @return A long number of cents, truncated
 	 */
-	protected double getMean(){
-		return mean;
+	protected long getMean(){
+		return network.mean[id];
 	}
 	/**
 	 * Returns the standard deviation of the most recent purchases in the user's
 	 * social network. The standard deviation, like the mean, is only updated after
 	 * checkForOutlier is called; this method is meant to be used sparingly.
-	 * @return A double
+	 * @return A long number of cents, truncated
 	 */
-	protected double getSD(){
-		return sd;
+	protected long getSD(){
+		return network.sd[id];
 	}
 	
 }
@@ -379,6 +182,10 @@ public class User {
 
 
 
+
+
+
+
 /*
  * Design consideration: Should all purchases in a user's social network
  * be stored for that user? Old enough purchases would be ignored, but they
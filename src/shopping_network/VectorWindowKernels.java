@@ -0,0 +1,144 @@
+package shopping_network;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The window kernels (see WindowKernels) with the JDK Vector API. This class needs
+ * --add-modules jdk.incubator.vector to compile and to load; WindowKernels.get() falls
+ * back to the scalar kernels when it cannot be loaded.
+ *
+ * Sums: the sum of squares of a window does not fit in a long, and vectors have no 128-bit
+ * lanes. But a price below 2^31 cents (some 21 million dollars) has a square below 2^62,
+ * which each lane splits into its top and bottom 31 bits and adds to two totals. Neither
+ * total can overflow for any window that fits in an array, and at the end the sum of
+ * squares is the top total times 2^31 plus the bottom total, in 128 bits. A window holding
+ * a larger (or negative) price is totalled by the scalar kernel instead.
+ *
+ * Scoring: the outlier test is first done in doubles, lane by lane, with a margin far
+ * wider than the rounding error of the few operations involved. A lane that is clearly
+ * above or clearly below the line is settled by it; the rare lane that falls within the
+ * margin (a purchase on the line itself, say) is decided exactly by Cents.isOutlier. So
+ * the results are exactly those of the scalar kernel.
+ * @author Kevin
+ *
+ */
+final class VectorWindowKernels extends WindowKernels {
+
+	private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = LONGS.length();
+
+	private static final int MAX_PRICE_BITS = 31;
+	private static final int HALF = 31;//squares are added up in two halves of 31 bits
+	private static final long HALF_MASK = (1L << HALF) - 1;
+	private static final int MAX_COUNT_BITS = 31;//windows this large or larger are scored exactly
+
+	private static final double TWO_64 = 18446744073709551616.0;
+	private static final double MARGIN = 1e-9;//relative; the rounding error is below 1e-15
+
+	VectorWindowKernels(){
+		if(DOUBLES.length() != LANES){
+			throw new IllegalStateException("Long and double vectors have different lane counts");
+		}
+	}
+
+	@Override
+	String name(){
+		return "vector ("+LANES+" lanes)";
+	}
+
+	@Override
+	void sums(long[] prices, int from, int to, long[] totals){
+		int i = from;
+		int bound = from + LONGS.loopBound(to - from);
+		LongVector s = LongVector.zero(LONGS);
+		LongVector high = LongVector.zero(LONGS);
+		LongVector low = LongVector.zero(LONGS);
+		LongVector bits = LongVector.zero(LONGS);
+		for(; i < bound; i += LANES){
+			LongVector x = LongVector.fromArray(LONGS, prices, i);
+			bits = bits.or(x);
+			LongVector square = x.mul(x);
+			s = s.add(x);
+			high = high.add(square.lanewise(VectorOperators.LSHR, HALF));
+			low = low.add(square.and(HALF_MASK));
+		}
+		if((bits.reduceLanes(VectorOperators.OR) >>> MAX_PRICE_BITS) != 0){
+			scalar().sums(prices, from, to, totals);//a price too large to square in a long, or negative
+			return;
+		}
+		long sum = s.reduceLanes(VectorOperators.ADD);
+		long h = high.reduceLanes(VectorOperators.ADD);
+		long l = low.reduceLanes(VectorOperators.ADD);
+		//the sum of squares is h*2^31 + l
+		long hi = h >>> (64 - HALF);
+		long lo = h << HALF;
+		long newLo = lo + l;
+		hi += Long.compareUnsigned(newLo, lo) < 0 ? 1 : 0;
+		lo = newLo;
+		for(; i < to; i++){
+			long x = prices[i];
+			sum += x;
+			hi = Cents.addSquareHi(hi, lo, x);
+			lo = Cents.addSquareLo(lo, x);
+		}
+		totals[SUM] = sum;
+		totals[SQUARE_SUM_HI] = hi;
+		totals[SQUARE_SUM_LO] = lo;
+	}
+
+	@Override
+	void score(long[] amounts, long[] counts, long[] sums, long[] squareSumHi, long[] squareSumLo, int count,
+			long kNum, long kDen, boolean[] flagged){
+		double num2 = (double)kNum*kNum;
+		double den2 = (double)kDen*kDen;
+		int i = 0;
+		int bound = LONGS.loopBound(count);
+		for(; i < bound; i += LANES){
+			LongVector n = LongVector.fromArray(LONGS, counts, i);
+			LongVector x = LongVector.fromArray(LONGS, amounts, i);
+			LongVector s = LongVector.fromArray(LONGS, sums, i);
+			LongVector qHi = LongVector.fromArray(LONGS, squareSumHi, i);
+			LongVector qLo = LongVector.fromArray(LONGS, squareSumLo, i);
+			VectorMask<Long> tooFew = n.compare(VectorOperators.LT, 2);
+			//lanes where n*x - S is exact in a long and the doubles are well within range
+			VectorMask<Long> usual = tooFew.not()
+					.and(x.lanewise(VectorOperators.LSHR, MAX_PRICE_BITS).compare(VectorOperators.EQ, 0))
+					.and(n.lanewise(VectorOperators.LSHR, MAX_COUNT_BITS).compare(VectorOperators.EQ, 0))
+					.and(s.compare(VectorOperators.GE, 0));
+
+			DoubleVector d = (DoubleVector)n.mul(x).sub(s).convert(VectorOperators.L2D, 0);
+			DoubleVector nd = (DoubleVector)n.convert(VectorOperators.L2D, 0);
+			DoubleVector sd = (DoubleVector)s.convert(VectorOperators.L2D, 0);
+			DoubleVector q = ((DoubleVector)qHi.convert(VectorOperators.L2D, 0)).mul(TWO_64)
+					.add(((DoubleVector)qLo.lanewise(VectorOperators.LSHR, 1).convert(VectorOperators.L2D, 0)).mul(2.0))
+					.add((DoubleVector)qLo.and(1).convert(VectorOperators.L2D, 0));//the low half is unsigned
+			DoubleVector nq = nd.mul(q);
+			DoubleVector ss = sd.mul(sd);
+			DoubleVector left = d.mul(d).mul(den2);
+			DoubleVector right = nq.sub(ss).mul(num2);
+			DoubleVector margin = left.add(nq.add(ss).mul(num2)).mul(MARGIN);
+			VectorMask<Double> above = d.compare(VectorOperators.GT, 0).and(left.sub(right).compare(VectorOperators.GT, margin));
+			VectorMask<Double> below = d.compare(VectorOperators.LE, 0).or(right.sub(left).compare(VectorOperators.GT, margin));
+
+			VectorMask<Long> flag = above.cast(LONGS).and(usual);
+			VectorMask<Long> settled = above.or(below).cast(LONGS).and(usual).or(tooFew);
+			flag.intoArray(flagged, i);
+			long unsettled = settled.not().toLong();
+			while(unsettled != 0){
+				int j = i + Long.numberOfTrailingZeros(unsettled);
+				flagged[j] = Cents.isOutlier(amounts[j], counts[j], sums[j], squareSumHi[j], squareSumLo[j], kNum, kDen);
+				unsettled &= unsettled - 1;
+			}
+		}
+		for(; i < count; i++){
+			flagged[i] = counts[i] >= 2
+					&& Cents.isOutlier(amounts[i], counts[i], sums[i], squareSumHi[i], squareSumLo[i], kNum, kDen);
+		}
+	}
+
+}
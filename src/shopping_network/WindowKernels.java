@@ -0,0 +1,157 @@
+package shopping_network;
+
+/**
+ * Kernels for scoring purchases against whole windows at once, as a backtest does for
+ * millions of windows: the sum and 128-bit sum of squares of a window of prices, and the
+ * outlier test of many purchases against the totals of their windows.
+ *
+ * The engine itself never needs these; it keeps the totals of each window up to date one
+ * purchase at a time. They are for work in bulk, where the windows are laid out one after
+ * another in a primitive array and totalled from scratch.
+ *
+ * There are two implementations with exactly the same results. The scalar one (Scalar)
+ * is plain Java, using Cents for every sum and test. The vector one (VectorWindowKernels)
+ * uses the incubating JDK Vector API, which is only there when the JVM is started with
+ * --add-modules jdk.incubator.vector; get() picks it when it can be loaded, and the scalar
+ * one otherwise. The vector class is only ever loaded by name, so the detector itself
+ * compiles and runs without the module (as run.sh does).
+ * @author Kevin
+ *
+ */
+abstract class WindowKernels {
+
+	//indices of the totals written by sums
+	static final int SUM = 0;
+	static final int SQUARE_SUM_HI = 1;
+	static final int SQUARE_SUM_LO = 2;
+
+	private static final WindowKernels SCALAR = new Scalar();
+	private static final WindowKernels BEST = load();
+
+	/**
+	 * Gives the vector kernels if the Vector API is available, and the scalar ones otherwise.
+	 * Kernels hold no state, so one instance serves every thread.
+	 * @return WindowKernels
+	 */
+	static WindowKernels get(){
+		return BEST;
+	}
+
+	/**
+	 * Gives the scalar kernels.
+	 * @return WindowKernels
+	 */
+	static WindowKernels scalar(){
+		return SCALAR;
+	}
+
+	private static WindowKernels load(){
+		if(Boolean.getBoolean("shopping_network.scalarKernels")){
+			return SCALAR;
+		}
+		try {
+			return (WindowKernels)Class.forName("shopping_network.VectorWindowKernels").getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e){
+			return SCALAR;//the module is not there, or the class was not compiled
+		}
+	}
+
+	/**
+	 * Gives the name of the implementation, for reports.
+	 * @return A String
+	 */
+	abstract String name();
+
+	/**
+	 * Totals a window of prices.
+	 * @param prices An array of amounts in cents, none negative
+	 * @param from The index of the first price
+	 * @param to The index after the last price
+	 * @param totals An array of at least 3, given the sum (at SUM) and the high and low
+	 *        halves of the sum of squares (at SQUARE_SUM_HI and SQUARE_SUM_LO)
+	 */
+	abstract void sums(long[] prices, int from, int to, long[] totals);
+
+	/**
+	 * Tests purchases against the totals of their windows: flagged[i] is set to whether
+	 * amounts[i] is more than kNum/kDen standard deviations above the mean of a window of
+	 * counts[i] prices with the given sums (see Cents.isOutlier). A window of fewer than
+	 * 2 prices flags nothing, as in the engine.
+	 * @param amounts The amounts of the purchases in cents
+	 * @param counts The number of prices in each window
+	 * @param sums The sum of each window
+	 * @param squareSumHi The high half of the sum of squares of each window
+	 * @param squareSumLo The low half of the sum of squares of each window
+	 * @param count The number of purchases
+	 * @param kNum The numerator of the multiplier
+	 * @param kDen The denominator of the multiplier
+	 * @param flagged An array of at least count, given the results
+	 */
+	abstract void score(long[] amounts, long[] counts, long[] sums, long[] squareSumHi, long[] squareSumLo, int count,
+			long kNum, long kDen, boolean[] flagged);
+
+	/**
+	 * Scores purchases against windows laid out one after another in an array of prices:
+	 * the window of purchase i is prices[offsets[i]] up to prices[offsets[i+1]].
+	 * @param prices An array of amounts in cents, none negative
+	 * @param offsets An array of at least count + 1 ascending indices into prices
+	 * @param amounts The amounts of the purchases in cents
+	 * @param count The number of purchases
+	 * @param kNum The numerator of the multiplier
+	 * @param kDen The denominator of the multiplier
+	 * @param flagged An array of at least count, given the results
+	 */
+	void scoreWindows(long[] prices, int[] offsets, long[] amounts, int count, long kNum, long kDen, boolean[] flagged){
+		long[] counts = new long[count];
+		long[] sums = new long[count];
+		long[] squareSumHi = new long[count];
+		long[] squareSumLo = new long[count];
+		long[] totals = new long[3];
+		for(int i = 0; i < count; i++){
+			sums(prices, offsets[i], offsets[i + 1], totals);
+			counts[i] = offsets[i + 1] - offsets[i];
+			sums[i] = totals[SUM];
+			squareSumHi[i] = totals[SQUARE_SUM_HI];
+			squareSumLo[i] = totals[SQUARE_SUM_LO];
+		}
+		score(amounts, counts, sums, squareSumHi, squareSumLo, count, kNum, kDen, flagged);
+	}
+
+	/**
+	 * The kernels in plain Java, one price and one purchase at a time.
+	 */
+	static final class Scalar extends WindowKernels {
+
+		@Override
+		String name(){
+			return "scalar";
+		}
+
+		@Override
+		void sums(long[] prices, int from, int to, long[] totals){
+			long sum = 0;
+			long hi = 0;
+			long lo = 0;
+			for(int i = from; i < to; i++){
+				long x = prices[i];
+				sum += x;
+				hi = Cents.addSquareHi(hi, lo, x);
+				lo = Cents.addSquareLo(lo, x);
+			}
+			totals[SUM] = sum;
+			totals[SQUARE_SUM_HI] = hi;
+			totals[SQUARE_SUM_LO] = lo;
+		}
+
+		@Override
+		void score(long[] amounts, long[] counts, long[] sums, long[] squareSumHi, long[] squareSumLo, int count,
+				long kNum, long kDen, boolean[] flagged){
+			for(int i = 0; i < count; i++){
+				flagged[i] = counts[i] >= 2
+						&& Cents.isOutlier(amounts[i], counts[i], sums[i], squareSumHi[i], squareSumLo[i], kNum, kDen);
+			}
+		}
+
+	}
+
+}
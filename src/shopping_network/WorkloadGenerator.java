@@ -0,0 +1,501 @@
+package shopping_network;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic batch_log.json and stream_log.json files, in the format Event.pattern
+ * accepts, for testing how the detector scales.
+ *
+ * The batch log holds the friendship graph, with purchases mixed in, and the stream log
+ * holds purchases, befriends and unfriends in a given mix (by default the 80/19/1 split
+ * of the sample dataset, see Testing.fileStats). Everything is drawn from one seeded
+ * generator in a fixed order, so the same settings and seed always give the same files.
+ *
+ * Nothing is kept per user or per friendship, so the generator runs in a small heap
+ * however many users there are; each line is written as soon as it is made.
+ *  - random: both ends of a friendship are chosen uniformly.
+ *  - powerLaw: both ends are drawn with weights (r + 1)^(-1/(exponent - 1)) on user ranks
+ *    r (a Chung-Lu graph), sampled by inverting the weights' cumulative sum, so the number
+ *    of friends per user has a power-law tail with the given exponent. Ranks are spread
+ *    over user IDs by a fixed permutation (see userOf).
+ *  - cliques: users are in consecutive groups of cliqueSize who are all friends, on top of
+ *    the random friendships.
+ * Hubs are the users of the lowest ranks; every other user befriends each hub with
+ * probability hubFraction, with followers picked by geometric skips.
+ *
+ * Stream befriends are chosen like graph friendships. Unfriends undo a friendship made
+ * recently (kept in a ring of RECENT pairs), so most of them remove a real friendship.
+ *
+ * Prices are log-normal around medianPrice, and a purchase is made anomalyFactor times
+ * larger with probability anomalyRate. Events are spaced by exponential gaps at rate events
+ * per second; during bursts, which cover about burstShare of the events, they come
+ * burstFactor times as fast.
+ * @author Kevin
+ *
+ */
+public class WorkloadGenerator {
+
+	public static final int RANDOM = 0;
+	public static final int POWER_LAW = 1;
+	public static final int CLIQUES = 2;
+
+	static final int RECENT = 1 << 16;//recent friendships kept as unfriend candidates
+	static final double MEAN_BURST = 1000;//mean number of events in a burst
+
+	public int users = 10000;
+	public double degree = 10;//mean number of friends per user, from the graph's random part
+	public int graph = RANDOM;
+	public double exponent = 2.5;//for POWER_LAW; above 2
+	public int cliqueSize = 20;//for CLIQUES
+	public int hubs = 0;
+	public double hubFraction = 0.01;
+	public double batchPurchases = 5;//per user
+	public long streamEvents = 100000;
+	public double purchaseShare = 0.80;
+	public double befriendShare = 0.19;
+	public double unfriendShare = 0.01;
+	public double medianPrice = 30;//in dollars
+	public double priceSpread = 0.8;//sigma of the log of the price
+	public double anomalyRate = 0.001;
+	public double anomalyFactor = 10;
+	public double rate = 10;//events per second
+	public double burstFactor = 20;
+	public double burstShare = 0.1;
+	public long seed = 1;
+	public int D = 2;
+	public int T = 50;
+	public long startTime = Timestamp.valueOf("2017-06-13 00:00:00").getTime();
+
+	private SplittableRandom random;
+	private double time;//in milliseconds
+	private boolean inBurst;
+	private long second = Long.MIN_VALUE;//the second whose timestamp is cached
+	private String timestamp;
+	private final StringBuilder line = new StringBuilder(128);
+	private long multiplier;//see userOf
+	private double powerScale;//see drawRank
+	private double powerRoot;
+
+	//recent friendships, for unfriends
+	private final int[] recentA = new int[RECENT];
+	private final int[] recentB = new int[RECENT];
+	private int recentCount = 0;
+	private int recentNext = 0;
+
+	//the graph, as a sequence of friendships (see nextFriendship)
+	private int phase;
+	private long left;//random friendships still to come
+	private long group;//the current clique
+	private int cliqueI;
+	private int cliqueJ;
+	private int hub;
+	private long follower;
+	private int friendA;
+	private int friendB;
+
+	private long batchLines = 0;
+	private long streamLines = 0;
+
+	/**
+	 * Writes batch_log.json and stream_log.json to the given directory. Usage:
+	 *   java shopping_network.WorkloadGenerator <output directory> [options]
+	 * Options (defaults in brackets):
+	 *   --users=<n>              number of users [10000]
+	 *   --degree=<k>             mean friends per user from random friendships [10]
+	 *   --graph=random|power-law|cliques  [random]
+	 *   --exponent=<a>           power-law exponent of the friend count, above 2 [2.5]
+	 *   --clique-size=<k>        users per clique [20]
+	 *   --hubs=<n>               number of hub users [0]
+	 *   --hub-fraction=<f>       chance that a user befriends a given hub [0.01]
+	 *   --batch-purchases=<k>    purchases per user in the batch log [5]
+	 *   --stream-events=<n>      events in the stream log [100000]
+	 *   --mix=<p>/<b>/<u>        shares of purchases, befriends and unfriends [80/19/1]
+	 *   --median-price=<$>       median purchase [30]
+	 *   --price-spread=<s>       standard deviation of the log of the price [0.8]
+	 *   --anomaly-rate=<f>       share of purchases made anomalous [0.001]
+	 *   --anomaly-factor=<k>     how many times larger an anomalous purchase is [10]
+	 *   --rate=<n>               events per second outside bursts [10]
+	 *   --burst-factor=<k>       how many times faster events come in a burst; 1 for none [20]
+	 *   --burst-share=<f>        share of events in bursts [0.1]
+	 *   --seed=<n>               [1]
+	 *   --D=<d> --T=<t>          parameters written to the batch log [2, 50]
+	 * @param args An array of strings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length < 1){
+			throw new IllegalArgumentException("Please give the output directory, followed by any options.");
+		}
+		WorkloadGenerator g = new WorkloadGenerator();
+		for(int i = 1; i < args.length; i++){
+			g.set(args[i]);
+		}
+		File directory = new File(args[0]);
+		directory.mkdirs();
+		g.write(directory);
+		System.out.println("Wrote "+g.getBatchLines()+" batch events and "+g.getStreamLines()+" stream events to "+directory);
+	}
+
+	/**
+	 * Sets one of the options listed for main.
+	 * @param option An option, such as --users=1000000
+	 */
+	public void set(String option){
+		int eq = option.indexOf('=');
+		if(!option.startsWith("--") || eq < 0){
+			throw new IllegalArgumentException("Unknown option: \""+option+"\"");
+		}
+		String name = option.substring(2, eq);
+		String value = option.substring(eq + 1);
+		switch(name){
+		case "users": users = Integer.parseInt(value); break;
+		case "degree": degree = Double.parseDouble(value); break;
+		case "graph":
+			if(value.equals("random")){
+				graph = RANDOM;
+			} else if(value.equals("power-law")){
+				graph = POWER_LAW;
+			} else if(value.equals("cliques")){
+				graph = CLIQUES;
+			} else {
+				throw new IllegalArgumentException("Unknown graph: \""+option+"\"");
+			}
+			break;
+		case "exponent": exponent = Double.parseDouble(value); break;
+		case "clique-size": cliqueSize = Integer.parseInt(value); break;
+		case "hubs": hubs = Integer.parseInt(value); break;
+		case "hub-fraction": hubFraction = Double.parseDouble(value); break;
+		case "batch-purchases": batchPurchases = Double.parseDouble(value); break;
+		case "stream-events": streamEvents = Long.parseLong(value); break;
+		case "mix":
+			String[] shares = value.split("/");
+			if(shares.length != 3){
+				throw new IllegalArgumentException("The mix needs three shares: \""+option+"\"");
+			}
+			double p = Double.parseDouble(shares[0]);
+			double b = Double.parseDouble(shares[1]);
+			double u = Double.parseDouble(shares[2]);
+			purchaseShare = p/(p + b + u);
+			befriendShare = b/(p + b + u);
+			unfriendShare = u/(p + b + u);
+			break;
+		case "median-price": medianPrice = Double.parseDouble(value); break;
+		case "price-spread": priceSpread = Double.parseDouble(value); break;
+		case "anomaly-rate": anomalyRate = Double.parseDouble(value); break;
+		case "anomaly-factor": anomalyFactor = Double.parseDouble(value); break;
+		case "rate": rate = Double.parseDouble(value); break;
+		case "burst-factor": burstFactor = Double.parseDouble(value); break;
+		case "burst-share": burstShare = Double.parseDouble(value); break;
+		case "seed": seed = Long.parseLong(value); break;
+		case "D": D = Integer.parseInt(value); break;
+		case "T": T = Integer.parseInt(value); break;
+		default:
+			throw new IllegalArgumentException("Unknown option: \""+option+"\"");
+		}
+	}
+
+	/**
+	 * Writes batch_log.json and stream_log.json to a directory.
+	 * @param directory An existing directory
+	 * @throws IOException
+	 */
+	public void write(File directory) throws IOException{
+		try(Writer out = new BufferedWriter(new FileWriter(new File(directory, "batch_log.json")), 1 << 16)){
+			writeBatch(out);
+		}
+		try(Writer out = new BufferedWriter(new FileWriter(new File(directory, "stream_log.json")), 1 << 16)){
+			writeStream(out);
+		}
+	}
+
+	/**
+	 * Writes the parameters and then the friendship graph, with purchases mixed in evenly.
+	 * This starts the generator afresh, so it must come before writeStream.
+	 * @param out A Writer
+	 * @throws IOException
+	 */
+	public void writeBatch(Writer out) throws IOException{
+		check();
+		random = new SplittableRandom(seed);
+		time = startTime;
+		inBurst = false;
+		recentCount = 0;
+		recentNext = 0;
+		multiplier = coprimeMultiplier(users);
+		double a = 1/(exponent - 1);
+		powerRoot = 1/(1 - a);
+		powerScale = Math.pow(users + 1.0, 1 - a) - 1;
+		phase = 0;
+		left = Math.round(users*degree/2);
+		group = 0;
+		cliqueI = 0;
+		cliqueJ = 1;
+		hub = 0;
+		follower = -1;
+
+		out.write("{\"D\":\""+D+"\", \"T\":\""+T+"\"}\n");
+		long purchases = Math.round(users*batchPurchases);
+		double friendships = expectedFriendships();
+		batchLines = 0;
+		boolean more = nextFriendship();
+		while(more || purchases > 0){
+			if(!more || random.nextDouble()*(purchases + friendships) < purchases){
+				writePurchase(out);
+				purchases--;
+			} else {
+				writeFriendship(out, "befriend", friendA, friendB);
+				remember(friendA, friendB);
+				friendships = Math.max(1, friendships - 1);
+				more = nextFriendship();
+			}
+			batchLines++;
+		}
+	}
+
+	/**
+	 * Writes the stream events, carrying on from the end of the batch.
+	 * @param out A Writer
+	 * @throws IOException
+	 */
+	public void writeStream(Writer out) throws IOException{
+		streamLines = 0;
+		for(long i = 0; i < streamEvents; i++){
+			double kind = random.nextDouble();
+			if(kind < purchaseShare){
+				writePurchase(out);
+			} else if(kind < purchaseShare + befriendShare || recentCount == 0){
+				int a = drawUser();
+				int b = drawUser();
+				if(a == b){
+					b = a + 1 == users ? 0 : a + 1;
+				}
+				writeFriendship(out, "befriend", a, b);
+				remember(a, b);
+			} else {
+				int j = random.nextInt(recentCount);
+				writeFriendship(out, "unfriend", recentA[j], recentB[j]);
+			}
+			streamLines++;
+		}
+	}
+
+	/**
+	 * Gives the number of events written to the batch log, without the parameters.
+	 * @return A long
+	 */
+	public long getBatchLines(){
+		return batchLines;
+	}
+
+	/**
+	 * Gives the number of events written to the stream log.
+	 * @return A long
+	 */
+	public long getStreamLines(){
+		return streamLines;
+	}
+
+	private void check(){
+		if(users < 2 || degree < 0 || batchPurchases < 0 || streamEvents < 0){
+			throw new IllegalArgumentException("There must be at least two users, and counts must not be negative");
+		}
+		if(graph == POWER_LAW && !(exponent > 2)){
+			throw new IllegalArgumentException("The power-law exponent must be above 2: "+exponent);
+		}
+		if(graph == CLIQUES && cliqueSize < 2){
+			throw new IllegalArgumentException("Cliques need at least two users: "+cliqueSize);
+		}
+		if(hubs < 0 || hubs >= users || hubFraction < 0 || hubFraction > 1){
+			throw new IllegalArgumentException("Hubs must be fewer than the users, and the hub fraction between 0 and 1");
+		}
+		if(rate <= 0 || burstFactor < 1 || burstShare < 0 || burstShare >= 1){
+			throw new IllegalArgumentException("The rate must be positive, the burst factor at least 1 and the burst share below 1");
+		}
+	}
+
+	private double expectedFriendships(){
+		double count = Math.round(users*degree/2);
+		if(graph == CLIQUES){
+			long full = users/cliqueSize;
+			long rest = users % cliqueSize;
+			count += full*cliqueSize*(cliqueSize - 1L)/2 + rest*(rest - 1)/2;
+		}
+		return count + (double)hubs*(users - hubs)*hubFraction;
+	}
+
+	/**
+	 * Moves to the next friendship of the graph, in friendA and friendB: the random ones,
+	 * then the cliques, then the hubs.
+	 * @return False if there are no more
+	 */
+	private boolean nextFriendship(){
+		if(phase == 0){
+			while(left > 0){
+				left--;
+				friendA = drawUser();
+				friendB = drawUser();
+				if(friendA != friendB){
+					return true;
+				}
+			}
+			phase = graph == CLIQUES ? 1 : 2;
+		}
+		if(phase == 1){
+			while(group*cliqueSize < users){
+				long first = group*cliqueSize;
+				int size = (int)Math.min(cliqueSize, users - first);
+				if(cliqueJ < size){
+					friendA = (int)(first + cliqueI);
+					friendB = (int)(first + cliqueJ);
+					if(++cliqueJ == size){
+						cliqueI++;
+						cliqueJ = cliqueI + 1;
+					}
+					return true;
+				}
+				group++;
+				cliqueI = 0;
+				cliqueJ = 1;
+			}
+			phase = 2;
+		}
+		if(hubFraction > 0){
+			while(hub < hubs){
+				//skip ahead to the next follower: the gap is geometric
+				double u = 1 - random.nextDouble();
+				double skip = hubFraction >= 1 ? 0 : Math.floor(Math.log(u)/Math.log(1 - hubFraction));
+				follower += 1 + (long)Math.min(skip, users);
+				if(follower < users - hubs){
+					friendA = userOf(hubs + follower);
+					friendB = userOf(hub);
+					return true;
+				}
+				hub++;
+				follower = -1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Draws one end of a friendship for the graph's random part.
+	 * @return A user ID
+	 */
+	private int drawUser(){
+		if(graph != POWER_LAW){
+			return random.nextInt(users);
+		}
+		return userOf(drawRank());
+	}
+
+	/**
+	 * Draws a rank r with weight about (r + 1)^(-a), by inverting the integral of the weights.
+	 * @return A rank below users
+	 */
+	private long drawRank(){
+		double x = Math.pow(1 + random.nextDouble()*powerScale, powerRoot) - 1;
+		return Math.min(users - 1, (long)x);
+	}
+
+	/**
+	 * Spreads ranks over user IDs, so that the users with the most friends are not all
+	 * at the front: rank r is user r*multiplier mod users, with the multiplier coprime to
+	 * the number of users, which makes this a permutation.
+	 * @param rank A rank below users
+	 * @return A user ID
+	 */
+	private int userOf(long rank){
+		return (int)(rank*multiplier % users);
+	}
+
+	private static long coprimeMultiplier(int n){
+		long m = (long)(n*0.6180339887) | 1;
+		while(gcd(m, n) != 1){
+			m += 2;
+		}
+		return m % n;
+	}
+
+	private static long gcd(long a, long b){
+		while(b != 0){
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private void remember(int a, int b){
+		recentA[recentNext] = a;
+		recentB[recentNext] = b;
+		recentNext = recentNext + 1 == RECENT ? 0 : recentNext + 1;
+		recentCount = Math.min(RECENT, recentCount + 1);
+	}
+
+	private void writePurchase(Writer out) throws IOException{
+		long cents = price();
+		line.setLength(0);
+		line.append("{\"event_type\":\"purchase\", \"timestamp\":\"").append(nextTimestamp());
+		line.append("\", \"id\": \"").append(random.nextInt(users)).append("\", \"amount\": \"");
+		Cents.appendTo(line, cents);
+		line.append("\"}\n");
+		out.append(line);
+	}
+
+	private void writeFriendship(Writer out, String type, int a, int b) throws IOException{
+		line.setLength(0);
+		line.append("{\"event_type\":\"").append(type).append("\", \"timestamp\":\"").append(nextTimestamp());
+		line.append("\", \"id1\": \"").append(a).append("\", \"id2\": \"").append(b).append("\"}\n");
+		out.append(line);
+	}
+
+	/**
+	 * Gives a price in cents: log-normal around the median, and sometimes anomalous.
+	 * @return A positive number of cents
+	 */
+	private long price(){
+		double dollars = medianPrice*Math.exp(priceSpread*gaussian());
+		if(random.nextDouble() < anomalyRate){
+			dollars *= anomalyFactor;
+		}
+		return Math.max(1, Math.round(dollars*100));
+	}
+
+	private double gaussian(){
+		//Box-Muller, using one of the pair
+		double u = 1 - random.nextDouble();
+		return Math.sqrt(-2*Math.log(u))*Math.cos(2*Math.PI*random.nextDouble());
+	}
+
+	/**
+	 * Moves the clock on by one event and gives the timestamp. Bursts start and end at
+	 * random, so that they cover about burstShare of the events and last MEAN_BURST events
+	 * on average.
+	 * @return A timestamp in the log's format
+	 */
+	private String nextTimestamp(){
+		if(burstFactor > 1 && burstShare > 0){
+			if(inBurst){
+				inBurst = random.nextDouble() >= 1/MEAN_BURST;
+			} else {
+				inBurst = random.nextDouble() < burstShare/((1 - burstShare)*MEAN_BURST);
+			}
+		}
+		double r = inBurst ? rate*burstFactor : rate;
+		time += -Math.log(1 - random.nextDouble())*1000/r;
+		long s = (long)Math.floor(time/1000);
+		if(s != second){
+			second = s;
+			timestamp = new Timestamp(s*1000).toString();
+			timestamp = timestamp.substring(0, timestamp.length() - 2);//remove the ".0"
+		}
+		return timestamp;
+	}
+
+}